@@ -21,21 +21,26 @@ import ixa.kaflib.KAFDocument;
 import ixa.kaflib.Term;
 import ixa.kaflib.WF;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import com.google.common.collect.Lists;
-
-import opennlp.tools.namefind.NameFinderME;
 import opennlp.tools.namefind.NameSample;
 import opennlp.tools.util.Span;
+
+import com.google.common.io.Files;
+
 import eus.ixa.ixa.pipe.nerc.dict.Dictionaries;
 import eus.ixa.ixa.pipe.nerc.train.Flags;
 
@@ -52,10 +57,24 @@ public class Annotate {
    * The name factory.
    */
   private NameFactory nameFactory;
+  /**
+   * The pool running the models of an ensemble concurrently.
+   */
+  private static final ForkJoinPool ENSEMBLE_POOL = new ForkJoinPool();
   /**
    * The NameFinder to do the annotation. Usually the statistical.
    */
   private StatisticalNameFinder nameFinder;
+  /**
+   * The statistical name finders of every model, in order of priority. The
+   * first one is {@link #nameFinder}.
+   */
+  private final List<StatisticalNameFinder> nameFinders = new ArrayList<StatisticalNameFinder>();
+  /**
+   * Whether the longest of the overlapping spans of an ensemble of models is
+   * kept, instead of the span of the first model.
+   */
+  private boolean longestFirst;
   /**
    * The dictionaries.
    */
@@ -89,6 +108,19 @@ public class Annotate {
    * Clear features after every sentence or when a -DOCSTART- mark appears.
    */
   private String clearFeatures;
+  /**
+   * The spans of the sentences already annotated, null if disabled.
+   */
+  private SentenceCache sentenceCache;
+  /**
+   * The registry where the time of every stage is recorded, null if not
+   * measured.
+   */
+  private Metrics metrics;
+  /**
+   * The model, or several models separated by commas.
+   */
+  private final String model;
 
   /** It manages the use of the three different name finders: {@code StatisticalNameFinder}, 
    * {@code DictionariesNameFinder} and {@code NumericNameFinder}. In particular, if --dictTag
@@ -105,9 +137,21 @@ public class Annotate {
    */
   public Annotate(final Properties properties) throws IOException {
 
+    this.model = properties.getProperty("model");
     this.clearFeatures = properties.getProperty("clearFeatures");
+    this.longestFirst = properties.getProperty("ensemble",
+        Flags.DEFAULT_ENSEMBLE).equalsIgnoreCase("longest");
     nameFactory = new NameFactory();
     annotateOptions(properties);
+    if (lexerFind) {
+      numericLexerFinder = new NumericNameFinder(nameFactory);
+    }
+    int cacheSize = Integer.parseInt(properties.getProperty("sentenceCache",
+        String.valueOf(Flags.DEFAULT_SENTENCE_CACHE)));
+    // the spans only depend on the sentence without adaptive features
+    if (cacheSize > 0 && (!statistical || clearFeatures.equalsIgnoreCase("yes"))) {
+      sentenceCache = new SentenceCache(cacheSize);
+    }
   }
 
   /**
@@ -145,12 +189,12 @@ public class Annotate {
           postProcess = false;
           statistical = false;
         } else if (dictOption.equalsIgnoreCase("post")) {
-          nameFinder = new StatisticalNameFinder(properties, nameFactory);
+          loadStatisticalNameFinders(properties);
           statistical = true;
           postProcess = true;
           dictTag = false;
         } else {
-          nameFinder = new StatisticalNameFinder(properties, nameFactory);
+          loadStatisticalNameFinders(properties);
           statistical = true;
           dictTag = false;
           postProcess = false;
@@ -161,18 +205,99 @@ public class Annotate {
       statistical = true;
       dictTag = false;
       postProcess = false;
-      nameFinder = new StatisticalNameFinder(properties, nameFactory);
+      loadStatisticalNameFinders(properties);
     } else {
       lexerFind = false;
       statistical = true;
       dictTag = false;
       postProcess = false;
-      nameFinder = new StatisticalNameFinder(properties, nameFactory);
+      loadStatisticalNameFinders(properties);
     }
   }
   
   /**
-   * Get the statistical namefinder.
+   * Load a statistical name finder for every model, the models being
+   * separated by commas in the model property.
+   * 
+   * @param properties
+   *          the properties
+   */
+  private void loadStatisticalNameFinders(final Properties properties) {
+    for (String model : properties.getProperty("model").split(",")) {
+      Properties modelProperties = new Properties();
+      modelProperties.putAll(properties);
+      modelProperties.setProperty("model", model.trim());
+      nameFinders.add(new StatisticalNameFinder(modelProperties, nameFactory));
+    }
+    nameFinder = nameFinders.get(0);
+  }
+
+  /**
+   * Get the name of the model, or the names of the models of an ensemble
+   * joined by '+', to name the linguistic processor.
+   * 
+   * @param model
+   *          the model, or several models separated by commas
+   * @return the name of the model
+   */
+  public static String getModelName(final String model) {
+    StringBuilder modelName = new StringBuilder();
+    for (String modelPath : model.split(",")) {
+      if (modelName.length() > 0) {
+        modelName.append('+');
+      }
+      modelName.append(Files.getNameWithoutExtension(modelPath.trim()));
+    }
+    return modelName.toString();
+  }
+
+  /**
+   * Get the model of this annotator, to name the linguistic processor.
+   * 
+   * @return the model, or several models separated by commas
+   */
+  public final String getModel() {
+    return model;
+  }
+
+  /**
+   * Get the cache of the spans of the sentences already annotated, to
+   * obtain its hit rate.
+   * 
+   * @return the cache, or null if disabled or the adaptive features are not
+   *         cleared after every sentence
+   */
+  public final SentenceCache getSentenceCache() {
+    return sentenceCache;
+  }
+
+  /**
+   * Record the tokens annotated and the time of the statistical, dictionary
+   * and numeric stages of every document in a metrics registry.
+   * 
+   * @param registry
+   *          the registry, null to stop measuring
+   */
+  public final void setMetrics(final Metrics registry) {
+    this.metrics = registry;
+  }
+
+  /**
+   * Share the sentence cache of another annotator of the same models and
+   * options, e.g., between the workers of a server. It does nothing if the
+   * cache of this annotator is disabled.
+   * 
+   * @param other
+   *          the other annotator
+   */
+  public final void shareSentenceCache(final Annotate other) {
+    if (sentenceCache != null && other.sentenceCache != null) {
+      sentenceCache = other.sentenceCache;
+    }
+  }
+
+  /**
+   * Get the statistical namefinder, that of the first model of an ensemble.
    * @return the statistical namefinder
    */
   public StatisticalNameFinder getStatisticalNameFinder() {
@@ -182,73 +307,379 @@ public class Annotate {
   /**
    * Classify Named Entities creating the entities layer in the
    * {@link KAFDocument} using statistical models, post-processing and/or
-   * dictionaries only.
+   * dictionaries only. The returned annotations are used to render any of the
+   * output formats without tagging the document again.
    * 
    * @param kaf
    *          the kaf document to be used for annotation
+   * @return the named entity annotations of every sentence
    * @throws IOException
    *           throws exception if problems with the kaf document
    */
-  public final void annotateNEs(final KAFDocument kaf) throws IOException {
+  public final NameAnnotations annotateNames(final KAFDocument kaf) throws IOException {
 
-    List<Span> allSpans = null;
+    NameAnnotations annotations = new NameAnnotations(kaf,
+        clearFeatures.equalsIgnoreCase("yes"));
+    WFTermIndex termIndex = new WFTermIndex(kaf);
     List<List<WF>> sentences = kaf.getSentences();
-    for (List<WF> sentence : sentences) {
+    List<String[]> sentenceTokens = getSentenceTokens(sentences, false);
+    List<String[]> sentenceTokenIds = getSentenceTokens(sentences, true);
+    List<Span[]> sentenceSpans = findSpans(sentenceTokens);
+    for (int sent = 0; sent < sentences.size(); sent++) {
       //process each sentence
-      String[] tokens = new String[sentence.size()];
-      String[] tokenIds = new String[sentence.size()];
-      for (int i = 0; i < sentence.size(); i++) {
-        tokens[i] = sentence.get(i).getForm();
-        tokenIds[i] = sentence.get(i).getId();
-      }
-      if (statistical) {
-        if (clearFeatures.equalsIgnoreCase("docstart") && tokens[0].startsWith("-DOCSTART-")) {
-          nameFinder.clearAdaptiveData();
-        }
-        Span[] statSpans = nameFinder.nercToSpans(tokens);
-        allSpans = Lists.newArrayList(statSpans);
-      }
-      if (postProcess) {
-        Span[] dictSpans = dictFinder.nercToSpansExact(tokens);
-        SpanUtils.postProcessDuplicatedSpans(allSpans, dictSpans);
-        SpanUtils.concatenateSpans(allSpans, dictSpans);
-      }
-      if (dictTag) {
-        Span[] dictOnlySpans = dictFinder.nercToSpansExact(tokens);
-        allSpans = Lists.newArrayList(dictOnlySpans);
-      }
-      if (lexerFind) {
-        String sentenceText = StringUtils.getStringFromTokens(tokens);
-        StringReader stringReader = new StringReader(sentenceText);
-        BufferedReader sentenceReader = new BufferedReader(stringReader);
-        numericLexerFinder = new NumericNameFinder(sentenceReader, nameFactory);
-        Span[] numericSpans = numericLexerFinder.nercToSpans(tokens);
-        SpanUtils.concatenateSpans(allSpans, numericSpans);
-      }
-      Span[] allSpansArray = NameFinderME.dropOverlappingSpans(allSpans
-          .toArray(new Span[allSpans.size()]));
+      String[] tokens = sentenceTokens.get(sent);
+      String[] tokenIds = sentenceTokenIds.get(sent);
+      Span[] allSpansArray = sentenceSpans.get(sent);
       List<Name> names = new ArrayList<Name>();
       if (statistical) {
         names = nameFinder.getNamesFromSpans(allSpansArray, tokens);
       } else {
         names = dictFinder.getNamesFromSpans(allSpansArray, tokens);
       }
+      List<Entity> entities = new ArrayList<Entity>(names.size());
       for (Name name : names) {
         Integer startIndex = name.getSpan().getStart();
         Integer endIndex = name.getSpan().getEnd();
-        List<Term> nameTerms = kaf.getTermsFromWFs(Arrays.asList(Arrays
-            .copyOfRange(tokenIds, startIndex, endIndex)));
+        List<Term> nameTerms = termIndex.getTerms(tokenIds, startIndex,
+            endIndex);
         ixa.kaflib.Span<Term> neSpan = KAFDocument.newTermSpan(nameTerms);
         List<ixa.kaflib.Span<Term>> references = new ArrayList<ixa.kaflib.Span<Term>>();
         references.add(neSpan);
         Entity neEntity = kaf.newEntity(references);
         neEntity.setType(name.getType());
+        entities.add(neEntity);
       }
+      annotations.addSentence(tokens, tokenIds, allSpansArray, entities);
+    }
+    clearAdaptiveData();
+    return annotations;
+  }
+
+  /**
+   * Classify Named Entities creating the entities layer in the
+   * {@link KAFDocument}.
+   * 
+   * @param kaf
+   *          the kaf document to be used for annotation
+   * @throws IOException
+   *           throws exception if problems with the kaf document
+   * @deprecated use {@link #annotateNames(KAFDocument)}, whose annotations
+   *             render the output formats without tagging the document again
+   */
+  @Deprecated
+  public final void annotateNEs(final KAFDocument kaf) throws IOException {
+    annotateNames(kaf);
+  }
+
+  /**
+   * Get the word forms or the ids of the tokens of every sentence.
+   * 
+   * @param sentences
+   *          the sentences of a document
+   * @param ids
+   *          whether to get the ids instead of the word forms
+   * @return the forms or ids of the tokens of every sentence
+   */
+  private static List<String[]> getSentenceTokens(
+      final List<List<WF>> sentences, final boolean ids) {
+    List<String[]> sentenceTokens = new ArrayList<String[]>(sentences.size());
+    for (List<WF> sentence : sentences) {
+      String[] tokens = new String[sentence.size()];
+      for (int i = 0; i < sentence.size(); i++) {
+        tokens[i] = ids ? sentence.get(i).getId() : sentence.get(i).getForm();
+      }
+      sentenceTokens.add(tokens);
+    }
+    return sentenceTokens;
+  }
+
+  /**
+   * Classify Named Entities in already tokenized sentences, without a
+   * {@link KAFDocument}. The returned annotations can be rendered in OpenNLP
+   * format or used to create the entities layer of a streamed NAF document.
+   * 
+   * @param sentences
+   *          the tokens of every sentence
+   * @param tokenIds
+   *          the ids of the tokens of every sentence
+   * @return the named entity annotations of every sentence
+   */
+  public final NameAnnotations annotateNames(final List<String[]> sentences,
+      final List<String[]> tokenIds) {
+    NameAnnotations annotations = new NameAnnotations(null,
+        clearFeatures.equalsIgnoreCase("yes"));
+    List<Entity> noEntities = Collections.emptyList();
+    List<Span[]> sentenceSpans = findSpans(sentences);
+    for (int i = 0; i < sentences.size(); i++) {
+      annotations.addSentence(sentences.get(i), tokenIds.get(i),
+          sentenceSpans.get(i), noEntities);
+    }
+    clearAdaptiveData();
+    return annotations;
+  }
+
+  /**
+   * Classify Named Entities in already tokenized sentences for embedding
+   * NERC in other applications. The spans are found as in
+   * {@link #annotateNames(List, List)} and written to a reusable
+   * {@link SpanBuffer}, which is cleared first, as the sentence index, start,
+   * end and type id of every entity. The adaptive features are cleared as in
+   * {@link #annotateNames(KAFDocument)}. An instance should not be shared
+   * between threads.
+   * 
+   * @param sentences
+   *          the tokens of every sentence
+   * @param spans
+   *          the buffer where the spans of every sentence are written
+   */
+  public final void annotateNEs(final String[][] sentences,
+      final SpanBuffer spans) {
+    spans.clear();
+    List<Span[]> sentenceSpans = findSpans(Arrays.asList(sentences));
+    for (int i = 0; i < sentences.length; i++) {
+      addSpans(sentenceSpans.get(i), i, spans);
+    }
+    clearAdaptiveData();
+  }
+
+  /**
+   * Classify the Named Entities of one tokenized sentence, adding its spans
+   * to a reusable {@link SpanBuffer}. The adaptive features are cleared after
+   * the sentence only if the clearFeatures option is yes; otherwise
+   * {@link #clearAdaptiveData()} should be called after every document.
+   * 
+   * @param tokens
+   *          the tokens of the sentence
+   * @param sentence
+   *          the sentence index of the spans
+   * @param spans
+   *          the buffer where the spans of the sentence are added
+   */
+  public final void annotateNEs(final String[] tokens, final int sentence,
+      final SpanBuffer spans) {
+    addSpans(findSpans(Collections.singletonList(tokens)).get(0), sentence,
+        spans);
+  }
+
+  /**
+   * Add the spans of a sentence to a {@link SpanBuffer}.
+   * 
+   * @param neSpans
+   *          the spans of the sentence
+   * @param sentence
+   *          the sentence index of the spans
+   * @param spans
+   *          the buffer where the spans are added
+   */
+  private static void addSpans(final Span[] neSpans, final int sentence,
+      final SpanBuffer spans) {
+    for (Span neSpan : neSpans) {
+      spans.add(sentence, neSpan.getStart(), neSpan.getEnd(),
+          neSpan.getType());
+    }
+  }
+
+  /**
+   * Clear the adaptive features of the statistical name finders, if any.
+   */
+  public final void clearAdaptiveData() {
+    for (StatisticalNameFinder modelFinder : nameFinders) {
+      modelFinder.clearAdaptiveData();
+    }
+  }
+
+  /**
+   * Find the named entity spans of every sentence, annotating only the
+   * sentences not found in the sentence cache, if enabled.
+   * 
+   * @param sentences
+   *          the tokens of every sentence
+   * @return the non overlapping named entity spans of every sentence
+   */
+  private List<Span[]> findSpans(final List<String[]> sentences) {
+    if (metrics != null) {
+      int numTokens = 0;
+      for (String[] tokens : sentences) {
+        numTokens += tokens.length;
+      }
+      metrics.count("sentences", sentences.size());
+      metrics.count("tokens", numTokens);
+    }
+    if (sentenceCache == null) {
+      return findUncachedSpans(sentences);
+    }
+    List<Span[]> allSpans = new ArrayList<Span[]>(sentences.size());
+    List<String[]> misses = new ArrayList<String[]>();
+    // the position in the misses of every sentence not cached, so that the
+    // sentences repeated in the document are annotated once
+    Map<List<String>, Integer> missIndexes = new HashMap<List<String>, Integer>();
+    int[] sentenceMisses = new int[sentences.size()];
+    for (int i = 0; i < sentences.size(); i++) {
+      String[] tokens = sentences.get(i);
+      Integer miss = missIndexes.get(Arrays.asList(tokens));
+      Span[] spans = null;
+      if (miss == null) {
+        spans = sentenceCache.get(tokens);
+      } else {
+        sentenceCache.addHits(1);
+      }
+      allSpans.add(spans);
+      if (spans == null) {
+        if (miss == null) {
+          miss = misses.size();
+          missIndexes.put(Arrays.asList(tokens), miss);
+          misses.add(tokens);
+        }
+        sentenceMisses[i] = miss;
+      }
+    }
+    if (!misses.isEmpty()) {
+      List<Span[]> missSpans = findUncachedSpans(misses);
+      for (int i = 0; i < missSpans.size(); i++) {
+        sentenceCache.put(misses.get(i), missSpans.get(i));
+      }
+      for (int i = 0; i < allSpans.size(); i++) {
+        if (allSpans.get(i) == null) {
+          allSpans.set(i, missSpans.get(sentenceMisses[i]));
+        }
+      }
+    }
+    return allSpans;
+  }
+
+  /**
+   * Find the named entity spans of every sentence with the statistical,
+   * dictionary and numeric name finders activated, clearing the adaptive
+   * features as specified by the clearFeatures option.
+   * 
+   * @param sentences
+   *          the tokens of every sentence
+   * @return the non overlapping named entity spans of every sentence
+   */
+  private List<Span[]> findUncachedSpans(final List<String[]> sentences) {
+    long start = System.nanoTime();
+    List<Span[]> statSpans = statistical ? findStatisticalSpans(sentences)
+        : null;
+    if (metrics != null && statistical) {
+      metrics.record("statistical", System.nanoTime() - start);
+    }
+    long dictNanos = 0;
+    long numericNanos = 0;
+    List<Span[]> allSpans = new ArrayList<Span[]>(sentences.size());
+    for (int i = 0; i < sentences.size(); i++) {
+      String[] tokens = sentences.get(i);
+      Span[] dictSpans = null;
+      Span[] numericSpans = null;
+      if (postProcess || dictTag) {
+        start = System.nanoTime();
+        dictSpans = dictFinder.nercToSpansExact(tokens);
+        dictNanos += System.nanoTime() - start;
+      }
+      if (lexerFind) {
+        start = System.nanoTime();
+        numericSpans = numericLexerFinder.nercToSpans(tokens);
+        numericNanos += System.nanoTime() - start;
+      }
+      allSpans.add(SpanUtils.mergeSpans(statSpans == null ? null
+          : statSpans.get(i), dictSpans, numericSpans));
+    }
+    if (metrics != null && (postProcess || dictTag)) {
+      metrics.record("dictionary", dictNanos);
+    }
+    if (metrics != null && lexerFind) {
+      metrics.record("numeric", numericNanos);
+    }
+    return allSpans;
+  }
+
+  /**
+   * Find the spans of every sentence with the statistical models. The models
+   * of an ensemble process the sentences concurrently, each of them in order
+   * so that its adaptive features are the same as when run alone, and the
+   * overlapping spans of the models are resolved by the ensemble policy.
+   * 
+   * @param sentences
+   *          the tokens of every sentence
+   * @return the statistical spans of every sentence
+   */
+  private List<Span[]> findStatisticalSpans(final List<String[]> sentences) {
+    if (nameFinders.size() == 1) {
+      return findModelSpans(nameFinder, sentences);
+    }
+    List<ForkJoinTask<List<Span[]>>> tasks = new ArrayList<ForkJoinTask<List<Span[]>>>();
+    for (final StatisticalNameFinder modelFinder : nameFinders.subList(1,
+        nameFinders.size())) {
+      tasks.add(ENSEMBLE_POOL.submit(new Callable<List<Span[]>>() {
+        public List<Span[]> call() {
+          return findModelSpans(modelFinder, sentences);
+        }
+      }));
+    }
+    List<List<Span[]>> modelSpans = new ArrayList<List<Span[]>>(
+        nameFinders.size());
+    modelSpans.add(findModelSpans(nameFinder, sentences));
+    for (ForkJoinTask<List<Span[]>> task : tasks) {
+      try {
+        modelSpans.add(task.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while annotating!", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    List<Span[]> ensembleSpans = new ArrayList<Span[]>(sentences.size());
+    List<Span[]> sentenceSpans = new ArrayList<Span[]>(modelSpans.size());
+    for (int i = 0; i < sentences.size(); i++) {
+      sentenceSpans.clear();
+      for (List<Span[]> spans : modelSpans) {
+        sentenceSpans.add(spans.get(i));
+      }
+      ensembleSpans.add(SpanUtils.prioritySpans(sentenceSpans, longestFirst));
+    }
+    return ensembleSpans;
+  }
+
+  /**
+   * Find the spans of every sentence with one statistical model, clearing
+   * its adaptive features as specified by the clearFeatures option.
+   * 
+   * @param modelFinder
+   *          the name finder of the model
+   * @param sentences
+   *          the tokens of every sentence
+   * @return the spans of every sentence
+   */
+  private List<Span[]> findModelSpans(final StatisticalNameFinder modelFinder,
+      final List<String[]> sentences) {
+    List<Span[]> spans = new ArrayList<Span[]>(sentences.size());
+    for (String[] tokens : sentences) {
+      if (isDocStart(tokens)) {
+        modelFinder.clearAdaptiveData();
+      }
+      spans.add(modelFinder.nercToSpans(tokens));
       if (clearFeatures.equalsIgnoreCase("yes")) {
-        nameFinder.clearAdaptiveData();
+        modelFinder.clearAdaptiveData();
       }
     }
-    nameFinder.clearAdaptiveData();
+    return spans;
+  }
+
+  /**
+   * Whether the adaptive features are cleared before a sentence because it
+   * starts a new document.
+   * 
+   * @param tokens
+   *          the tokens of the sentence
+   * @return true if the clearFeatures option is docstart and the sentence
+   *         starts with a -DOCSTART- mark
+   */
+  private boolean isDocStart(final String[] tokens) {
+    return clearFeatures.equalsIgnoreCase("docstart") && tokens.length > 0
+        && tokens[0].startsWith("-DOCSTART-");
   }
 
   /**
@@ -261,60 +692,104 @@ public class Annotate {
   public final String annotateNEsToKAF(KAFDocument kaf) {
     return kaf.toString();
   }
+
+  /**
+   * Output annotation as NAF.
+   * 
+   * @param annotations
+   *          the named entity annotations
+   * @return the string containing the naf document
+   */
+  public final String annotateNEsToKAF(NameAnnotations annotations) {
+    return annotateNEsToKAF(annotations.getDocument());
+  }
   
   /**
    * Output annotation in OpenNLP format.
    * 
+   * @param annotations
+   *          the named entity annotations
+   * @return the string containing the annotated document
+   */
+  public final String annotateNEsToOpenNLP(NameAnnotations annotations) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < annotations.size(); i++) {
+      NameSample nameSample = new NameSample(annotations.getTokens(i),
+          annotations.getSpans(i), annotations.isClearAdaptiveData());
+      sb.append(nameSample.toString()).append("\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Output annotation in OpenNLP format, classifying the Named Entities of
+   * the document without adding them to it.
+   * 
    * @param kaf
    *          the naf document
    * @return the string containing the annotated document
+   * @deprecated use {@link #annotateNEsToOpenNLP(NameAnnotations)}
    */
+  @Deprecated
   public final String annotateNEsToOpenNLP(KAFDocument kaf) {
-    StringBuilder sb = new StringBuilder();
-    List<Span> allSpans = null;
     List<List<WF>> sentences = kaf.getSentences();
-    for (List<WF> sentence : sentences) {
-      String[] tokens = new String[sentence.size()];
-      String[] tokenIds = new String[sentence.size()];
-      for (int i = 0; i < sentence.size(); i++) {
-        tokens[i] = sentence.get(i).getForm();
-        tokenIds[i] = sentence.get(i).getId();
-      }
-      if (statistical) {
-        if (clearFeatures.equalsIgnoreCase("docstart") && tokens[0].startsWith("-DOCSTART-")) {
-          nameFinder.clearAdaptiveData();
+    return annotateNEsToOpenNLP(annotateNames(
+        getSentenceTokens(sentences, false), getSentenceTokens(sentences, true)));
+  }
+
+  /**
+   * Output annotation as a JSON array with the array of the named entities
+   * of every sentence, each of them with its token offsets, type and text.
+   * 
+   * @param annotations
+   *          the named entity annotations
+   * @return the string containing the JSON array
+   */
+  public final String annotateNEsToJSON(NameAnnotations annotations) {
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < annotations.size(); i++) {
+      String[] tokens = annotations.getTokens(i);
+      Span[] spans = annotations.getSpans(i);
+      sb.append(i == 0 ? "\n[" : ",\n[");
+      for (int j = 0; j < spans.length; j++) {
+        if (j > 0) {
+          sb.append(", ");
         }
-        Span[] statSpans = nameFinder.nercToSpans(tokens);
-        allSpans = Lists.newArrayList(statSpans);
-      }
-      if (postProcess) {
-        Span[] dictSpans = dictFinder.nercToSpansExact(tokens);
-        SpanUtils.postProcessDuplicatedSpans(allSpans, dictSpans);
-        SpanUtils.concatenateSpans(allSpans, dictSpans);
+        sb.append("{\"start\": ").append(spans[j].getStart())
+            .append(", \"end\": ").append(spans[j].getEnd())
+            .append(", \"type\": ");
+        appendJsonString(sb, spans[j].getType());
+        sb.append(", \"text\": ");
+        appendJsonString(sb, StringUtils.getStringFromTokens(Arrays.copyOfRange(
+            tokens, spans[j].getStart(), spans[j].getEnd())));
+        sb.append("}");
       }
-      if (dictTag) {
-        Span[] dictOnlySpans = dictFinder.nercToSpansExact(tokens);
-        allSpans = Lists.newArrayList(dictOnlySpans);
-      }
-      if (lexerFind) {
-        String sentenceText = StringUtils.getStringFromTokens(tokens);
-        StringReader stringReader = new StringReader(sentenceText);
-        BufferedReader sentenceReader = new BufferedReader(stringReader);
-        numericLexerFinder = new NumericNameFinder(sentenceReader, nameFactory);
-        Span[] numericSpans = numericLexerFinder.nercToSpans(tokens);
-        SpanUtils.concatenateSpans(allSpans, numericSpans);
-      }
-      boolean isClearAdaptiveData = false;
-      if (clearFeatures.equalsIgnoreCase("yes")) {
-        isClearAdaptiveData = true;
+      sb.append("]");
+    }
+    return sb.append("\n]\n").toString();
+  }
+
+  /**
+   * Append a string as a JSON string.
+   * 
+   * @param sb
+   *          the builder
+   * @param string
+   *          the string
+   */
+  private static void appendJsonString(final StringBuilder sb, final String string) {
+    sb.append('"');
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < ' ') {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
       }
-      Span[] allSpansArray = NameFinderME.dropOverlappingSpans(allSpans
-          .toArray(new Span[allSpans.size()]));
-      NameSample nameSample = new NameSample(tokens, allSpansArray, isClearAdaptiveData);
-      sb.append(nameSample.toString()).append("\n");
     }
-    nameFinder.clearAdaptiveData();
-    return sb.toString();
+    sb.append('"');
   }
 
   /**
@@ -336,171 +811,275 @@ public class Annotate {
   /**
    * Output Conll2003 format.
    * 
+   * @param annotations
+   *          the named entity annotations
+   * @return the annotated named entities in conll03 format
+   */
+  public String annotateNEsToCoNLL2003(NameAnnotations annotations) {
+    StringWriter writer = new StringWriter();
+    try {
+      annotateNEsToCoNLL2003(annotations, writer);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Output the entities layer of the document in Conll2003 format.
+   * 
    * @param kaf
-   *          the kaf document
+   *          the naf document
    * @return the annotated named entities in conll03 format
+   * @deprecated use {@link #annotateNEsToCoNLL2003(NameAnnotations)}
    */
+  @Deprecated
   public String annotateNEsToCoNLL2003(KAFDocument kaf) {
-    List<Entity> namedEntityList = kaf.getEntities();
-    Map<String, Integer> entityToSpanSize = new HashMap<String, Integer>();
-    Map<String, String> entityToType = new HashMap<String, String>();
-    for (Entity ne : namedEntityList) {
-      List<ixa.kaflib.Span<Term>> entitySpanList = ne.getSpans();
-      for (ixa.kaflib.Span<Term> spanTerm : entitySpanList) {
-        Term neTerm = spanTerm.getFirstTarget();
-        // create map from term Id to Entity span size
-        entityToSpanSize.put(neTerm.getId(), spanTerm.size());
-        // create map from term Id to Entity type
-        entityToType.put(neTerm.getId(), ne.getType());
-      }
-    }
+    return annotateNEsToCoNLL2003(new NameAnnotations(kaf, false));
+  }
 
+  /**
+   * Output Conll2003 format, writing every sentence as soon as it is
+   * produced.
+   * 
+   * @param annotations
+   *          the named entity annotations
+   * @param writer
+   *          the writer where the annotated named entities are written
+   * @throws IOException
+   *           if io problems with the writer
+   */
+  public void annotateNEsToCoNLL2003(NameAnnotations annotations,
+      Writer writer) throws IOException {
+    if (annotations.getDocument() == null) {
+      writeTokenizedCoNLL(annotations, writer, true);
+      return;
+    }
+    KAFDocument kaf = annotations.getDocument();
     List<List<WF>> sentences = kaf.getSentences();
-    StringBuilder sb = new StringBuilder();
-    for (List<WF> sentence : sentences) {
-      int sentNumber = sentence.get(0).getSent();
+    for (int sent = 0; sent < sentences.size(); sent++) {
+      int sentNumber = sentences.get(sent).get(0).getSent();
       List<Term> sentenceTerms = kaf.getSentenceTerms(sentNumber);
+      int[] entityToSpanSize = new int[sentenceTerms.size()];
+      String[] entityToType = new String[sentenceTerms.size()];
+      indexEntities(kaf.getEntitiesBySent(sentNumber), sentenceTerms,
+          entityToSpanSize, entityToType);
       String previousType = null;
       boolean previousIsEntity = false;
 
       for (int i = 0; i < sentenceTerms.size(); i++) {
-        Term thisTerm = sentenceTerms.get(i);
         // if term is inside an entity span then annotate B-I entities
-        if (entityToSpanSize.get(thisTerm.getId()) != null) {
-          int neSpanSize = entityToSpanSize.get(thisTerm.getId());
-          String neClass = entityToType.get(thisTerm.getId());
-          String neType = this.convertToConLLTypes(neClass);
-          // if Entity span is multi token
-          if (neSpanSize > 1) {
-            for (int j = 0; j < neSpanSize; j++) {
-              thisTerm = sentenceTerms.get(i + j);
-              sb.append(thisTerm.getForm());
-              sb.append("\t");
-              sb.append(thisTerm.getLemma());
-              sb.append("\t");
-              sb.append(thisTerm.getMorphofeat());
-              sb.append("\t");
-              if (j == 0 && previousIsEntity && previousType.equalsIgnoreCase(neType)) {
-                sb.append(BIO.BEGIN.toString());
-              } else {
-                sb.append(BIO.IN.toString());
-              }
-              sb.append(neType);
-              sb.append("\n");
-            }
-            previousType = neType;
-          } else {
-            sb.append(thisTerm.getForm());
-            sb.append("\t");
-            sb.append(thisTerm.getLemma());
-            sb.append("\t");
-            sb.append(thisTerm.getMorphofeat());
-            sb.append("\t");
-            if (previousIsEntity && previousType.equalsIgnoreCase(neType)) {
-              sb.append(BIO.BEGIN.toString());
+        if (entityToSpanSize[i] > 0) {
+          int neSpanSize = entityToSpanSize[i];
+          String neType = this.convertToConLLTypes(entityToType[i]);
+          for (int j = 0; j < neSpanSize; j++) {
+            if (j == 0 && previousIsEntity
+                && previousType.equalsIgnoreCase(neType)) {
+              writeTerm(writer, sentenceTerms.get(i + j), BIO.BEGIN, neType);
             } else {
-              sb.append(BIO.IN.toString());
+              writeTerm(writer, sentenceTerms.get(i + j), BIO.IN, neType);
             }
-            sb.append(neType);
-            sb.append("\n");
           }
           previousIsEntity = true;
           previousType = neType;
           i += neSpanSize - 1;
         } else {
-          sb.append(thisTerm.getForm());
-          sb.append("\t");
-          sb.append(thisTerm.getLemma());
-          sb.append("\t");
-          sb.append(thisTerm.getMorphofeat());
-          sb.append("\t");
-          sb.append(BIO.OUT);
-          sb.append("\n");
+          writeTerm(writer, sentenceTerms.get(i), BIO.OUT, "");
           previousIsEntity = false;
           previousType = BIO.OUT.toString();
         }
       }
-      sb.append("\n");// end of sentence
+      writer.write("\n");// end of sentence
     }
-    return sb.toString();
+    writer.flush();
   }
 
   /**
    * Output Conll2002 format.
    * 
+   * @param annotations
+   *          the named entity annotations
+   * @return the annotated named entities in conll02 format
+   */
+  public String annotateNEsToCoNLL2002(NameAnnotations annotations) {
+    StringWriter writer = new StringWriter();
+    try {
+      annotateNEsToCoNLL2002(annotations, writer);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Output the entities layer of the document in Conll2002 format.
+   * 
    * @param kaf
-   *          the kaf document
-   * @return the annotated named entities in conll03 format
+   *          the naf document
+   * @return the annotated named entities in conll02 format
+   * @deprecated use {@link #annotateNEsToCoNLL2002(NameAnnotations)}
    */
+  @Deprecated
   public String annotateNEsToCoNLL2002(KAFDocument kaf) {
-    List<Entity> namedEntityList = kaf.getEntities();
-    Map<String, Integer> entityToSpanSize = new HashMap<String, Integer>();
-    Map<String, String> entityToType = new HashMap<String, String>();
-    for (Entity ne : namedEntityList) {
-      List<ixa.kaflib.Span<Term>> entitySpanList = ne.getSpans();
-      for (ixa.kaflib.Span<Term> spanTerm : entitySpanList) {
-        Term neTerm = spanTerm.getFirstTarget();
-        entityToSpanSize.put(neTerm.getId(), spanTerm.size());
-        entityToType.put(neTerm.getId(), ne.getType());
-      }
-    }
+    return annotateNEsToCoNLL2002(new NameAnnotations(kaf, false));
+  }
 
+  /**
+   * Output Conll2002 format, writing every sentence as soon as it is
+   * produced.
+   * 
+   * @param annotations
+   *          the named entity annotations
+   * @param writer
+   *          the writer where the annotated named entities are written
+   * @throws IOException
+   *           if io problems with the writer
+   */
+  public void annotateNEsToCoNLL2002(NameAnnotations annotations,
+      Writer writer) throws IOException {
+    if (annotations.getDocument() == null) {
+      writeTokenizedCoNLL(annotations, writer, false);
+      return;
+    }
+    KAFDocument kaf = annotations.getDocument();
     List<List<WF>> sentences = kaf.getSentences();
-    StringBuilder sb = new StringBuilder();
-    for (List<WF> sentence : sentences) {
-      int sentNumber = sentence.get(0).getSent();
+    for (int sent = 0; sent < sentences.size(); sent++) {
+      int sentNumber = sentences.get(sent).get(0).getSent();
       List<Term> sentenceTerms = kaf.getSentenceTerms(sentNumber);
+      int[] entityToSpanSize = new int[sentenceTerms.size()];
+      String[] entityToType = new String[sentenceTerms.size()];
+      indexEntities(kaf.getEntitiesBySent(sentNumber), sentenceTerms,
+          entityToSpanSize, entityToType);
 
       for (int i = 0; i < sentenceTerms.size(); i++) {
-        Term thisTerm = sentenceTerms.get(i);
-
-        if (entityToSpanSize.get(thisTerm.getId()) != null) {
-          int neSpanSize = entityToSpanSize.get(thisTerm.getId());
-          String neClass = entityToType.get(thisTerm.getId());
-          String neType = convertToConLLTypes(neClass);
-          if (neSpanSize > 1) {
-            for (int j = 0; j < neSpanSize; j++) {
-              thisTerm = sentenceTerms.get(i + j);
-              sb.append(thisTerm.getForm());
-              sb.append("\t");
-              sb.append(thisTerm.getLemma());
-              sb.append("\t");
-              sb.append(thisTerm.getMorphofeat());
-              sb.append("\t");
-              if (j == 0) {
-                sb.append(BIO.BEGIN.toString());
-              } else {
-                sb.append(BIO.IN.toString());
-              }
-              sb.append(neType);
-              sb.append("\n");
-            }
-          } else {
-            sb.append(thisTerm.getForm());
-            sb.append("\t");
-            sb.append(thisTerm.getLemma());
-            sb.append("\t");
-            sb.append(thisTerm.getMorphofeat());
-            sb.append("\t");
-            sb.append(BIO.BEGIN.toString());
-            sb.append(neType);
-            sb.append("\n");
+        if (entityToSpanSize[i] > 0) {
+          int neSpanSize = entityToSpanSize[i];
+          String neType = convertToConLLTypes(entityToType[i]);
+          for (int j = 0; j < neSpanSize; j++) {
+            writeTerm(writer, sentenceTerms.get(i + j), j == 0 ? BIO.BEGIN
+                : BIO.IN, neType);
           }
           i += neSpanSize - 1;
         } else {
-          sb.append(thisTerm.getForm());
-          sb.append("\t");
-          sb.append(thisTerm.getLemma());
-          sb.append("\t");
-          sb.append(thisTerm.getMorphofeat());
-          sb.append("\t");
-          sb.append(BIO.OUT);
-          sb.append("\n");
+          writeTerm(writer, sentenceTerms.get(i), BIO.OUT, "");
         }
       }
-      sb.append("\n");// end of sentence
+      writer.write("\n");// end of sentence
     }
-    return sb.toString();
+    writer.flush();
+  }
+
+  /**
+   * Output the annotation of tokenized sentences, which have no lemmas or
+   * morphological tags, in CoNLL format with the token and its BIO tag.
+   * 
+   * @param annotations
+   *          the named entity annotations of tokenized sentences
+   * @param writer
+   *          the writer where the annotated named entities are written
+   * @param conll2003
+   *          whether the B- tag is only used between adjacent entities of the
+   *          same type, as in CoNLL 2003, or for every entity, as in CoNLL 2002
+   * @throws IOException
+   *           if io problems with the writer
+   */
+  private void writeTokenizedCoNLL(NameAnnotations annotations,
+      Writer writer, boolean conll2003) throws IOException {
+    for (int sent = 0; sent < annotations.size(); sent++) {
+      String[] tokens = annotations.getTokens(sent);
+      Span[] spans = annotations.getSpans(sent);
+      int next = 0;
+      int previousEnd = -1;
+      String previousType = null;
+      for (int i = 0; i < tokens.length; i++) {
+        writer.write(tokens[i]);
+        writer.write("\t");
+        if (next < spans.length && spans[next].getStart() <= i) {
+          Span span = spans[next];
+          String neType = convertToConLLTypes(span.getType().toUpperCase());
+          if (i == span.getStart()
+              && (!conll2003 || (previousEnd == i && previousType
+                  .equalsIgnoreCase(neType)))) {
+            writer.write(BIO.BEGIN.toString());
+          } else {
+            writer.write(BIO.IN.toString());
+          }
+          writer.write(neType);
+          if (i == span.getEnd() - 1) {
+            previousEnd = span.getEnd();
+            previousType = neType;
+            next++;
+          }
+        } else {
+          writer.write(BIO.OUT.toString());
+        }
+        writer.write("\n");
+      }
+      writer.write("\n");// end of sentence
+    }
+    writer.flush();
+  }
+
+  /**
+   * Record, for the position of the first term of every entity of a
+   * sentence, the number of terms of the entity and its type. The entities
+   * are those of the document, both the ones it already had and the ones
+   * just found; when two entities start at the same term, the latest wins.
+   * 
+   * @param entities
+   *          the entities of the sentence
+   * @param sentenceTerms
+   *          the terms of the sentence
+   * @param entityToSpanSize
+   *          the number of terms of the entity starting at each position
+   * @param entityToType
+   *          the type of the entity starting at each position
+   */
+  private static void indexEntities(List<Entity> entities,
+      List<Term> sentenceTerms, int[] entityToSpanSize, String[] entityToType) {
+    if (entities.isEmpty()) {
+      return;
+    }
+    Map<String, Integer> termPositions = new HashMap<String, Integer>();
+    for (int i = 0; i < sentenceTerms.size(); i++) {
+      termPositions.put(sentenceTerms.get(i).getId(), i);
+    }
+    for (Entity ne : entities) {
+      for (ixa.kaflib.Span<Term> spanTerm : ne.getSpans()) {
+        Integer position = termPositions.get(spanTerm.getFirstTarget().getId());
+        if (position != null) {
+          entityToSpanSize[position] = spanTerm.size();
+          entityToType[position] = ne.getType();
+        }
+      }
+    }
+  }
+
+  /**
+   * Write a term in CoNLL format.
+   * 
+   * @param writer
+   *          the writer
+   * @param term
+   *          the term
+   * @param bio
+   *          the BIO tag
+   * @param neType
+   *          the named entity type
+   * @throws IOException
+   *           if io problems with the writer
+   */
+  private static void writeTerm(Writer writer, Term term, BIO bio,
+      String neType) throws IOException {
+    writer.write(term.getForm());
+    writer.write("\t");
+    writer.write(String.valueOf(term.getLemma()));
+    writer.write("\t");
+    writer.write(String.valueOf(term.getMorphofeat()));
+    writer.write("\t");
+    writer.write(bio.toString());
+    writer.write(neType);
+    writer.write("\n");
   }
 
   /**
@@ -0,0 +1,351 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import ixa.kaflib.KAFDocument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Annotates many {@link KAFDocument}s concurrently with {@link Annotate}.
+ * Every worker thread owns its own {@link Annotate} instance (and therefore
+ * its own name finders) whereas the statistical models and dictionaries are
+ * loaded once and shared by all of them, as is the sentence cache if
+ * enabled. The number of documents in flight is bounded to twice the number
+ * of workers.
+ *
+ * @author ragerri
+ * @version 2015-11-20
+ *
+ */
+public class BatchAnnotator implements Closeable {
+
+  /**
+   * Receives the documents as soon as they are annotated.
+   */
+  public interface Callback {
+
+    /**
+     * Called when a document has been annotated.
+     *
+     * @param index
+     *          the position of the document in the input
+     * @param kaf
+     *          the annotated document
+     */
+    void annotated(int index, KAFDocument kaf);
+
+    /**
+     * Called when the annotation of a document failed.
+     *
+     * @param index
+     *          the position of the document in the input
+     * @param kaf
+     *          the document
+     * @param e
+     *          the cause of the failure
+     */
+    void failed(int index, KAFDocument kaf, Exception e);
+  }
+
+  /**
+   * A unit of work run by a worker with one of the annotators of the pool,
+   * e.g., reading, annotating and writing a document.
+   *
+   * @param <T>
+   *          the type of the result
+   */
+  public interface Task<T> {
+
+    /**
+     * Run the task.
+     *
+     * @param annotator
+     *          the annotator, only used by this task until it returns
+     * @return the result
+     * @throws Exception
+     *           if the task fails
+     */
+    T run(Annotate annotator) throws Exception;
+  }
+
+  /**
+   * The pool of annotators, one per worker.
+   */
+  private final BlockingQueue<Annotate> annotators;
+  /**
+   * The executor running the workers.
+   */
+  private final ExecutorService executor;
+  /**
+   * Bounds the number of documents submitted but not yet annotated.
+   */
+  private final Semaphore inFlight;
+  /**
+   * The maximum number of documents in flight.
+   */
+  private final int maxInFlight;
+
+  /**
+   * Construct a batch annotator with a number of workers.
+   *
+   * @param properties
+   *          the properties passed to every {@link Annotate} instance
+   * @param threads
+   *          the number of workers
+   * @throws IOException
+   *           if the resources cannot be loaded
+   */
+  public BatchAnnotator(final Properties properties, final int threads)
+      throws IOException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("The number of threads must be at least 1!");
+    }
+    annotators = new ArrayBlockingQueue<Annotate>(threads);
+    Annotate first = new Annotate(properties);
+    annotators.add(first);
+    for (int i = 1; i < threads; i++) {
+      Annotate annotator = new Annotate(properties);
+      annotator.shareSentenceCache(first);
+      annotators.add(annotator);
+    }
+    executor = Executors.newFixedThreadPool(threads);
+    maxInFlight = threads * 2;
+    inFlight = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * Annotate a collection of documents; the annotated documents are returned
+   * in input order.
+   *
+   * @param docs
+   *          the documents
+   * @return the annotated documents
+   * @throws IOException
+   *           if the annotation of any document fails
+   */
+  public final List<KAFDocument> annotateNEs(final Collection<KAFDocument> docs)
+      throws IOException {
+    List<Future<KAFDocument>> futures = new ArrayList<Future<KAFDocument>>(
+        docs.size());
+    for (KAFDocument kaf : docs) {
+      futures.add(submit(kaf));
+    }
+    List<KAFDocument> annotatedDocs = new ArrayList<KAFDocument>(docs.size());
+    for (Future<KAFDocument> future : futures) {
+      annotatedDocs.add(getResult(future));
+    }
+    return annotatedDocs;
+  }
+
+  /**
+   * Annotate a stream of documents; each document is passed to the callback
+   * as soon as it is annotated, not necessarily in input order. The method
+   * returns when every document has been processed.
+   *
+   * @param docs
+   *          the documents
+   * @param callback
+   *          the callback receiving the results
+   * @throws InterruptedException
+   *           if interrupted while waiting for the workers
+   */
+  public final void annotateNEs(final Iterator<KAFDocument> docs,
+      final Callback callback) throws InterruptedException {
+    int index = 0;
+    while (docs.hasNext()) {
+      final KAFDocument kaf = docs.next();
+      final int docIndex = index++;
+      inFlight.acquire();
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            callback.annotated(docIndex, annotate(kaf));
+          } catch (Exception e) {
+            callback.failed(docIndex, kaf, e);
+          } finally {
+            inFlight.release();
+          }
+        }
+      });
+    }
+    waitForCompletion();
+  }
+
+  /**
+   * Submit a single document for annotation.
+   *
+   * @param kaf
+   *          the document
+   * @return the future annotated document
+   * @throws IOException
+   *           if interrupted while waiting for a free worker
+   */
+  public final Future<KAFDocument> submit(final KAFDocument kaf)
+      throws IOException {
+    return submit(new Task<KAFDocument>() {
+      public KAFDocument run(final Annotate annotator) throws IOException {
+        annotator.annotateNames(kaf);
+        return kaf;
+      }
+    });
+  }
+
+  /**
+   * Submit a task to be run by a worker with one of the annotators. It blocks
+   * while the maximum number of tasks are in flight.
+   *
+   * @param task
+   *          the task
+   * @param <T>
+   *          the type of the result
+   * @return the future result
+   * @throws IOException
+   *           if interrupted while waiting for a free worker
+   */
+  public final <T> Future<T> submit(final Task<T> task) throws IOException {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while submitting document!", e);
+    }
+    return executor.submit(new Callable<T>() {
+      public T call() throws Exception {
+        try {
+          return run(task);
+        } finally {
+          inFlight.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Shutdown the workers.
+   */
+  public final void close() {
+    executor.shutdown();
+  }
+
+  /**
+   * Wait for the workers to terminate after {@link #close()}.
+   *
+   * @param timeout
+   *          the maximum time to wait in milliseconds
+   * @return true if the workers terminated
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public final boolean awaitTermination(final long timeout)
+      throws InterruptedException {
+    return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Annotate a document with one of the annotators of the pool.
+   *
+   * @param kaf
+   *          the document
+   * @return the annotated document
+   * @throws IOException
+   *           if io problems
+   * @throws InterruptedException
+   *           if interrupted while waiting for an annotator
+   */
+  private KAFDocument annotate(final KAFDocument kaf) throws IOException,
+      InterruptedException {
+    Annotate annotator = annotators.take();
+    try {
+      annotator.annotateNames(kaf);
+    } finally {
+      annotators.put(annotator);
+    }
+    return kaf;
+  }
+
+  /**
+   * Run a task with one of the annotators of the pool.
+   *
+   * @param task
+   *          the task
+   * @param <T>
+   *          the type of the result
+   * @return the result
+   * @throws Exception
+   *           if the task fails or interrupted while waiting for an annotator
+   */
+  private <T> T run(final Task<T> task) throws Exception {
+    Annotate annotator = annotators.take();
+    try {
+      return task.run(annotator);
+    } finally {
+      annotators.put(annotator);
+    }
+  }
+
+  /**
+   * Wait until every submitted document has been processed.
+   *
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  private void waitForCompletion() throws InterruptedException {
+    inFlight.acquire(maxInFlight);
+    inFlight.release(maxInFlight);
+  }
+
+  /**
+   * Get the result of an annotation task.
+   *
+   * @param future
+   *          the future
+   * @return the annotated document
+   * @throws IOException
+   *           if the task failed
+   */
+  private static KAFDocument getResult(final Future<KAFDocument> future)
+      throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while annotating!", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+}
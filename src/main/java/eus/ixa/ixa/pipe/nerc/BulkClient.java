@@ -0,0 +1,391 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.io.Files;
+
+/**
+ * Sends many documents to a {@link FrameServer} over a pool of persistent
+ * connections and writes the annotated documents to a directory. Every
+ * connection keeps several requests in flight, so that the server always has
+ * work queued and the documents are annotated as fast as the server can.
+ * Optionally the server only sends the new entities layer, merged here into
+ * the documents, and the frames are compressed.
+ *
+ * @author ragerri
+ * @version 2015-11-30
+ */
+public class BulkClient {
+
+  /**
+   * The encoding of the documents.
+   */
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /**
+   * The times a document is sent before it is counted as failed, if the
+   * connection is lost while it is in flight.
+   */
+  private static final int MAX_ATTEMPTS = 3;
+  /**
+   * The times a connection is tried in a row before giving up.
+   */
+  private static final int MAX_CONNECTION_ATTEMPTS = 3;
+  /**
+   * The milliseconds waited before connecting again, times the attempt.
+   */
+  private static final long RECONNECT_DELAY = 1000;
+
+  /**
+   * The host of the server.
+   */
+  private final String host;
+  /**
+   * The port of the server.
+   */
+  private final int port;
+  /**
+   * The number of connections.
+   */
+  private final int connections;
+  /**
+   * The number of requests in flight in every connection.
+   */
+  private final int pipeline;
+  /**
+   * Whether only the new entities layer is requested.
+   */
+  private final boolean delta;
+  /**
+   * The type of the requests, with its flags.
+   */
+  private final byte requestType;
+  /**
+   * The index of the next document to send.
+   */
+  private final AtomicInteger next = new AtomicInteger();
+  /**
+   * The number of documents annotated.
+   */
+  private final AtomicInteger annotated = new AtomicInteger();
+  /**
+   * The number of documents whose annotation failed.
+   */
+  private final AtomicInteger failed = new AtomicInteger();
+  /**
+   * The bytes of the documents sent.
+   */
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * Construct a bulk client.
+   *
+   * @param serverHost
+   *          the host of the server
+   * @param serverPort
+   *          the port of the server
+   * @param numConnections
+   *          the number of connections
+   * @param requestsInFlight
+   *          the number of requests in flight in every connection
+   * @param deltaResponses
+   *          whether only the new entities layer is requested
+   * @param compress
+   *          whether the frames are compressed with gzip
+   */
+  public BulkClient(final String serverHost, final int serverPort,
+      final int numConnections, final int requestsInFlight,
+      final boolean deltaResponses, final boolean compress) {
+    this.host = serverHost;
+    this.port = serverPort;
+    this.connections = numConnections;
+    this.pipeline = requestsInFlight;
+    this.delta = deltaResponses;
+    this.requestType = (byte) (FrameServer.ANNOTATE
+        | (deltaResponses ? FrameServer.DELTA : 0)
+        | (compress ? FrameServer.GZIP : 0));
+  }
+
+  /**
+   * List the documents of a directory, or of a file with a path per line.
+   * The annotated documents are written with the name of their input file,
+   * so a file list with two documents of the same name is rejected.
+   *
+   * @param input
+   *          the directory or the file list
+   * @return the documents, sorted by name if read from a directory
+   * @throws IOException
+   *           if the file list cannot be read or repeats a name
+   */
+  public static List<File> listDocuments(final File input) throws IOException {
+    List<File> documents = new ArrayList<File>();
+    if (input.isDirectory()) {
+      File[] files = input.listFiles();
+      Arrays.sort(files);
+      for (File file : files) {
+        if (file.isFile()) {
+          documents.add(file);
+        }
+      }
+    } else {
+      Map<String, File> names = new HashMap<String, File>();
+      for (String line : Files.readLines(input, UTF_8)) {
+        if (!line.trim().isEmpty()) {
+          File document = new File(line.trim());
+          File previous = names.put(document.getName(), document);
+          if (previous != null) {
+            throw new IOException("Documents " + previous + " and " + document
+                + " would be written to the same output file " + document.getName());
+          }
+          documents.add(document);
+        }
+      }
+    }
+    return documents;
+  }
+
+  /**
+   * Annotate the documents, writing every annotated document to the output
+   * directory with the name of its input file. The documents whose
+   * annotation fails are reported in stderr and not written.
+   *
+   * @param documents
+   *          the documents
+   * @param outputDir
+   *          the output directory
+   * @throws IOException
+   *           if a connection fails
+   */
+  public final void annotate(final List<File> documents, final File outputDir)
+      throws IOException {
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create the output directory " + outputDir);
+    }
+    long start = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool(connections);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int i = 0; i < connections; i++) {
+        results.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            send(documents, outputDir);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException("Error sending the documents", e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while sending the documents", e);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.println(String.format(Locale.ROOT,
+        "-> Annotated %d documents (%d failed, %.1f MB) in %.2f s: "
+            + "%.1f documents/s, %.2f MB/s", annotated.get(), failed.get(),
+        bytes.get() / 1e6, seconds, annotated.get() / seconds, bytes.get()
+            / 1e6 / seconds));
+  }
+
+  /**
+   * Send documents through a connection until there are no more, keeping
+   * the pipeline full. If the connection is lost, the documents in flight
+   * are sent again through a new connection.
+   *
+   * @param documents
+   *          the documents
+   * @param outputDir
+   *          the output directory
+   * @throws IOException
+   *           if the server cannot be connected
+   */
+  private void send(final List<File> documents, final File outputDir)
+      throws IOException {
+    // the documents in flight, kept to merge the deltas
+    Map<Integer, String> pending = new LinkedHashMap<Integer, String>();
+    // the times every document in flight has been sent
+    Map<Integer, Integer> attempts = new HashMap<Integer, Integer>();
+    int connectionAttempts = 0;
+    while (true) {
+      FrameClient client;
+      try {
+        client = new FrameClient(host, port);
+      } catch (IOException e) {
+        if (++connectionAttempts >= MAX_CONNECTION_ATTEMPTS) {
+          throw e;
+        }
+        try {
+          Thread.sleep(RECONNECT_DELAY * connectionAttempts);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while reconnecting", ie);
+        }
+        continue;
+      }
+      connectionAttempts = 0;
+      try {
+        for (Map.Entry<Integer, String> document : pending.entrySet()) {
+          sendDocument(client, documents, document.getKey(),
+              document.getValue(), attempts);
+        }
+        while (true) {
+          int index;
+          while (pending.size() < pipeline
+              && (index = next.getAndIncrement()) < documents.size()) {
+            String document;
+            try {
+              document = Files.toString(documents.get(index), UTF_8);
+            } catch (IOException e) {
+              failed.incrementAndGet();
+              System.err.println(documents.get(index) + ": " + e.getMessage());
+              continue;
+            }
+            bytes.addAndGet(document.length());
+            pending.put(index, delta ? document : null);
+            sendDocument(client, documents, index, document, attempts);
+          }
+          if (pending.isEmpty()) {
+            return;
+          }
+          FrameClient.Response response = client.receive();
+          String original = pending.remove(response.getId());
+          attempts.remove(response.getId());
+          receiveDocument(response, original, documents, outputDir);
+        }
+      } catch (IOException e) {
+        System.err.println("-> Connection lost, sending again " + pending.size()
+            + " documents: " + e);
+        dropFailedDocuments(documents, pending, attempts);
+      } finally {
+        client.close();
+      }
+    }
+  }
+
+  /**
+   * Send a document, reading it again if not kept.
+   *
+   * @param client
+   *          the connection
+   * @param documents
+   *          the documents
+   * @param index
+   *          the index of the document
+   * @param document
+   *          the document, or null to read it again
+   * @param attempts
+   *          the times every document in flight has been sent
+   * @throws IOException
+   *           if the document cannot be read or sent
+   */
+  private void sendDocument(final FrameClient client,
+      final List<File> documents, final int index, final String document,
+      final Map<Integer, Integer> attempts) throws IOException {
+    Integer sent = attempts.get(index);
+    attempts.put(index, sent == null ? 1 : sent + 1);
+    client.send(index, requestType, document != null ? document : Files
+        .toString(documents.get(index), UTF_8));
+  }
+
+  /**
+   * Count as failed the documents in flight already sent too many times, so
+   * that a document breaking the connection does not stop the others.
+   *
+   * @param documents
+   *          the documents
+   * @param pending
+   *          the documents in flight
+   * @param attempts
+   *          the times every document in flight has been sent
+   */
+  private void dropFailedDocuments(final List<File> documents,
+      final Map<Integer, String> pending, final Map<Integer, Integer> attempts) {
+    Iterator<Integer> indexes = pending.keySet().iterator();
+    while (indexes.hasNext()) {
+      int index = indexes.next();
+      Integer sent = attempts.get(index);
+      if (sent != null && sent >= MAX_ATTEMPTS) {
+        indexes.remove();
+        attempts.remove(index);
+        failed.incrementAndGet();
+        System.err.println(documents.get(index) + ": connection lost " + sent
+            + " times while annotating it");
+      }
+    }
+  }
+
+  /**
+   * Write an annotated document, or report its failure.
+   *
+   * @param response
+   *          the response of the server
+   * @param original
+   *          the document sent, kept only to merge a delta
+   * @param documents
+   *          the documents
+   * @param outputDir
+   *          the output directory
+   */
+  private void receiveDocument(final FrameClient.Response response,
+      final String original, final List<File> documents, final File outputDir) {
+    File document = documents.get(response.getId());
+    if (response.isError()) {
+      failed.incrementAndGet();
+      System.err.println(document + ": " + response.getPayload());
+      return;
+    }
+    try {
+      String annotatedDocument = delta ? StreamingNAF.merge(original,
+          response.getPayload()) : response.getPayload();
+      Files.write(annotatedDocument, new File(outputDir, document.getName()),
+          UTF_8);
+      annotated.incrementAndGet();
+    } catch (IOException e) {
+      failed.incrementAndGet();
+      System.err.println(document + ": " + e.getMessage());
+    }
+  }
+}
@@ -29,9 +29,14 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -40,9 +45,12 @@ import net.sourceforge.argparse4j.inf.Subparsers;
 import opennlp.tools.cmdline.CmdLineUtil;
 import opennlp.tools.namefind.TokenNameFinderModel;
 import opennlp.tools.util.TrainingParameters;
+import opennlp.tools.util.eval.FMeasure;
 
 import org.jdom2.JDOMException;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
 import com.google.common.io.Files;
 
 import eus.ixa.ixa.pipe.nerc.eval.CrossValidator;
@@ -50,6 +58,7 @@ import eus.ixa.ixa.pipe.nerc.eval.Evaluate;
 import eus.ixa.ixa.pipe.nerc.train.FixedTrainer;
 import eus.ixa.ixa.pipe.nerc.train.Flags;
 import eus.ixa.ixa.pipe.nerc.train.InputOutputUtils;
+import eus.ixa.ixa.pipe.nerc.train.ModelCompactor;
 import eus.ixa.ixa.pipe.nerc.train.Trainer;
 
 /**
@@ -109,6 +118,14 @@ public class CLI {
    * The parser that manages the cross validation sub-command.
    */
   private Subparser crossValidateParser;
+  /**
+   * The parser that manages the model compaction sub-command.
+   */
+  private Subparser compactParser;
+  /**
+   * The parser that manages the model snapshot sub-command.
+   */
+  private Subparser snapshotParser;
   /**
    * Parser to start TCP socket for server-client functionality.
    */
@@ -133,6 +150,10 @@ public class CLI {
     loadEvalParameters();
     crossValidateParser = subParsers.addParser("cross").help("Cross validation CLI");
     loadCrossValidateParameters();
+    compactParser = subParsers.addParser("compact").help("Model compaction CLI");
+    loadCompactParameters();
+    snapshotParser = subParsers.addParser("snapshot").help("Model snapshot CLI");
+    loadSnapshotParameters();
     serverParser = subParsers.addParser("server").help("Start TCP socket server");
     loadServerParameters();
     clientParser = subParsers.addParser("client").help("Send queries to the TCP socket server");
@@ -170,7 +191,15 @@ public class CLI {
       parsedArguments = argParser.parseArgs(args);
       System.err.println("CLI options: " + parsedArguments);
       if (args[0].equals("tag")) {
-        annotate(System.in, System.out);
+        if (parsedArguments.getString("inputDir") != null) {
+          if (parsedArguments.getString("outputDir") == null) {
+            System.err.println("--outputDir required with --inputDir!!");
+            System.exit(1);
+          }
+          annotateBatch();
+        } else {
+          annotate(System.in, System.out);
+        }
       } else if (args[0].equals("ote")) {
         extractOte(System.in, System.out);
       } else if (args[0].equals("eval")) {
@@ -179,6 +208,10 @@ public class CLI {
         train();
       } else if (args[0].equals("cross")) {
         crossValidate();
+      } else if (args[0].equals("compact")) {
+        compact();
+      } else if (args[0].equals("snapshot")) {
+        snapshot();
       } else if (args[0].equals("server")) {
         server();
       } else if (args[0].equals("client")) {
@@ -187,7 +220,7 @@ public class CLI {
     } catch (ArgumentParserException e) {
       argParser.handleError(e);
       System.out.println("Run java -jar target/ixa-pipe-nerc-" + version
-          + ".jar (tag|ote|train|eval|cross|server|client) -help for details");
+          + ".jar (tag|ote|train|eval|cross|compact|snapshot|server|client) -help for details");
       System.exit(1);
     }
   }
@@ -210,8 +243,6 @@ public class CLI {
         inputStream, "UTF-8"));
     BufferedWriter bwriter = new BufferedWriter(new OutputStreamWriter(
         outputStream, "UTF-8"));
-    // read KAF document from inputstream
-    KAFDocument kaf = KAFDocument.createFromStream(breader);
     // load parameters into a properties
     String model = parsedArguments.getString("model");
     String outputFormat = parsedArguments.getString("outputFormat");
@@ -219,6 +250,30 @@ public class CLI {
     String dictTag = parsedArguments.getString("dictTag");
     String dictPath = parsedArguments.getString("dictPath");
     String clearFeatures = parsedArguments.getString("clearFeatures");
+    String nafReader = parsedArguments.getString("nafReader");
+    String inputFormat = parsedArguments.getString("inputFormat");
+    String ensemble = parsedArguments.getString("ensemble");
+    String sentenceCache = String.valueOf(parsedArguments.getInt("sentenceCache"));
+    if (!inputFormat.equalsIgnoreCase("naf")) {
+      String lang = parsedArguments.getString("language");
+      if (lang == null) {
+        System.err.println("Language parameter required for " + inputFormat + " input!!");
+        System.exit(1);
+      }
+      StreamingNAF naf = new StreamingNAF(lang, TokenizedInput.readSentences(breader, inputFormat));
+      annotateStreaming(naf, bwriter, model, outputFormat, lexer, dictTag, dictPath, clearFeatures, ensemble, sentenceCache);
+      breader.close();
+      return;
+    }
+    if (nafReader.equalsIgnoreCase("stax")
+        && (outputFormat.equalsIgnoreCase("naf") || outputFormat.equalsIgnoreCase("opennlp"))) {
+      StreamingNAF naf = new StreamingNAF(CharStreams.toString(breader));
+      annotateStreaming(naf, bwriter, model, outputFormat, lexer, dictTag, dictPath, clearFeatures, ensemble, sentenceCache);
+      breader.close();
+      return;
+    }
+    // read KAF document from inputstream
+    KAFDocument kaf = KAFDocument.createFromStream(breader);
     // language parameter
     String lang = null;
     if (parsedArguments.getString("language") != null) {
@@ -231,28 +286,258 @@ public class CLI {
     } else {
       lang = kaf.getLang();
     }
-    Properties properties = setAnnotateProperties(model, lang, lexer, dictTag, dictPath, clearFeatures);
+    Properties properties = setAnnotateProperties(model, lang, lexer, dictTag, dictPath, clearFeatures, ensemble, sentenceCache);
+    Annotate annotator = new Annotate(properties);
+    annotateDocument(annotator, kaf, bwriter, model, outputFormat);
+    printCacheStatistics(annotator);
+    bwriter.close();
+    breader.close();
+  }
+
+  /**
+   * Named Entity tagging of every document of a directory, or of a file
+   * with a path per line, writing every annotated document to the output
+   * directory with the name of its input file. The resources are loaded
+   * once and the documents are annotated by several threads, each reading,
+   * annotating and writing a document at a time.
+   * 
+   * @throws IOException
+   *           if the documents cannot be listed or the resources loaded
+   */
+  public final void annotateBatch() throws IOException {
+    final File outputDir = new File(parsedArguments.getString("outputDir"));
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create the output directory " + outputDir);
+    }
+    final List<File> documents = BulkClient.listDocuments(new File(
+        parsedArguments.getString("inputDir")));
+    if (documents.isEmpty()) {
+      System.err.println("No documents to annotate!!");
+      return;
+    }
+    final String model = parsedArguments.getString("model");
+    final String outputFormat = parsedArguments.getString("outputFormat");
+    final String inputFormat = parsedArguments.getString("inputFormat");
+    final boolean streaming = !inputFormat.equalsIgnoreCase("naf")
+        || parsedArguments.getString("nafReader").equalsIgnoreCase("stax")
+        && (outputFormat.equalsIgnoreCase("naf") || outputFormat.equalsIgnoreCase("opennlp"));
+    // the models are loaded for the language of the first document
+    String lang = parsedArguments.getString("language");
+    if (lang == null) {
+      if (!inputFormat.equalsIgnoreCase("naf")) {
+        System.err.println("Language parameter required for " + inputFormat + " input!!");
+        System.exit(1);
+      }
+      lang = new StreamingNAF(Files.toString(documents.get(0), Charsets.UTF_8)).getLang();
+    }
+    final String language = lang;
+    int threads = parsedArguments.getInt("threads");
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    Properties properties = setAnnotateProperties(model, language,
+        parsedArguments.getString("lexer"), parsedArguments.getString("dictTag"),
+        parsedArguments.getString("dictPath"), parsedArguments.getString("clearFeatures"),
+        parsedArguments.getString("ensemble"), String.valueOf(parsedArguments.getInt("sentenceCache")));
+    final AtomicInteger failed = new AtomicInteger();
+    long start = System.nanoTime();
+    BatchAnnotator batchAnnotator = new BatchAnnotator(properties, threads);
+    try {
+      for (final File document : documents) {
+        batchAnnotator.submit(new BatchAnnotator.Task<Void>() {
+          public Void run(final Annotate annotator) {
+            File output = new File(outputDir, document.getName());
+            try (BufferedReader breader = Files.newReader(document, Charsets.UTF_8);
+                BufferedWriter bwriter = Files.newWriter(output, Charsets.UTF_8)) {
+              if (!inputFormat.equalsIgnoreCase("naf")) {
+                annotateDocument(annotator, new StreamingNAF(language,
+                    TokenizedInput.readSentences(breader, inputFormat)), bwriter, model, outputFormat);
+              } else if (streaming) {
+                StreamingNAF naf = new StreamingNAF(CharStreams.toString(breader));
+                checkLanguage(naf.getLang(), language);
+                annotateDocument(annotator, naf, bwriter, model, outputFormat);
+              } else {
+                KAFDocument kaf = KAFDocument.createFromStream(breader);
+                checkLanguage(kaf.getLang(), language);
+                annotateDocument(annotator, kaf, bwriter, model, outputFormat);
+              }
+            } catch (Exception e) {
+              failed.incrementAndGet();
+              output.delete();
+              System.err.println(document + ": " + e.getMessage());
+            }
+            return null;
+          }
+        });
+      }
+    } finally {
+      batchAnnotator.close();
+    }
+    try {
+      batchAnnotator.awaitTermination(Long.MAX_VALUE);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while annotating!", e);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.println(String.format(Locale.ROOT,
+        "-> Annotated %d documents (%d failed) with %d threads in %.2f s: %.1f documents/s",
+        documents.size() - failed.get(), failed.get(), threads, seconds,
+        (documents.size() - failed.get()) / seconds));
+  }
+
+  /**
+   * Check that the language of a document is the language of the models.
+   * 
+   * @param documentLanguage
+   *          the language of the document
+   * @param language
+   *          the language of the models
+   * @throws IOException
+   *           if the languages do not match
+   */
+  private static void checkLanguage(final String documentLanguage,
+      final String language) throws IOException {
+    if (!documentLanguage.equalsIgnoreCase(language)) {
+      throw new IOException("Language " + documentLanguage
+          + " of the document and " + language + " of the models do not match!!");
+    }
+  }
+
+  /**
+   * Named Entity tagging of a {@link KAFDocument} with an annotator.
+   * 
+   * @param annotator
+   *          the annotator
+   * @param kaf
+   *          the document
+   * @param bwriter
+   *          the writer of the annotated document
+   * @param model
+   *          the model
+   * @param outputFormat
+   *          the output format
+   * @throws IOException
+   *           if io problems
+   */
+  private void annotateDocument(final Annotate annotator,
+      final KAFDocument kaf, final BufferedWriter bwriter, final String model,
+      final String outputFormat) throws IOException {
     KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
-        "entities", "ixa-pipe-nerc-" + Files.getNameWithoutExtension(model), version + "-" + commit);
+        "entities", "ixa-pipe-nerc-" + Annotate.getModelName(model), version + "-" + commit);
     newLp.setBeginTimestamp();
-    Annotate annotator = new Annotate(properties);
-    annotator.annotateNEs(kaf);
+    NameAnnotations annotations = annotator.annotateNames(kaf);
     newLp.setEndTimestamp();
-    String kafToString = null;
     if (outputFormat.equalsIgnoreCase("conll03")) {
-      kafToString = annotator.annotateNEsToCoNLL2003(kaf);
+      annotator.annotateNEsToCoNLL2003(annotations, bwriter);
     } else if (outputFormat.equalsIgnoreCase("conll02")) {
-      kafToString = annotator.annotateNEsToCoNLL2002(kaf);
+      annotator.annotateNEsToCoNLL2002(annotations, bwriter);
     } else if (outputFormat.equalsIgnoreCase("opennlp")) {
-      kafToString = annotator.annotateNEsToOpenNLP(kaf);
+      bwriter.write(annotator.annotateNEsToOpenNLP(annotations));
     } else {
-      kafToString = annotator.annotateNEsToKAF(kaf);
+      bwriter.write(annotator.annotateNEsToKAF(annotations));
     }
-    bwriter.write(kafToString);
-    bwriter.close();
-    breader.close();
   }
   
+  /**
+   * Named Entity tagging of a {@link StreamingNAF} document, either read
+   * from NAF, extracting only the text and terms layers, or created from
+   * tokenized sentences.
+   * 
+   * @param naf
+   *          the document
+   * @param bwriter
+   *          the writer of the annotated document
+   * @param model
+   *          the model
+   * @param outputFormat
+   *          the output format
+   * @param lexer
+   *          the lexer option
+   * @param dictTag
+   *          the dictionary tagging option
+   * @param dictPath
+   *          the dictionaries path
+   * @param clearFeatures
+   *          the clear features option
+   * @param ensemble
+   *          the priority policy of an ensemble of models
+   * @param sentenceCache
+   *          the maximum number of sentences cached
+   * @throws IOException
+   *           if io problems or the NAF document is not well-formed
+   */
+  private void annotateStreaming(final StreamingNAF naf,
+      final BufferedWriter bwriter, final String model,
+      final String outputFormat, final String lexer, final String dictTag,
+      final String dictPath, final String clearFeatures, final String ensemble,
+      final String sentenceCache) throws IOException {
+    String lang = null;
+    if (parsedArguments.getString("language") != null) {
+      lang = parsedArguments.getString("language");
+      if (!naf.getLang().equalsIgnoreCase(lang)) {
+        System.err
+            .println("Language parameter in NAF and CLI do not match!!");
+        System.exit(1);
+      }
+    } else {
+      lang = naf.getLang();
+    }
+    Properties properties = setAnnotateProperties(model, lang, lexer, dictTag, dictPath, clearFeatures, ensemble, sentenceCache);
+    Annotate annotator = new Annotate(properties);
+    annotateDocument(annotator, naf, bwriter, model, outputFormat);
+    printCacheStatistics(annotator);
+    bwriter.close();
+  }
+
+  /**
+   * Named Entity tagging of a {@link StreamingNAF} document with an
+   * annotator.
+   * 
+   * @param annotator
+   *          the annotator
+   * @param naf
+   *          the document
+   * @param bwriter
+   *          the writer of the annotated document
+   * @param model
+   *          the model
+   * @param outputFormat
+   *          the output format
+   * @throws IOException
+   *           if io problems
+   */
+  private void annotateDocument(final Annotate annotator,
+      final StreamingNAF naf, final BufferedWriter bwriter, final String model,
+      final String outputFormat) throws IOException {
+    Date beginTimestamp = new Date();
+    NameAnnotations annotations = annotator.annotateNames(naf.getSentences(), naf.getTokenIds());
+    Date endTimestamp = new Date();
+    if (outputFormat.equalsIgnoreCase("conll03")) {
+      annotator.annotateNEsToCoNLL2003(annotations, bwriter);
+    } else if (outputFormat.equalsIgnoreCase("conll02")) {
+      annotator.annotateNEsToCoNLL2002(annotations, bwriter);
+    } else if (outputFormat.equalsIgnoreCase("opennlp")) {
+      bwriter.write(annotator.annotateNEsToOpenNLP(annotations));
+    } else {
+      bwriter.write(naf.toNAF(annotations,
+          "ixa-pipe-nerc-" + Annotate.getModelName(model), version + "-" + commit,
+          beginTimestamp, endTimestamp));
+    }
+  }
+
+  /**
+   * Print the hit rate of the sentence cache, if enabled.
+   * 
+   * @param annotator
+   *          the annotator
+   */
+  private static void printCacheStatistics(final Annotate annotator) {
+    if (annotator.getSentenceCache() != null) {
+      System.err.println("Sentence cache: " + annotator.getSentenceCache());
+    }
+  }
+
   /**
    * Main method to do Opinion Target Extraction (OTE).
    * 
@@ -379,6 +664,69 @@ public class CLI {
     crossValidator.crossValidate(params);
   }
   
+  /**
+   * Write a snapshot of a model, which is loaded by mapping it in memory
+   * instead of deserializing it, and check that it loads.
+   * 
+   * @throws IOException
+   *           if the model cannot be read or the snapshot written
+   */
+  public final void snapshot() throws IOException {
+    String model = parsedArguments.getString("model");
+    String outModel = parsedArguments.getString("outputModel");
+    if (outModel == null) {
+      outModel = new File(new File(model).getAbsoluteFile().getParentFile(),
+          Files.getNameWithoutExtension(model) + "-snapshot.bin").getPath();
+    }
+    ModelLoader.writeSnapshot(new File(model), new File(outModel));
+    long start = System.nanoTime();
+    ModelLoader.loadModel(new File(outModel));
+    System.err.println("Model size: " + new File(model).length() + " -> "
+        + new File(outModel).length() + " bytes, loaded in "
+        + (System.nanoTime() - start) / 1000000 + " ms");
+    System.err.println("Wrote model snapshot to " + outModel);
+  }
+
+  /**
+   * Main access to the model compaction. If a testset is provided, the
+   * original and the compacted models are evaluated and the F1 delta
+   * reported.
+   * 
+   * @throws IOException
+   *           input output exception if problems with the models
+   */
+  public final void compact() throws IOException {
+
+    String model = parsedArguments.getString("model");
+    String quantization = parsedArguments.getString("quantization");
+    String outModel = parsedArguments.getString("outputModel");
+    if (outModel == null) {
+      outModel = new File(new File(model).getAbsoluteFile().getParentFile(),
+          Files.getNameWithoutExtension(model) + "-" + quantization + ".bin").getPath();
+    }
+    ModelCompactor compactor = new ModelCompactor(quantization);
+    compactor.compact(new File(model), new File(outModel));
+    System.err.println(compactor.getReport());
+    System.err.println("Model size: " + new File(model).length() + " -> "
+        + new File(outModel).length() + " bytes");
+    System.err.println("Wrote compacted model to " + outModel);
+    String testset = parsedArguments.getString("testset");
+    if (testset != null) {
+      String lang = parsedArguments.getString("language");
+      String corpusFormat = parsedArguments.getString("corpusFormat");
+      String netypes = parsedArguments.getString("types");
+      String clearFeatures = parsedArguments.getString("clearFeatures");
+      FMeasure original = new Evaluate(setEvalProperties(lang, model, testset,
+          corpusFormat, netypes, clearFeatures)).getFMeasure();
+      FMeasure compacted = new Evaluate(setEvalProperties(lang, outModel,
+          testset, corpusFormat, netypes, clearFeatures)).getFMeasure();
+      System.out.println("Original model:\n" + original);
+      System.out.println("Compacted model:\n" + compacted);
+      System.out.println("F1 delta: "
+          + (compacted.getFMeasure() - original.getFMeasure()));
+    }
+  }
+  
   /**
    * Set up the TCP socket for annotation.
    */
@@ -393,9 +741,47 @@ public class CLI {
     String dictPath = parsedArguments.getString("dictPath");
     String clearFeatures = parsedArguments.getString("clearFeatures");
     String outputFormat = parsedArguments.getString("outputFormat");
+    String warmUp = String.valueOf(parsedArguments.getInt("warmUp"));
+    String warmUpCorpus = parsedArguments.getString("warmUpCorpus");
+    String nafReader = parsedArguments.getString("nafReader");
+    String inputFormat = parsedArguments.getString("inputFormat");
+    String ensemble = parsedArguments.getString("ensemble");
+    String sentenceCache = String.valueOf(parsedArguments.getInt("sentenceCache"));
+    String workers = String.valueOf(parsedArguments.getInt("workers"));
+    String queueSize = String.valueOf(parsedArguments.getInt("queueSize"));
+    String socketTimeout = String.valueOf(parsedArguments.getInt("socketTimeout"));
+    String transport = parsedArguments.getString("transport");
+    String maxDocumentSize = String.valueOf(parsedArguments.getInt("maxDocumentSize"));
+    String largeWorkers = String.valueOf(parsedArguments.getInt("largeWorkers"));
+    String largeDocumentSize = String.valueOf(parsedArguments.getInt("largeDocumentSize"));
+    String deadline = String.valueOf(parsedArguments.getLong("deadline"));
+    String metricsPort = String.valueOf(parsedArguments.getInt("metricsPort"));
+    String swapDir = parsedArguments.getString("swapDir");
+    String models = parsedArguments.getString("models");
+    String modelMemory = String.valueOf(parsedArguments.getLong("modelMemory"));
+    String drainTimeout = String.valueOf(parsedArguments.getLong("drainTimeout"));
     // language parameter
     String lang = parsedArguments.getString("language");
     Properties serverproperties = setNameServerProperties(port, model, lang, lexer, dictTag, dictPath, clearFeatures, outputFormat);
+    serverproperties.setProperty("warmUp", warmUp);
+    serverproperties.setProperty("warmUpCorpus", warmUpCorpus);
+    serverproperties.setProperty("nafReader", nafReader);
+    serverproperties.setProperty("inputFormat", inputFormat);
+    serverproperties.setProperty("ensemble", ensemble);
+    serverproperties.setProperty("sentenceCache", sentenceCache);
+    serverproperties.setProperty("workers", workers);
+    serverproperties.setProperty("queueSize", queueSize);
+    serverproperties.setProperty("socketTimeout", socketTimeout);
+    serverproperties.setProperty("transport", transport);
+    serverproperties.setProperty("maxDocumentSize", maxDocumentSize);
+    serverproperties.setProperty("largeWorkers", largeWorkers);
+    serverproperties.setProperty("largeDocumentSize", largeDocumentSize);
+    serverproperties.setProperty("deadline", deadline);
+    serverproperties.setProperty("metricsPort", metricsPort);
+    serverproperties.setProperty("swapDir", swapDir);
+    serverproperties.setProperty("models", models);
+    serverproperties.setProperty("modelMemory", modelMemory);
+    serverproperties.setProperty("drainTimeout", drainTimeout);
     if (task.equalsIgnoreCase("ote")) {
       new TargetExtractorServer(serverproperties);
     } else {
@@ -416,6 +802,14 @@ public class CLI {
 
     String host = parsedArguments.getString("host");
     String port = parsedArguments.getString("port");
+    if (parsedArguments.getString("input") != null) {
+      bulkClient(host, port);
+      return;
+    }
+    if (parsedArguments.getString("transport").equalsIgnoreCase("frames")) {
+      frameClient(host, port);
+      return;
+    }
     try (Socket socketClient = new Socket(host, Integer.parseInt(port));
         BufferedReader inFromUser = new BufferedReader(new InputStreamReader(
             System.in, "UTF-8"));
@@ -457,6 +851,88 @@ public class CLI {
     }
   }
 
+  /**
+   * Send the stdin to a server with the frames transport and write the
+   * response to stdout.
+   * 
+   * @param host
+   *          the host of the server
+   * @param port
+   *          the port of the server
+   */
+  private void frameClient(final String host, final String port) {
+    try (FrameClient frameClient = new FrameClient(host, Integer.parseInt(port));
+        BufferedReader inFromUser = new BufferedReader(new InputStreamReader(
+            System.in, "UTF-8"));
+        BufferedWriter outToUser = new BufferedWriter(new OutputStreamWriter(
+            System.out, "UTF-8"))) {
+      StringBuilder inText = new StringBuilder();
+      String line;
+      while ((line = inFromUser.readLine()) != null) {
+        inText.append(line).append("\n");
+      }
+      boolean delta = parsedArguments.getString("delta").equalsIgnoreCase("yes");
+      boolean compress = parsedArguments.getString("compress").equalsIgnoreCase("yes");
+      frameClient.send(1, (byte) (FrameServer.ANNOTATE | (delta ? FrameServer.DELTA : 0)
+          | (compress ? FrameServer.GZIP : 0)), inText.toString());
+      FrameClient.Response response = frameClient.receive();
+      if (response.isError()) {
+        System.err.println(response.getPayload());
+        System.exit(1);
+      }
+      // the server only sent the entities layer to be merged here
+      outToUser.write(delta ? StreamingNAF.merge(inText.toString(), response.getPayload())
+          : response.getPayload());
+    } catch (UnknownHostException e) {
+      System.err.println("ERROR: Unknown hostname or IP address!");
+      System.exit(1);
+    } catch (NumberFormatException e) {
+      System.err.println("Port number not correct!");
+      System.exit(1);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Send every document of a directory or a file list to a server with the
+   * frames transport and write the responses to the output directory.
+   * 
+   * @param host
+   *          the host of the server
+   * @param port
+   *          the port of the server
+   */
+  private void bulkClient(final String host, final String port) {
+    if (!parsedArguments.getString("transport").equalsIgnoreCase("frames")) {
+      System.err.println("ERROR: --input requires --transport frames!");
+      System.exit(1);
+    }
+    String outputDir = parsedArguments.getString("outputDir");
+    if (outputDir == null) {
+      System.err.println("ERROR: --input requires --outputDir!");
+      System.exit(1);
+    }
+    int connections = parsedArguments.getInt("connections");
+    int pipeline = parsedArguments.getInt("pipeline");
+    try {
+      List<File> documents = BulkClient.listDocuments(new File(parsedArguments.getString("input")));
+      BulkClient bulkClient = new BulkClient(host, Integer.parseInt(port), connections, pipeline,
+          parsedArguments.getString("delta").equalsIgnoreCase("yes"),
+          parsedArguments.getString("compress").equalsIgnoreCase("yes"));
+      bulkClient.annotate(documents, new File(outputDir));
+    } catch (UnknownHostException e) {
+      System.err.println("ERROR: Unknown hostname or IP address!");
+      System.exit(1);
+    } catch (NumberFormatException e) {
+      System.err.println("Port number not correct!");
+      System.exit(1);
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
   /**
    * Create the available parameters for NER tagging.
    */
@@ -464,7 +940,23 @@ public class CLI {
     
     annotateParser.addArgument("-m", "--model")
         .required(true)
-        .help("Pass the model to do the tagging as a parameter.\n");
+        .help("Pass the model to do the tagging as a parameter; several comma-separated models " +
+            "are run as an ensemble in a single pass.\n");
+    annotateParser.addArgument("--sentenceCache")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(0, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_SENTENCE_CACHE)
+        .help("Maximum number of sentences whose entities are cached to annotate repeated sentences " +
+            "only once; it is only used if adaptive features are not active, that is, with " +
+            "--clearFeatures yes or dictionary tagging only; it defaults to 0, no cache.\n");
+    annotateParser.addArgument("--ensemble")
+        .required(false)
+        .choices("order", "longest")
+        .setDefault(Flags.DEFAULT_ENSEMBLE)
+        .help("Choose which span is kept when the spans of an ensemble of models overlap: 'order' " +
+            "keeps the span of the model passed first, 'longest' the longest span; it defaults " +
+            "to 'order'.\n");
     annotateParser.addArgument("--clearFeatures")
         .required(false)
         .choices("yes", "no", "docstart")
@@ -497,6 +989,36 @@ public class CLI {
         .setDefault(Flags.DEFAULT_DICT_PATH)
         .help("Provide the path to the dictionaries for direct dictionary tagging; it ONLY WORKS if --dictTag " +
         		"option is activated.\n");
+    annotateParser.addArgument("--inputFormat")
+        .required(false)
+        .choices("naf", "tok", "conll", "jsonl")
+        .setDefault(Flags.DEFAULT_INPUT_FORMAT)
+        .help("Choose input format: NAF, tokenized text with one sentence per line (tok), one token "
+            + "per line in the first column with empty lines between sentences (conll) or one JSON "
+            + "array of tokens per line (jsonl); the language parameter is required for every "
+            + "format but NAF; it defaults to NAF.\n");
+    annotateParser.addArgument("--nafReader")
+        .required(false)
+        .choices("jdom", "stax")
+        .setDefault(Flags.DEFAULT_NAF_READER)
+        .help("Choose how to read the input NAF; 'stax' only reads the text and terms layers and "
+            + "adds the entities layer to the original document, for naf and opennlp output; "
+            + "it defaults to 'jdom'.\n");
+    annotateParser.addArgument("--inputDir")
+        .required(false)
+        .help("Directory of documents, or file with a document path per line, to annotate in batch "
+            + "loading the resources once, instead of the stdin; it requires --outputDir.\n");
+    annotateParser.addArgument("--outputDir")
+        .required(false)
+        .help("Directory where the documents annotated in batch are written with the name of their "
+            + "input as soon as they are annotated.\n");
+    annotateParser.addArgument("--threads")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(0, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_THREADS)
+        .help("Number of documents annotated at the same time in batch, each by its own thread; "
+            + "it defaults to 0, the number of processors.\n");
   }
   
   /**
@@ -578,6 +1100,59 @@ public class CLI {
   }
   
 
+  /**
+   * Create the parameters available for model snapshots.
+   */
+  private void loadSnapshotParameters() {
+    snapshotParser.addArgument("-m", "--model")
+        .required(true)
+        .help("Pass the maxent or perceptron model to snapshot as a parameter.\n");
+    snapshotParser.addArgument("-o", "--outputModel")
+        .required(false)
+        .help("The snapshot, used as any other model; it defaults to the model name plus "
+            + "'-snapshot'.\n");
+  }
+
+  /**
+   * Create the parameters available for model compaction.
+   */
+  private void loadCompactParameters() {
+    compactParser.addArgument("-m", "--model")
+        .required(true)
+        .help("Pass the model to compact as a parameter.\n");
+    compactParser.addArgument("-o", "--outputModel")
+        .required(false)
+        .help("The compacted model; it defaults to the model name plus the quantization.\n");
+    compactParser.addArgument("-q", "--quantization")
+        .required(false)
+        .choices("int8", "float16")
+        .setDefault(Flags.DEFAULT_QUANTIZATION)
+        .help("Choose the quantization of the model weights; it defaults to int8.\n");
+    compactParser.addArgument("-t", "--testset")
+        .required(false)
+        .help("Evaluate the original and compacted models on this test set and report the F1 delta.\n");
+    compactParser.addArgument("-l", "--language")
+        .required(false)
+        .choices("de", "en", "es", "eu", "it", "nl")
+        .setDefault(Flags.DEFAULT_LANGUAGE)
+        .help("Choose language; it defaults to 'en'.\n");
+    compactParser.addArgument("--clearFeatures")
+        .required(false)
+        .choices("yes", "no", "docstart")
+        .setDefault(Flags.DEFAULT_FEATURE_FLAG)
+        .help("Reset the adaptive features; defaults to 'no'.\n");
+    compactParser.addArgument("-f","--corpusFormat")
+        .required(false)
+        .choices("conll02", "conll03", "opennlp")
+        .setDefault(Flags.DEFAULT_EVAL_FORMAT)
+        .help("Choose format of the test set; it defaults to conll02 format.\n");
+    compactParser.addArgument("--types")
+        .required(false)
+        .setDefault(Flags.DEFAULT_NE_TYPES)
+        .help("Choose which Sequence types used for evaluation; the argument must be a comma separated" +
+                " string; e.g., 'person,organization'.\n");
+  }
+
   /**
    * Create the available parameters for NER tagging.
    */
@@ -593,7 +1168,23 @@ public class CLI {
         .help("Port to be assigned to the server.\n");
     serverParser.addArgument("-m", "--model")
         .required(true)
-        .help("Pass the model to do the tagging as a parameter.\n");
+        .help("Pass the model to do the tagging as a parameter; several comma-separated models " +
+            "are run as an ensemble in a single pass.\n");
+    serverParser.addArgument("--sentenceCache")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(0, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_SENTENCE_CACHE)
+        .help("Maximum number of sentences whose entities are cached to annotate repeated sentences " +
+            "only once; it is only used if adaptive features are not active, that is, with " +
+            "--clearFeatures yes or dictionary tagging only; it defaults to 0, no cache.\n");
+    serverParser.addArgument("--ensemble")
+        .required(false)
+        .choices("order", "longest")
+        .setDefault(Flags.DEFAULT_ENSEMBLE)
+        .help("Choose which span is kept when the spans of an ensemble of models overlap: 'order' " +
+            "keeps the span of the model passed first, 'longest' the longest span; it defaults " +
+            "to 'order'.\n");
     serverParser.addArgument("--clearFeatures")
         .required(false)
         .choices("yes", "no", "docstart")
@@ -626,6 +1217,126 @@ public class CLI {
         .setDefault(Flags.DEFAULT_DICT_PATH)
         .help("Provide the path to the dictionaries for direct dictionary tagging; it ONLY WORKS if --dictTag " +
                 "option is activated.\n");
+    serverParser.addArgument("--warmUp")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(0, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_WARMUP)
+        .help("Maximum number of warm-up iterations run before accepting requests; the warm-up " +
+                "stops earlier when the latency stabilizes; it defaults to 0 (no warm-up).\n");
+    serverParser.addArgument("--warmUpCorpus")
+        .required(false)
+        .setDefault(Flags.DEFAULT_WARMUP_CORPUS)
+        .help("NAF document to be used for warm-up; it defaults to a built-in corpus.\n");
+    serverParser.addArgument("--inputFormat")
+        .required(false)
+        .choices("naf", "tok", "conll", "jsonl")
+        .setDefault(Flags.DEFAULT_INPUT_FORMAT)
+        .help("Choose input format: NAF, tokenized text with one sentence per line (tok), one token "
+            + "per line in the first column with empty lines between sentences (conll) or one JSON "
+            + "array of tokens per line (jsonl); the language parameter is required for every "
+            + "format but NAF; it defaults to NAF.\n");
+    serverParser.addArgument("--nafReader")
+        .required(false)
+        .choices("jdom", "stax")
+        .setDefault(Flags.DEFAULT_NAF_READER)
+        .help("Choose how to read the NAF documents; 'stax' only reads the text and terms layers and "
+            + "adds the entities layer to the original document, for naf and opennlp output; "
+            + "it defaults to 'jdom'.\n");
+    serverParser.addArgument("--workers")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(1, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_WORKERS)
+        .help("Number of connections annotated concurrently, each worker with its own annotator "
+            + "sharing the models; it defaults to 1.\n");
+    serverParser.addArgument("--queueSize")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(1, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_QUEUE_SIZE)
+        .help("Maximum number of accepted connections waiting for a worker and, with the socket "
+            + "transport, of connections whose document is being read; further connections "
+            + "are rejected with an error; it defaults to 50.\n");
+    serverParser.addArgument("--socketTimeout")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(0, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_SOCKET_TIMEOUT)
+        .help("Milliseconds to wait for a client reading the request or the response before "
+            + "closing the connection; 0 waits forever; it defaults to 60000.\n");
+    serverParser.addArgument("--transport")
+        .required(false)
+        .choices("socket", "frames", "http")
+        .setDefault(Flags.DEFAULT_TRANSPORT)
+        .help("Choose the protocol: 'socket' reads one document per connection until the end of "
+            + "the document; 'frames' reads length-prefixed frames, many per connection, with "
+            + "non-blocking IO; 'http' serves POST requests to /annotate with keep-alive; it "
+            + "defaults to 'socket'.\n");
+    serverParser.addArgument("--maxDocumentSize")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(1, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_MAX_DOCUMENT_SIZE)
+        .help("Largest document in bytes accepted; larger documents are rejected with an error; "
+            + "it defaults to 64MB.\n");
+    serverParser.addArgument("--largeWorkers")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(0, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_LARGE_WORKERS)
+        .help("Number of additional workers annotating only the documents larger than "
+            + "--largeDocumentSize, in their own queue, so that large documents do not delay "
+            + "the small ones; it defaults to 0, every document in the same queue.\n");
+    serverParser.addArgument("--largeDocumentSize")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(0, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_LARGE_DOCUMENT_SIZE)
+        .help("Size in bytes above which a document is annotated by the --largeWorkers; it "
+            + "defaults to 1MB.\n");
+    serverParser.addArgument("--deadline")
+        .required(false)
+        .type(Long.class)
+        .choices(Arguments.range(0L, Long.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_DEADLINE)
+        .help("Milliseconds a request can wait for a worker before being rejected with an error; "
+            + "it defaults to 0, no deadline.\n");
+    serverParser.addArgument("--metricsPort")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(0, 65535))
+        .setDefault(Flags.DEFAULT_METRICS_PORT)
+        .help("Port of an HTTP server, listening only on the loopback interface, publishing the "
+            + "metrics of the server in /metrics and, with --swapDir, swapping the model with the "
+            + "path POSTed to /swap; the http transport always publishes the metrics in its own "
+            + "port; it defaults to 0, disabled.\n");
+    serverParser.addArgument("--swapDir")
+        .required(false)
+        .setDefault(Flags.DEFAULT_SWAP_DIR)
+        .help("Directory of the models which can replace the model of the server by POSTing "
+            + "their path, relative to this directory, to /swap on the --metricsPort; paths "
+            + "outside the directory are rejected; it defaults to off, /swap disabled.\n");
+    serverParser.addArgument("--models")
+        .required(false)
+        .setDefault(Flags.DEFAULT_MODELS)
+        .help("Properties file declaring more models, each with <id>.model, <id>.language and "
+            + "optionally other <id>.<option> overriding the server options; documents are routed "
+            + "to them by model id or language and the models are loaded the first time they are used.\n");
+    serverParser.addArgument("--modelMemory")
+        .required(false)
+        .type(Long.class)
+        .choices(Arguments.range(0L, Long.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_MODEL_MEMORY)
+        .help("Megabytes the models of --models may use before the least recently used are "
+            + "unloaded; it defaults to 0, no limit.\n");
+    serverParser.addArgument("--drainTimeout")
+        .required(false)
+        .type(Long.class)
+        .choices(Arguments.range(0L, Long.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_DRAIN_TIMEOUT)
+        .help("Milliseconds to finish the requests in flight when the server is stopped; "
+            + "it defaults to 30000.\n");
   }
   
   private void loadClientParameters() {
@@ -637,6 +1348,43 @@ public class CLI {
         .required(false)
         .setDefault(Flags.DEFAULT_HOSTNAME)
         .help("Hostname or IP where the TCP server is running.\n");
+    clientParser.addArgument("--transport")
+        .required(false)
+        .choices("socket", "frames")
+        .setDefault(Flags.DEFAULT_TRANSPORT)
+        .help("Choose the protocol of the server; it defaults to 'socket'.\n");
+    clientParser.addArgument("--input")
+        .required(false)
+        .help("Directory of documents, or file with a document path per line, to annotate in bulk "
+            + "instead of the stdin; it requires --transport frames and --outputDir.\n");
+    clientParser.addArgument("--outputDir")
+        .required(false)
+        .help("Directory where the documents annotated in bulk are written with the name of their input.\n");
+    clientParser.addArgument("--connections")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(1, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_CONNECTIONS)
+        .help("Number of connections to the server in bulk mode; it defaults to 4.\n");
+    clientParser.addArgument("--pipeline")
+        .required(false)
+        .type(Integer.class)
+        .choices(Arguments.range(1, Integer.MAX_VALUE))
+        .setDefault(Flags.DEFAULT_PIPELINE)
+        .help("Number of documents sent through every connection without waiting for the "
+            + "response in bulk mode; it defaults to 2.\n");
+    clientParser.addArgument("--delta")
+        .required(false)
+        .choices("yes", "no")
+        .setDefault("no")
+        .help("Ask the server with the frames transport only for the new entities layer of the NAF "
+            + "documents and merge it locally, to save bandwidth; it defaults to 'no'.\n");
+    clientParser.addArgument("--compress")
+        .required(false)
+        .choices("yes", "no")
+        .setDefault("no")
+        .help("Compress the documents and the responses with gzip with the frames transport; "
+            + "it defaults to 'no'.\n");
   }
 
   /**
@@ -646,9 +1394,12 @@ public class CLI {
    * @param lexer rule based parameter
    * @param dictTag directly tag from a dictionary
    * @param dictPath directory to the dictionaries
+   * @param clearFeatures reset the adaptive features
+   * @param ensemble the priority policy of an ensemble of models
+   * @param sentenceCache the maximum number of sentences cached
    * @return the properties object
    */
-  private Properties setAnnotateProperties(String model, String language, String lexer, String dictTag, String dictPath, String clearFeatures) {
+  private Properties setAnnotateProperties(String model, String language, String lexer, String dictTag, String dictPath, String clearFeatures, String ensemble, String sentenceCache) {
     Properties annotateProperties = new Properties();
     annotateProperties.setProperty("model", model);
     annotateProperties.setProperty("language", language);
@@ -656,6 +1407,8 @@ public class CLI {
     annotateProperties.setProperty("dictTag", dictTag);
     annotateProperties.setProperty("dictPath", dictPath);
     annotateProperties.setProperty("clearFeatures", clearFeatures);
+    annotateProperties.setProperty("ensemble", ensemble);
+    annotateProperties.setProperty("sentenceCache", sentenceCache);
     return annotateProperties;
   }
   
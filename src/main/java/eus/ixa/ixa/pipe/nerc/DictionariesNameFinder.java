@@ -17,8 +17,8 @@
 package eus.ixa.ixa.pipe.nerc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import eus.ixa.ixa.pipe.nerc.dict.Dictionaries;
 
@@ -108,55 +108,42 @@ public class DictionariesNameFinder implements NameFinder {
    * @return spans of the Named Entities
    */
   public final Span[] nercToSpans(final String[] tokens) {
-    List<Span> neSpans = new ArrayList<Span>();
-    for (Map<String, String> neDict : dictionaries.getIgnoreCaseDictionaries()) {
-      for (Map.Entry<String, String> neEntry : neDict.entrySet()) {
-        String neForm = neEntry.getKey();
-        String neType = neEntry.getValue();
-        List<Integer> neIds = StringUtils.exactTokenFinderIgnoreCase(neForm,
-            tokens);
-        if (!neIds.isEmpty()) {
-          for (int i = 0; i < neIds.size(); i += 2) {
-            Span neSpan = new Span(neIds.get(i), neIds.get(i+1), neType);
-            neSpans.add(neSpan);
-            if (debug) {
-              System.err.println(neSpans.toString());
-            }
-          }
-        }
-      }
-    }
-    return neSpans.toArray(new Span[neSpans.size()]);
+    SpanBuffer spans = new SpanBuffer();
+    dictionaries.getIgnoreCaseIndex().find(tokens, 0, spans);
+    return toSpans(spans);
   }
 
   /**
-   * Detects Named Entities in a {@link Dictionaries} by NE type This method is
-   * case sensitive.
+   * Detects Named Entities in a {@link Dictionaries} by NE type, case
+   * sensitive.
    * 
    * @param tokens
    *          the tokenized sentence
-   * @return spans of the Named Entities all
+   * @return spans of the Named Entities
    */
   public final Span[] nercToSpansExact(final String[] tokens) {
-    List<Span> neSpans = new ArrayList<Span>();
-    for (Map<String, String> neDict : dictionaries.getDictionaries()) {
-      for (Map.Entry<String, String> neEntry : neDict.entrySet()) {
-        String neForm = neEntry.getKey();
-        String neType = neEntry.getValue();
-        List<Integer> neIds = StringUtils.exactTokenFinder(neForm,
-            tokens);
-        if (!neIds.isEmpty()) {
-          for (int i = 0; i < neIds.size(); i += 2) {
-            Span neSpan = new Span(neIds.get(i), neIds.get(i+1), neType);
-            neSpans.add(neSpan);
-            if (debug) {
-              System.err.println(neSpans.toString());
-            }
-          }
-        }
-      }
+    SpanBuffer spans = new SpanBuffer();
+    dictionaries.getIndex().find(tokens, 0, spans);
+    return toSpans(spans);
+  }
+
+  /**
+   * Convert the buffered spans to {@link Span} objects.
+   * 
+   * @param spans
+   *          the buffer
+   * @return the spans
+   */
+  private Span[] toSpans(final SpanBuffer spans) {
+    Span[] neSpans = new Span[spans.size()];
+    for (int i = 0; i < neSpans.length; i++) {
+      neSpans[i] = new Span(spans.getStart(i), spans.getEnd(i),
+          spans.getType(i));
+    }
+    if (debug) {
+      System.err.println(Arrays.toString(neSpans));
     }
-    return neSpans.toArray(new Span[neSpans.size()]);
+    return neSpans;
   }
 
   /**
@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Client of a {@link FrameServer} over a persistent connection. Requests can
+ * be sent without waiting for the responses, which are read in the order the
+ * server completes them and matched to their requests by id. A client
+ * should not be shared between threads sending requests, nor between threads
+ * receiving responses.
+ *
+ * @author ragerri
+ * @version 2015-11-30
+ */
+public class FrameClient implements Closeable {
+
+  /**
+   * The connection to the server.
+   */
+  private final Socket socket;
+  /**
+   * The stream of the requests.
+   */
+  private final DataOutputStream toServer;
+  /**
+   * The stream of the responses.
+   */
+  private final DataInputStream fromServer;
+
+  /**
+   * Connect to a frame server.
+   *
+   * @param host
+   *          the hostname or IP of the server
+   * @param port
+   *          the port of the server
+   * @throws IOException
+   *           if the connection fails
+   */
+  public FrameClient(final String host, final int port) throws IOException {
+    this.socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    this.toServer = new DataOutputStream(new BufferedOutputStream(
+        socket.getOutputStream()));
+    this.fromServer = new DataInputStream(new BufferedInputStream(
+        socket.getInputStream()));
+  }
+
+  /**
+   * Send a document to be annotated.
+   *
+   * @param requestId
+   *          the id of the request, returned with the response
+   * @param document
+   *          the document
+   * @throws IOException
+   *           if io error
+   */
+  public final void send(final int requestId, final String document)
+      throws IOException {
+    send(requestId, FrameServer.ANNOTATE, document);
+  }
+
+  /**
+   * Send a request of some type, compressing the payload if the type has the
+   * {@link FrameServer#GZIP} flag.
+   *
+   * @param requestId
+   *          the id of the request, returned with the response
+   * @param type
+   *          the type of the request
+   * @param payload
+   *          the payload of the request
+   * @throws IOException
+   *           if io error
+   */
+  public final void send(final int requestId, final byte type,
+      final String payload) throws IOException {
+    ByteBuffer frame = FrameServer.encode(requestId, type, payload);
+    toServer.write(frame.array(), 0, frame.limit());
+    toServer.flush();
+  }
+
+  /**
+   * Wait for the next response.
+   *
+   * @return the response
+   * @throws IOException
+   *           if io error or the server closed the connection
+   */
+  public final Response receive() throws IOException {
+    int length = fromServer.readInt();
+    int requestId = fromServer.readInt();
+    byte type = fromServer.readByte();
+    byte[] payload = new byte[length];
+    fromServer.readFully(payload);
+    if ((type & FrameServer.GZIP) != 0) {
+      payload = FrameServer.gunzip(payload, Integer.MAX_VALUE);
+    }
+    return new Response(requestId,
+        (type & FrameServer.TYPE_MASK) == FrameServer.ERROR,
+        FrameServer.decode(payload));
+  }
+
+  @Override
+  public final void close() throws IOException {
+    socket.close();
+  }
+
+  /**
+   * A response of the server.
+   */
+  public static final class Response {
+
+    /**
+     * The id of the request.
+     */
+    private final int id;
+    /**
+     * Whether the request failed.
+     */
+    private final boolean error;
+    /**
+     * The annotated document or the error message.
+     */
+    private final String payload;
+
+    /**
+     * Construct a response.
+     *
+     * @param requestId
+     *          the id of the request
+     * @param isError
+     *          whether the request failed
+     * @param responsePayload
+     *          the annotated document or the error message
+     */
+    private Response(final int requestId, final boolean isError,
+        final String responsePayload) {
+      this.id = requestId;
+      this.error = isError;
+      this.payload = responsePayload;
+    }
+
+    /**
+     * Get the id of the request.
+     *
+     * @return the id
+     */
+    public int getId() {
+      return id;
+    }
+
+    /**
+     * Check whether the request failed.
+     *
+     * @return true if the payload is an error message
+     */
+    public boolean isError() {
+      return error;
+    }
+
+    /**
+     * Get the annotated document or the error message.
+     *
+     * @return the payload
+     */
+    public String getPayload() {
+      return payload;
+    }
+  }
+}
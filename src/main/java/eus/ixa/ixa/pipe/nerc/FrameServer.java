@@ -0,0 +1,701 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Non-blocking TCP transport exchanging length-prefixed frames over
+ * persistent connections. Every frame starts with a header of
+ * {@link #HEADER_SIZE} bytes, the length of the payload as an int, the
+ * request id as an int and the frame type as a byte, followed by the UTF-8
+ * payload. A client can send many requests through a connection without
+ * waiting for the responses, which carry the id of their request and are
+ * sent as soon as they are ready, not necessarily in order.
+ * <p>
+ * A single thread accepts the connections, reads the requests and writes the
+ * responses with a {@link Selector}; every request is passed to a
+ * {@link Handler}, which must not block and may respond from any thread.
+ *
+ * @author ragerri
+ * @version 2015-11-30
+ */
+public class FrameServer {
+
+  /**
+   * The size of the header of a frame.
+   */
+  public static final int HEADER_SIZE = 9;
+  /**
+   * The type of the frames requesting the annotation of a document.
+   */
+  public static final byte ANNOTATE = 0;
+  /**
+   * The type of the frames requesting the metrics of the server.
+   */
+  public static final byte METRICS = 1;
+  /**
+   * The type of the frames requesting the annotation of a document with a
+   * model, the first line of the payload naming the model id or the language.
+   */
+  public static final byte ANNOTATE_MODEL = 2;
+  /**
+   * The flag of the annotation requests asking only for the new entities
+   * layer and its linguistic processor, to be merged by the client.
+   */
+  public static final byte DELTA = 0x10;
+  /**
+   * The flag of the frames whose payload is compressed with gzip; the
+   * response to such a request is compressed too.
+   */
+  public static final byte GZIP = 0x20;
+  /**
+   * The size of the smallest gzip stream: a 10 byte header and an 8 byte
+   * trailer.
+   */
+  private static final int GZIP_MIN_SIZE = 18;
+  /**
+   * The bits of the type of a frame without its flags.
+   */
+  static final int TYPE_MASK = 0x0f;
+  /**
+   * The type of the frames responding with the annotated document.
+   */
+  public static final byte OK = 0;
+  /**
+   * The type of the frames responding with an error message.
+   */
+  public static final byte ERROR = 1;
+  /**
+   * The encoding of the payloads.
+   */
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /**
+   * The size of the read buffer of every connection.
+   */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The selector of the connections.
+   */
+  private final Selector selector;
+  /**
+   * The channel accepting connections.
+   */
+  private final ServerSocketChannel serverChannel;
+  /**
+   * The handler of the requests.
+   */
+  private final Handler handler;
+  /**
+   * The largest payload accepted.
+   */
+  private final int maxFrameSize;
+  /**
+   * The connections with responses waiting to be written.
+   */
+  private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+  /**
+   * The number of responses queued and not yet written.
+   */
+  private final AtomicInteger queuedResponses = new AtomicInteger();
+  /**
+   * Whether new connections are accepted.
+   */
+  private volatile boolean accepting = true;
+  /**
+   * Whether the server runs, until closed.
+   */
+  private volatile boolean open = true;
+
+  /**
+   * Handles the requests received by a {@link FrameServer}.
+   */
+  public interface Handler {
+
+    /**
+     * Handle a request without blocking the transport, eventually calling
+     * {@link Request#respond(String)} or {@link Request#fail(String)}. The
+     * payload of a request larger than the maximum frame size is skipped, so
+     * that the request only has its size and must be failed.
+     *
+     * @param request
+     *          the request
+     */
+    void handle(Request request);
+  }
+
+  /**
+   * Construct a frame server listening to a port.
+   *
+   * @param port
+   *          the port
+   * @param backlog
+   *          the maximum number of connections waiting to be accepted
+   * @param frameSize
+   *          the largest payload accepted
+   * @param requestHandler
+   *          the handler of the requests
+   * @throws IOException
+   *           if the port cannot be opened
+   */
+  public FrameServer(final int port, final int backlog, final int frameSize,
+      final Handler requestHandler) throws IOException {
+    this.handler = requestHandler;
+    this.maxFrameSize = frameSize;
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(new InetSocketAddress(port), backlog);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   * Serve the connections until the server is closed.
+   *
+   * @throws IOException
+   *           if the selector fails
+   */
+  public final void run() throws IOException {
+    try {
+      serve();
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        close(key);
+      }
+      selector.close();
+      serverChannel.close();
+    }
+  }
+
+  /**
+   * Serve the connections while the server is open.
+   *
+   * @throws IOException
+   *           if the selector fails
+   */
+  private void serve() throws IOException {
+    while (open) {
+      selector.select();
+      if (!accepting && serverChannel.isOpen()) {
+        serverChannel.close();
+      }
+      Connection pending;
+      while ((pending = pendingWrites.poll()) != null) {
+        if (pending.key.isValid()) {
+          pending.key.interestOps(pending.key.interestOps()
+              | SelectionKey.OP_WRITE);
+        }
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        try {
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            Connection connection = (Connection) key.attachment();
+            if (key.isReadable()) {
+              connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.write();
+            }
+          }
+        } catch (IOException e) {
+          // the client is gone, the other connections go on
+          close(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop accepting connections, still serving the connections open.
+   */
+  public final void stopAccepting() {
+    accepting = false;
+    selector.wakeup();
+  }
+
+  /**
+   * Check whether every response has been written.
+   *
+   * @return true if no response is waiting to be written
+   */
+  public final boolean isIdle() {
+    return queuedResponses.get() == 0;
+  }
+
+  /**
+   * Stop accepting connections and close every connection, from any thread;
+   * {@link #run()} returns once they are closed.
+   */
+  public final void close() {
+    open = false;
+    selector.wakeup();
+  }
+
+  /**
+   * Accept a connection.
+   *
+   * @throws IOException
+   *           if io error
+   */
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      key.attach(new Connection(key, channel));
+    }
+  }
+
+  /**
+   * Close a connection.
+   *
+   * @param key
+   *          the key of the connection
+   */
+  private void close(final SelectionKey key) {
+    if (key.attachment() instanceof Connection) {
+      // the responses of a closed connection will never be written
+      Connection connection = (Connection) key.attachment();
+      while (connection.responses.poll() != null) {
+        queuedResponses.decrementAndGet();
+      }
+    }
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Encode a frame, compressing the payload if the type has the
+   * {@link #GZIP} flag.
+   *
+   * @param requestId
+   *          the id of the request
+   * @param type
+   *          the type of the frame
+   * @param payload
+   *          the payload
+   * @return the frame, ready to be written
+   */
+  public static ByteBuffer encode(final int requestId, final byte type,
+      final String payload) {
+    byte[] bytes = payload.getBytes(UTF_8);
+    if ((type & GZIP) != 0) {
+      bytes = gzip(bytes);
+    }
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+    frame.putInt(bytes.length).putInt(requestId).put(type).put(bytes);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Decode the payload of a frame.
+   *
+   * @param payload
+   *          the bytes of the payload
+   * @return the payload
+   */
+  public static String decode(final byte[] payload) {
+    return new String(payload, UTF_8);
+  }
+
+  /**
+   * Compress with gzip.
+   *
+   * @param bytes
+   *          the bytes
+   * @return the compressed bytes
+   */
+  static byte[] gzip(final byte[] bytes) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+        bytes.length / 4 + 64);
+    try (GZIPOutputStream gzipOut = new GZIPOutputStream(compressed)) {
+      gzipOut.write(bytes);
+    } catch (IOException e) {
+      // cannot happen writing to memory
+      throw new AssertionError(e);
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Decompress gzip bytes.
+   *
+   * @param bytes
+   *          the compressed bytes
+   * @param maxSize
+   *          the largest size accepted once decompressed
+   * @return the bytes
+   * @throws IOException
+   *           if the bytes are not gzip or decompress beyond the maximum
+   */
+  static byte[] gunzip(final byte[] bytes, final int maxSize)
+      throws IOException {
+    ByteArrayOutputStream decompressed = new ByteArrayOutputStream(
+        (int) Math.min(bytes.length * 4L, maxSize));
+    try (GZIPInputStream gzipIn = new GZIPInputStream(new ByteArrayInputStream(
+        bytes))) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = gzipIn.read(buffer)) != -1) {
+        if (decompressed.size() + read > maxSize) {
+          throw new IOException("payload larger than " + maxSize
+              + " bytes once decompressed");
+        }
+        decompressed.write(buffer, 0, read);
+      }
+    }
+    return decompressed.toByteArray();
+  }
+
+  /**
+   * A connection and the state of the frames being read and written.
+   */
+  private final class Connection {
+
+    /**
+     * The key of the connection.
+     */
+    private final SelectionKey key;
+    /**
+     * The channel of the connection.
+     */
+    private final SocketChannel channel;
+    /**
+     * The bytes read and not yet consumed.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer
+        .allocateDirect(READ_BUFFER_SIZE);
+    /**
+     * The responses waiting to be written.
+     */
+    private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+    /**
+     * The payload of the request being read, null while reading a header.
+     */
+    private byte[] payload;
+    /**
+     * The number of bytes of the payload already read.
+     */
+    private int payloadRead;
+    /**
+     * The id of the request being read.
+     */
+    private int requestId;
+    /**
+     * The type of the request being read.
+     */
+    private byte requestType;
+    /**
+     * The bytes of the payload of a request too large still to be skipped.
+     */
+    private int skipped;
+
+    /**
+     * Construct a connection.
+     *
+     * @param selectionKey
+     *          the key of the connection
+     * @param socketChannel
+     *          the channel
+     */
+    private Connection(final SelectionKey selectionKey,
+        final SocketChannel socketChannel) {
+      this.key = selectionKey;
+      this.channel = socketChannel;
+    }
+
+    /**
+     * Read the available bytes and handle every complete request.
+     *
+     * @throws IOException
+     *           if io error or the client closed the connection
+     */
+    private void read() throws IOException {
+      if (channel.read(readBuffer) < 0) {
+        throw new ClosedChannelException();
+      }
+      readBuffer.flip();
+      while (true) {
+        if (skipped > 0) {
+          int chunk = Math.min(readBuffer.remaining(), skipped);
+          readBuffer.position(readBuffer.position() + chunk);
+          skipped -= chunk;
+          if (skipped > 0) {
+            break;
+          }
+        }
+        if (payload == null) {
+          if (readBuffer.remaining() < HEADER_SIZE) {
+            break;
+          }
+          int length = readBuffer.getInt();
+          requestId = readBuffer.getInt();
+          requestType = readBuffer.get();
+          if (length < 0) {
+            // the rest of the stream cannot be trusted
+            respond(encode(requestId, ERROR, "Invalid frame length " + length));
+            key.interestOps(SelectionKey.OP_WRITE);
+            readBuffer.clear();
+            return;
+          }
+          if (length > maxFrameSize) {
+            // the length is still valid, so the next frames can be read
+            handler.handle(new Request(this, requestId, requestType, null,
+                length, maxFrameSize));
+            skipped = length;
+            continue;
+          }
+          payload = new byte[length];
+          payloadRead = 0;
+        }
+        int chunk = Math.min(readBuffer.remaining(), payload.length
+            - payloadRead);
+        readBuffer.get(payload, payloadRead, chunk);
+        payloadRead += chunk;
+        if (payloadRead < payload.length) {
+          break;
+        }
+        handler.handle(new Request(this, requestId, requestType, payload,
+            payload.length, maxFrameSize));
+        payload = null;
+      }
+      readBuffer.compact();
+    }
+
+    /**
+     * Write the pending responses until the socket buffer is full.
+     *
+     * @throws IOException
+     *           if io error
+     */
+    private void write() throws IOException {
+      ByteBuffer response;
+      while ((response = responses.peek()) != null) {
+        channel.write(response);
+        if (response.hasRemaining()) {
+          return;
+        }
+        responses.poll();
+        queuedResponses.decrementAndGet();
+      }
+      if ((key.interestOps() & SelectionKey.OP_READ) == 0) {
+        // the connection was only kept to report a broken frame
+        close(key);
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      // a response may have been added after the last peek
+      if (!responses.isEmpty()) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    /**
+     * Queue a response, from any thread.
+     *
+     * @param frame
+     *          the response frame
+     */
+    private void respond(final ByteBuffer frame) {
+      if (!key.isValid()) {
+        return;
+      }
+      queuedResponses.incrementAndGet();
+      responses.add(frame);
+      pendingWrites.add(this);
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * A request received through a connection.
+   */
+  public static final class Request {
+
+    /**
+     * The connection of the request.
+     */
+    private final Connection connection;
+    /**
+     * The id of the request.
+     */
+    private final int id;
+    /**
+     * The type of the request.
+     */
+    private final byte type;
+    /**
+     * The payload of the request, null if skipped for being too large.
+     */
+    private final byte[] payload;
+    /**
+     * The size of the payload of the request.
+     */
+    private final int size;
+    /**
+     * The largest payload accepted once decompressed.
+     */
+    private final int maxSize;
+
+    /**
+     * Construct a request.
+     *
+     * @param requestConnection
+     *          the connection
+     * @param requestId
+     *          the id
+     * @param requestType
+     *          the type
+     * @param requestPayload
+     *          the payload, null if skipped
+     * @param payloadSize
+     *          the size of the payload
+     * @param maxPayloadSize
+     *          the largest payload accepted once decompressed
+     */
+    private Request(final Connection requestConnection, final int requestId,
+        final byte requestType, final byte[] requestPayload,
+        final int payloadSize, final int maxPayloadSize) {
+      this.connection = requestConnection;
+      this.id = requestId;
+      this.type = requestType;
+      this.payload = requestPayload;
+      this.size = payloadSize;
+      this.maxSize = maxPayloadSize;
+    }
+
+    /**
+     * Get the id of the request, chosen by the client.
+     *
+     * @return the id
+     */
+    public int getId() {
+      return id;
+    }
+
+    /**
+     * Get the type of the request, without its flags.
+     *
+     * @return the type
+     */
+    public byte getType() {
+      return (byte) (type & TYPE_MASK);
+    }
+
+    /**
+     * Check whether the request has a flag.
+     *
+     * @param flag
+     *          the flag, such as {@link #DELTA}
+     * @return true if the type of the request has the flag
+     */
+    public boolean hasFlag(final byte flag) {
+      return (type & flag) != 0;
+    }
+
+    /**
+     * Get the size of the payload of the request, compressed if sent with
+     * the {@link #GZIP} flag.
+     *
+     * @return the number of bytes
+     */
+    public int getSize() {
+      return size;
+    }
+
+    /**
+     * Get the size of the document of the request: for payloads sent with
+     * the {@link #GZIP} flag, the decompressed size recorded in the gzip
+     * trailer (ISIZE, modulo 2^32, of the last gzip member), which is only
+     * a hint as the client writes it; the decompression still enforces the
+     * maximum size.
+     *
+     * @return the number of bytes
+     */
+    public long getDocumentSize() {
+      if (!hasFlag(GZIP) || payload == null || payload.length < GZIP_MIN_SIZE) {
+        return size;
+      }
+      int end = payload.length;
+      return (payload[end - 4] & 0xffL) | (payload[end - 3] & 0xffL) << 8
+          | (payload[end - 2] & 0xffL) << 16 | (payload[end - 1] & 0xffL) << 24;
+    }
+
+    /**
+     * Get the payload of the request.
+     *
+     * @return the payload
+     * @throws IOException
+     *           if the payload was skipped or cannot be decompressed
+     */
+    public String getPayload() throws IOException {
+      if (payload == null) {
+        throw new IOException("Frame of " + size
+            + " bytes larger than the maximum of " + maxSize);
+      }
+      return decode(hasFlag(GZIP) ? gunzip(payload, maxSize) : payload);
+    }
+
+    /**
+     * Send the response to the request.
+     *
+     * @param response
+     *          the response
+     */
+    public void respond(final String response) {
+      connection.respond(encode(id, (byte) (OK | type & GZIP), response));
+    }
+
+    /**
+     * Send an error message as the response to the request.
+     *
+     * @param message
+     *          the error message
+     */
+    public void fail(final String message) {
+      connection.respond(encode(id, (byte) (ERROR | type & GZIP), message));
+    }
+  }
+}
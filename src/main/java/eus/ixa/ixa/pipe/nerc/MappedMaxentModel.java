@@ -0,0 +1,431 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.EvalParameters;
+import opennlp.tools.ml.model.IndexHashTable;
+import opennlp.tools.ml.model.MaxentModel;
+import opennlp.tools.ml.perceptron.PerceptronModel;
+import opennlp.tools.util.InvalidFormatException;
+
+/**
+ * A maxent or perceptron model read in place from a flat layout, usually a
+ * memory mapped model snapshot, instead of being deserialized. The predicates
+ * are found with an open addressing hash table stored in the layout and the
+ * parameters of a predicate are only read the first time it is evaluated, so
+ * that the model is ready as soon as it is mapped and only the pages of the
+ * predicates used are read. The probabilities are computed by the OpenNLP
+ * models themselves and are thus identical to those of the original model.
+ *
+ * @author ragerri
+ * @version 2015-11-30
+ */
+public class MappedMaxentModel implements MaxentModel {
+
+  /**
+   * The type of the maxent (GIS) models.
+   */
+  private static final int MAXENT = 0;
+  /**
+   * The type of the perceptron models.
+   */
+  private static final int PERCEPTRON = 1;
+
+  /**
+   * The type of the model.
+   */
+  private final int type;
+  /**
+   * The names of the outcomes.
+   */
+  private final String[] outcomeNames;
+  /**
+   * The log of the uniform prior of every outcome of a maxent model.
+   */
+  private final double logPrior;
+  /**
+   * The hash table of the predicates, with the predicate index plus one in
+   * every used slot.
+   */
+  private final IntBuffer table;
+  /**
+   * The offset of the label of every predicate in the labels, and the end.
+   */
+  private final IntBuffer labelStarts;
+  /**
+   * The labels of the predicates.
+   */
+  private final CharBuffer labels;
+  /**
+   * The offset of the parameters of every predicate, and the end.
+   */
+  private final IntBuffer paramStarts;
+  /**
+   * The outcome of every parameter.
+   */
+  private final IntBuffer outcomes;
+  /**
+   * The value of every parameter.
+   */
+  private final DoubleBuffer parameters;
+  /**
+   * The parameters of the predicates already read, null for the others. The
+   * fields of a {@link Context} are not final, so this array is where the
+   * contexts are safely published to every thread; only one context is ever
+   * published for each predicate.
+   */
+  private final AtomicReferenceArray<Context> published;
+  /**
+   * The parameters read by the evaluation, over which {@link #evalParams} is
+   * built. A thread only writes here the context it got from
+   * {@link #published} before evaluating it, so that every entry it reads
+   * holds the same context it has seen published.
+   */
+  private final Context[] params;
+  /**
+   * The evaluation parameters, over {@link #params}.
+   */
+  private final EvalParameters evalParams;
+
+  /**
+   * Read a model from its layout, starting at the position of the buffer.
+   * The buffer is not copied and must not change while the model is used.
+   *
+   * @param buffer
+   *          the buffer, usually mapped from a model snapshot
+   * @throws InvalidFormatException
+   *           if the layout is not valid
+   */
+  public MappedMaxentModel(final ByteBuffer buffer)
+      throws InvalidFormatException {
+    ByteBuffer layout = buffer.slice();
+    this.type = layout.getInt();
+    if (type != MAXENT && type != PERCEPTRON) {
+      throw new InvalidFormatException("Unknown model type " + type
+          + " in the model snapshot!");
+    }
+    int correctionConstant = layout.getInt();
+    double correctionParam = layout.getDouble();
+    this.outcomeNames = new String[layout.getInt()];
+    for (int oi = 0; oi < outcomeNames.length; oi++) {
+      char[] name = new char[layout.getInt()];
+      layout.asCharBuffer().get(name);
+      layout.position(layout.position() + name.length * 2);
+      outcomeNames[oi] = new String(name);
+    }
+    int numPreds = layout.getInt();
+    int tableSize = layout.getInt();
+    int numParams = layout.getInt();
+    this.table = region(layout, tableSize * 4).asIntBuffer();
+    this.labelStarts = region(layout, (numPreds + 1) * 4).asIntBuffer();
+    this.labels = region(layout, labelStarts.get(numPreds) * 2).asCharBuffer();
+    this.paramStarts = region(layout, (numPreds + 1) * 4).asIntBuffer();
+    this.outcomes = region(layout, numParams * 4).asIntBuffer();
+    this.parameters = region(layout, numParams * 8).asDoubleBuffer();
+    this.published = new AtomicReferenceArray<Context>(numPreds);
+    this.params = new Context[numPreds];
+    if (type == MAXENT) {
+      this.evalParams = new EvalParameters(params, correctionParam,
+          correctionConstant, outcomeNames.length);
+    } else {
+      this.evalParams = new EvalParameters(params, outcomeNames.length);
+    }
+    this.logPrior = Math.log(1.0 / outcomeNames.length);
+  }
+
+  /**
+   * Write the layout of a maxent or perceptron model.
+   *
+   * @param model
+   *          the model
+   * @param out
+   *          the output
+   * @throws IOException
+   *           if io problems or the model is neither maxent nor perceptron
+   */
+  public static void write(final AbstractModel model,
+      final DataOutputStream out) throws IOException {
+    Object[] dataStructures = model.getDataStructures();
+    Context[] modelParams = (Context[]) dataStructures[0];
+    @SuppressWarnings("unchecked")
+    IndexHashTable<String> pmap = (IndexHashTable<String>) dataStructures[1];
+    String[] modelOutcomes = (String[]) dataStructures[2];
+    String[] predLabels = pmap.toArray(new String[pmap.size()]);
+    if (model instanceof GISModel) {
+      out.writeInt(MAXENT);
+      out.writeInt((Integer) dataStructures[3]);
+      out.writeDouble((Double) dataStructures[4]);
+    } else if (model instanceof PerceptronModel) {
+      out.writeInt(PERCEPTRON);
+      out.writeInt(0);
+      out.writeDouble(0);
+    } else {
+      throw new IOException("Model type not supported: "
+          + model.getModelType()
+          + "; only maxent and perceptron models can be mapped!");
+    }
+    out.writeInt(modelOutcomes.length);
+    for (String outcome : modelOutcomes) {
+      out.writeInt(outcome.length());
+      out.writeChars(outcome);
+    }
+    int tableSize = Integer.highestOneBit(Math.max(predLabels.length, 1)) * 4;
+    int[] slots = new int[tableSize];
+    for (int pi = 0; pi < predLabels.length; pi++) {
+      int slot = hash(predLabels[pi]) & (tableSize - 1);
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & (tableSize - 1);
+      }
+      slots[slot] = pi + 1;
+    }
+    int numParams = 0;
+    for (Context context : modelParams) {
+      numParams += context.getOutcomes().length;
+    }
+    out.writeInt(predLabels.length);
+    out.writeInt(tableSize);
+    out.writeInt(numParams);
+    for (int slot : slots) {
+      out.writeInt(slot);
+    }
+    int labelStart = 0;
+    for (String label : predLabels) {
+      out.writeInt(labelStart);
+      labelStart += label.length();
+    }
+    out.writeInt(labelStart);
+    for (String label : predLabels) {
+      out.writeChars(label);
+    }
+    int paramStart = 0;
+    for (Context context : modelParams) {
+      out.writeInt(paramStart);
+      paramStart += context.getOutcomes().length;
+    }
+    out.writeInt(paramStart);
+    for (Context context : modelParams) {
+      for (int outcome : context.getOutcomes()) {
+        out.writeInt(outcome);
+      }
+    }
+    for (Context context : modelParams) {
+      for (double parameter : context.getParameters()) {
+        out.writeDouble(parameter);
+      }
+    }
+  }
+
+  @Override
+  public final double[] eval(final String[] context) {
+    return eval(context, new double[outcomeNames.length]);
+  }
+
+  @Override
+  public final double[] eval(final String[] context, final float[] values) {
+    return eval(context, values, new double[outcomeNames.length]);
+  }
+
+  @Override
+  public final double[] eval(final String[] context, final double[] probs) {
+    return eval(context, null, probs);
+  }
+
+  /**
+   * Evaluate a context as the OpenNLP model does.
+   *
+   * @param context
+   *          the predicates
+   * @param values
+   *          the values of the predicates, null for 1
+   * @param outsums
+   *          the array where the probabilities are written
+   * @return the probability of every outcome
+   */
+  private double[] eval(final String[] context, final float[] values,
+      final double[] outsums) {
+    int[] scontexts = new int[context.length];
+    for (int i = 0; i < context.length; i++) {
+      scontexts[i] = getPredicate(context[i]);
+    }
+    if (type == PERCEPTRON) {
+      Arrays.fill(outsums, 0);
+      return PerceptronModel.eval(scontexts, values, outsums, evalParams, true);
+    } else {
+      Arrays.fill(outsums, logPrior);
+      return GISModel.eval(scontexts, values, outsums, evalParams);
+    }
+  }
+
+  @Override
+  public final String getBestOutcome(final double[] ocs) {
+    int best = 0;
+    for (int i = 1; i < ocs.length; i++) {
+      if (ocs[i] > ocs[best]) {
+        best = i;
+      }
+    }
+    return outcomeNames[best];
+  }
+
+  @Override
+  public final String getAllOutcomes(final double[] ocs) {
+    if (ocs.length != outcomeNames.length) {
+      return "The double array sent as a parameter to getAllOutcomes() must "
+          + "not have been produced by this model.";
+    }
+    DecimalFormat df = new DecimalFormat("0.0000");
+    StringBuilder sb = new StringBuilder(ocs.length * 2);
+    for (int i = 0; i < ocs.length; i++) {
+      if (i > 0) {
+        sb.append("  ");
+      }
+      sb.append(outcomeNames[i]).append('[').append(df.format(ocs[i]))
+          .append(']');
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public final String getOutcome(final int index) {
+    return outcomeNames[index];
+  }
+
+  @Override
+  public final int getIndex(final String outcome) {
+    for (int i = 0; i < outcomeNames.length; i++) {
+      if (outcomeNames[i].equals(outcome)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public final int getNumOutcomes() {
+    return outcomeNames.length;
+  }
+
+  /**
+   * Find a predicate, reading its parameters if not read yet.
+   *
+   * @param predicate
+   *          the predicate
+   * @return the index of the predicate, -1 if not in the model
+   */
+  private int getPredicate(final String predicate) {
+    int mask = table.capacity() - 1;
+    int slot = hash(predicate) & mask;
+    int entry;
+    while ((entry = table.get(slot)) != 0) {
+      int pi = entry - 1;
+      if (labelEquals(pi, predicate)) {
+        Context context = published.get(pi);
+        if (context == null) {
+          published.compareAndSet(pi, null, readContext(pi));
+          context = published.get(pi);
+        }
+        params[pi] = context;
+        return pi;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Compare the label of a predicate with a string.
+   *
+   * @param pi
+   *          the index of the predicate
+   * @param predicate
+   *          the string
+   * @return whether they are equal
+   */
+  private boolean labelEquals(final int pi, final String predicate) {
+    int start = labelStarts.get(pi);
+    int length = labelStarts.get(pi + 1) - start;
+    if (length != predicate.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (labels.get(start + i) != predicate.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Read the parameters of a predicate.
+   *
+   * @param pi
+   *          the index of the predicate
+   * @return the parameters
+   */
+  private Context readContext(final int pi) {
+    int start = paramStarts.get(pi);
+    int length = paramStarts.get(pi + 1) - start;
+    int[] predOutcomes = new int[length];
+    double[] predParameters = new double[length];
+    for (int i = 0; i < length; i++) {
+      predOutcomes[i] = outcomes.get(start + i);
+      predParameters[i] = parameters.get(start + i);
+    }
+    return new Context(predOutcomes, predParameters);
+  }
+
+  /**
+   * Get the hash of a predicate, spreading the high bits of its hash code.
+   *
+   * @param predicate
+   *          the predicate
+   * @return the hash
+   */
+  private static int hash(final String predicate) {
+    int h = predicate.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Take a region of a buffer, moving its position past the region.
+   *
+   * @param buffer
+   *          the buffer
+   * @param length
+   *          the bytes of the region
+   * @return the region
+   */
+  private static ByteBuffer region(final ByteBuffer buffer, final int length) {
+    ByteBuffer region = buffer.slice();
+    region.limit(length);
+    buffer.position(buffer.position() + length);
+    return region;
+  }
+}
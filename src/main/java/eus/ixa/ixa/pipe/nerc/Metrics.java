@@ -0,0 +1,336 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process registry of the metrics of a server: counters, gauges computed
+ * when the metrics are read and latency histograms of the stages of the
+ * annotation. Every metric is created on first use and can be updated from
+ * any thread without locking. The metrics are formatted in the Prometheus
+ * text format, the histograms as summaries with their quantiles.
+ *
+ * @author ragerri
+ * @version 2015-11-30
+ */
+public class Metrics {
+
+  /**
+   * The quantiles reported for every histogram.
+   */
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  /**
+   * The time the registry was created, in nanoseconds.
+   */
+  private final long created = System.nanoTime();
+  /**
+   * The counters by name.
+   */
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+  /**
+   * The gauges by name.
+   */
+  private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+  /**
+   * The latency histograms by stage.
+   */
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+  /**
+   * A value computed when the metrics are read.
+   */
+  public interface Gauge {
+
+    /**
+     * Get the current value.
+     *
+     * @return the value
+     */
+    double getValue();
+  }
+
+  /**
+   * Add to a counter.
+   *
+   * @param name
+   *          the name of the counter
+   * @param delta
+   *          the value added
+   */
+  public final void count(final String name, final long delta) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new AtomicLong());
+      counter = counters.get(name);
+    }
+    counter.addAndGet(delta);
+  }
+
+  /**
+   * Get the value of a counter.
+   *
+   * @param name
+   *          the name of the counter
+   * @return the value, 0 if never counted
+   */
+  public final long getCount(final String name) {
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0 : counter.get();
+  }
+
+  /**
+   * Register a gauge, replacing any gauge of the same name.
+   *
+   * @param name
+   *          the name of the gauge
+   * @param gauge
+   *          the gauge
+   */
+  public final void gauge(final String name, final Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Record the duration of a stage.
+   *
+   * @param stage
+   *          the name of the stage
+   * @param nanos
+   *          the duration in nanoseconds
+   */
+  public final void record(final String stage, final long nanos) {
+    getHistogram(stage).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  /**
+   * Get the latency histogram of a stage.
+   *
+   * @param stage
+   *          the name of the stage
+   * @return the histogram
+   */
+  public final Histogram getHistogram(final String stage) {
+    Histogram histogram = histograms.get(stage);
+    if (histogram == null) {
+      histograms.putIfAbsent(stage, new Histogram());
+      histogram = histograms.get(stage);
+    }
+    return histogram;
+  }
+
+  /**
+   * Get the seconds since the registry was created.
+   *
+   * @return the uptime
+   */
+  public final double getUptime() {
+    return (System.nanoTime() - created) / 1e9;
+  }
+
+  /**
+   * Format every metric in the Prometheus text format.
+   *
+   * @return the metrics
+   */
+  @Override
+  public final String toString() {
+    StringBuilder sb = new StringBuilder();
+    appendValue(sb, "nerc_uptime_seconds", getUptime());
+    for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+      sb.append("nerc_").append(counter.getKey()).append("_total ")
+          .append(counter.getValue().get()).append('\n');
+    }
+    for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+      appendValue(sb, "nerc_" + gauge.getKey(), gauge.getValue().getValue());
+    }
+    sb.append("# TYPE nerc_latency_milliseconds summary\n");
+    for (String stage : new ConcurrentSkipListMap<String, Histogram>(
+        histograms).keySet()) {
+      Histogram histogram = histograms.get(stage);
+      for (double quantile : QUANTILES) {
+        appendValue(sb, "nerc_latency_milliseconds{stage=\"" + stage
+            + "\",quantile=\"" + quantile + "\"}",
+            histogram.getQuantile(quantile) / 1000.0);
+      }
+      appendValue(sb, "nerc_latency_milliseconds_max{stage=\"" + stage + "\"}",
+          histogram.getMax() / 1000.0);
+      appendValue(sb, "nerc_latency_milliseconds_sum{stage=\"" + stage + "\"}",
+          histogram.getSum() / 1000.0);
+      sb.append("nerc_latency_milliseconds_count{stage=\"").append(stage)
+          .append("\"} ").append(histogram.getCount()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Append a metric with a decimal value.
+   *
+   * @param sb
+   *          the builder
+   * @param name
+   *          the name of the metric
+   * @param value
+   *          the value
+   */
+  private static void appendValue(final StringBuilder sb, final String name,
+      final double value) {
+    sb.append(name).append(' ')
+        .append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+  }
+
+  /**
+   * Histogram of latencies in microseconds with log-linear buckets as in HDR
+   * histograms: every power of two is divided in {@link #SUB_BUCKETS}
+   * buckets, so that every value is recorded with a relative error below 3%
+   * in constant space and time.
+   */
+  public static final class Histogram {
+
+    /**
+     * The bits of the number of buckets of every power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    /**
+     * The number of buckets of every power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * The number of buckets, enough for every positive long.
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * The number of values recorded in every bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /**
+     * The number of values recorded.
+     */
+    private final AtomicLong count = new AtomicLong();
+    /**
+     * The sum of the values recorded.
+     */
+    private final AtomicLong sum = new AtomicLong();
+    /**
+     * The largest value recorded.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.
+     *
+     * @param value
+     *          the value, negative values are recorded as 0
+     */
+    public void record(final long value) {
+      long positive = Math.max(value, 0);
+      counts.incrementAndGet(bucket(positive));
+      count.incrementAndGet();
+      sum.addAndGet(positive);
+      long current;
+      while ((current = max.get()) < positive
+          && !max.compareAndSet(current, positive)) {
+        continue;
+      }
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return the count
+     */
+    public long getCount() {
+      return count.get();
+    }
+
+    /**
+     * Get the sum of the values recorded.
+     *
+     * @return the sum
+     */
+    public long getSum() {
+      return sum.get();
+    }
+
+    /**
+     * Get the largest value recorded.
+     *
+     * @return the maximum
+     */
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * Get the value below or equal to which a fraction of the values fall.
+     *
+     * @param quantile
+     *          the fraction, between 0 and 1
+     * @return the highest value of the bucket of the quantile, 0 if empty
+     */
+    public long getQuantile(final double quantile) {
+      long total = count.get();
+      if (total == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank) {
+          return Math.min(highestValue(i), max.get());
+        }
+      }
+      return max.get();
+    }
+
+    /**
+     * Get the bucket of a value.
+     *
+     * @param value
+     *          the positive value
+     * @return the bucket
+     */
+    private static int bucket(final long value) {
+      int magnitude = 63 - Long.numberOfLeadingZeros(value | 1);
+      int shift = Math.max(0, magnitude - SUB_BUCKET_BITS);
+      return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * Get the highest value of a bucket.
+     *
+     * @param bucket
+     *          the bucket
+     * @return the value
+     */
+    private static long highestValue(final int bucket) {
+      int shift = Math.max(0, (bucket >>> SUB_BUCKET_BITS) - 1);
+      long lowest = (long) (bucket - (shift << SUB_BUCKET_BITS)) << shift;
+      return lowest + (1L << shift) - 1;
+    }
+  }
+}
@@ -0,0 +1,432 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.BinaryFileDataReader;
+import opennlp.tools.ml.model.GenericModelReader;
+import opennlp.tools.ml.model.MaxentModel;
+import opennlp.tools.ml.model.SequenceClassificationModel;
+import opennlp.tools.namefind.TokenNameFinderFactory;
+import opennlp.tools.namefind.TokenNameFinderModel;
+import opennlp.tools.util.InvalidFormatException;
+import opennlp.tools.util.SequenceCodec;
+import opennlp.tools.util.ext.ExtensionLoader;
+import opennlp.tools.util.model.ArtifactSerializer;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Loads {@link TokenNameFinderModel}s reading the model zip only once and
+ * deserializing its artifacts (the sequence labeling model, the clustering
+ * lexicons, dictionaries, POS models, etc.) in parallel on a fork-join pool.
+ * The model is then built from the deserialized artifacts, so that loading
+ * takes about as long as deserializing its largest artifact.
+ * <p>
+ * A model can also be written as a snapshot, where the maxent or perceptron
+ * model is stored in the flat layout of {@link MappedMaxentModel}. Loading a
+ * snapshot maps the file in memory instead of deserializing the model, so
+ * that it takes milliseconds whatever the size of the model, and the memory
+ * of the model is shared by every process using the snapshot.
+ * <p>
+ * The {@link QuantizedMaxentModel} of a compacted model is deserialized by
+ * the serializer declared in its manifest and used as the sequence labeling
+ * model.
+ *
+ * @author ragerri
+ * @version 2015-11-25
+ */
+public final class ModelLoader {
+
+  /**
+   * The entry of the model zip containing the manifest.
+   */
+  private static final String MANIFEST_ENTRY = "manifest.properties";
+  /**
+   * The entry of the model zip containing the sequence labeling model.
+   */
+  private static final String MODEL_ENTRY = "nameFinder.model";
+  /**
+   * The entry of a compacted model zip containing the quantized model.
+   */
+  private static final String QUANTIZED_MODEL_ENTRY = "nameFinder.qmodel";
+  /**
+   * The entry of the model zip containing the feature generator descriptor.
+   */
+  private static final String GENERATOR_DESCRIPTOR_ENTRY = "generator.featuregen";
+  /**
+   * The manifest prefix of the serializer class of custom artifacts.
+   */
+  private static final String SERIALIZER_CLASS_PREFIX = "serializer-class-";
+  /**
+   * The manifest entries set by the model itself when it is constructed.
+   */
+  private static final List<String> MODEL_MANIFEST_ENTRIES = Arrays.asList(
+      "Manifest-Version", "Language", "OpenNLP-Version", "Timestamp",
+      "Component-Name", "factory", "BeamSize", "sequenceCodecImplName");
+  /**
+   * The pool deserializing the artifacts.
+   */
+  private static final ForkJoinPool POOL = new ForkJoinPool();
+  /**
+   * The first bytes of a model snapshot, "NERC" in ASCII.
+   */
+  private static final int SNAPSHOT_MAGIC = 0x4e455243;
+  /**
+   * The version of the snapshot layout.
+   */
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /**
+   * Private constructor. This class should only be used statically.
+   */
+  private ModelLoader() {
+    throw new AssertionError("This class is not meant to be instantiated!");
+  }
+
+  /**
+   * Load a model deserializing its artifacts in parallel.
+   *
+   * @param model
+   *          the model file
+   * @return the model
+   * @throws IOException
+   *           if the model cannot be read or is not valid
+   */
+  public static TokenNameFinderModel loadModel(final File model)
+      throws IOException {
+    if (isSnapshot(model)) {
+      return loadSnapshot(model);
+    }
+    Map<String, byte[]> entries;
+    try (InputStream in = new FileInputStream(model)) {
+      entries = readEntries(in);
+    }
+    return loadModel(entries, null, model);
+  }
+
+  /**
+   * Build a model from the entries of its zip, deserializing the artifacts
+   * in parallel.
+   *
+   * @param entries
+   *          the contents of every entry by name
+   * @param seqModel
+   *          the sequence labeling model if already loaded, or null
+   * @param model
+   *          the model file, for the error messages
+   * @return the model
+   * @throws IOException
+   *           if the model is not valid
+   */
+  private static TokenNameFinderModel loadModel(
+      final Map<String, byte[]> entries, final MaxentModel seqModel,
+      final File model) throws IOException {
+    byte[] manifestBytes = entries.remove(MANIFEST_ENTRY);
+    if (manifestBytes == null) {
+      throw new InvalidFormatException("Missing the " + MANIFEST_ENTRY
+          + " in " + model + "!");
+    }
+    Properties manifest = new Properties();
+    manifest.load(new ByteArrayInputStream(manifestBytes));
+    Map<String, Object> artifacts = deserializeArtifacts(entries, manifest);
+    if (seqModel != null) {
+      artifacts.put(MODEL_ENTRY, seqModel);
+    }
+    return buildModel(artifacts, manifest);
+  }
+
+  /**
+   * Write a snapshot of a model: the maxent or perceptron model in the flat
+   * layout of {@link MappedMaxentModel} and the other artifacts in a zip.
+   *
+   * @param model
+   *          the model file
+   * @param snapshot
+   *          the snapshot file
+   * @throws IOException
+   *           if the model cannot be read or is neither maxent nor perceptron
+   */
+  public static void writeSnapshot(final File model, final File snapshot)
+      throws IOException {
+    Map<String, byte[]> entries;
+    try (InputStream in = new FileInputStream(model)) {
+      entries = readEntries(in);
+    }
+    byte[] modelBytes = entries.remove(MODEL_ENTRY);
+    if (modelBytes == null) {
+      throw new IOException("No " + MODEL_ENTRY + " entry found in " + model
+          + "; only maxent and perceptron models can be snapshotted!");
+    }
+    AbstractModel seqModel = new GenericModelReader(new BinaryFileDataReader(
+        new ByteArrayInputStream(modelBytes))).getModel();
+    ByteArrayOutputStream artifacts = new ByteArrayOutputStream();
+    try (ZipOutputStream zipOut = new ZipOutputStream(artifacts)) {
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        zipOut.putNextEntry(new ZipEntry(entry.getKey()));
+        zipOut.write(entry.getValue());
+        zipOut.closeEntry();
+      }
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(snapshot)))) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeInt(artifacts.size());
+      artifacts.writeTo(out);
+      MappedMaxentModel.write(seqModel, out);
+    }
+  }
+
+  /**
+   * Check whether a file is a model snapshot.
+   *
+   * @param model
+   *          the model file
+   * @return whether it is a snapshot
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  static boolean isSnapshot(final File model) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(model))) {
+      return model.length() >= 4 && in.readInt() == SNAPSHOT_MAGIC;
+    }
+  }
+
+  /**
+   * Load a model snapshot, mapping the sequence labeling model in memory and
+   * deserializing the other artifacts.
+   *
+   * @param snapshot
+   *          the snapshot file
+   * @return the model
+   * @throws IOException
+   *           if the snapshot cannot be read or is not valid
+   */
+  private static TokenNameFinderModel loadSnapshot(final File snapshot)
+      throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = new RandomAccessFile(snapshot, "r")
+        .getChannel()) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new InvalidFormatException("The snapshot " + snapshot
+            + " is larger than 2GB!");
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    buffer.getInt();
+    int version = buffer.getInt();
+    if (version != SNAPSHOT_VERSION) {
+      throw new InvalidFormatException("Unsupported version " + version
+          + " of the snapshot " + snapshot + "!");
+    }
+    byte[] artifacts = new byte[buffer.getInt()];
+    buffer.get(artifacts);
+    Map<String, byte[]> entries = readEntries(new ByteArrayInputStream(
+        artifacts));
+    return loadModel(entries, new MappedMaxentModel(buffer), snapshot);
+  }
+
+  /**
+   * Read every entry of a model zip.
+   *
+   * @param in
+   *          the model zip
+   * @return the contents of every entry by name
+   * @throws IOException
+   *           if io problems
+   */
+  private static Map<String, byte[]> readEntries(final InputStream in)
+      throws IOException {
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    try (ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(
+        in))) {
+      ZipEntry entry;
+      while ((entry = zipIn.getNextEntry()) != null) {
+        entries.put(entry.getName(), ByteStreams.toByteArray(zipIn));
+        zipIn.closeEntry();
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Deserialize the artifacts in parallel, starting with the largest ones.
+   *
+   * @param entries
+   *          the contents of the entries of the model zip
+   * @param manifest
+   *          the manifest of the model
+   * @return the artifacts by name
+   * @throws IOException
+   *           if an artifact cannot be deserialized
+   */
+  private static Map<String, Object> deserializeArtifacts(
+      final Map<String, byte[]> entries, final Properties manifest)
+      throws IOException {
+    // OpenNLP declares the values of the map with the raw ArtifactSerializer
+    @SuppressWarnings("unchecked")
+    Map<String, ArtifactSerializer<?>> serializers = (Map<String, ArtifactSerializer<?>>) (Map<String, ?>) TokenNameFinderModel
+        .createArtifactSerializers();
+    List<Map.Entry<String, byte[]>> bySize = new ArrayList<Map.Entry<String, byte[]>>(
+        entries.entrySet());
+    Collections.sort(bySize, new Comparator<Map.Entry<String, byte[]>>() {
+      public int compare(Map.Entry<String, byte[]> e1,
+          Map.Entry<String, byte[]> e2) {
+        return e2.getValue().length - e1.getValue().length;
+      }
+    });
+    Map<String, ForkJoinTask<Object>> tasks = new LinkedHashMap<String, ForkJoinTask<Object>>();
+    for (Map.Entry<String, byte[]> entry : bySize) {
+      final ArtifactSerializer<?> serializer = getSerializer(entry.getKey(),
+          serializers, manifest);
+      final byte[] content = entry.getValue();
+      tasks.put(entry.getKey(), POOL.submit(new Callable<Object>() {
+        public Object call() throws IOException {
+          return serializer.create(new ByteArrayInputStream(content));
+        }
+      }));
+    }
+    Map<String, Object> artifacts = new HashMap<String, Object>();
+    for (Map.Entry<String, ForkJoinTask<Object>> task : tasks.entrySet()) {
+      try {
+        artifacts.put(task.getKey(), task.getValue().get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while loading the model!", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Error deserializing " + task.getKey(), e.getCause());
+      }
+    }
+    return artifacts;
+  }
+
+  /**
+   * Get the serializer of an artifact, either by the extension of its name or
+   * by the serializer class declared in the manifest.
+   *
+   * @param name
+   *          the name of the artifact
+   * @param serializers
+   *          the serializers by extension
+   * @param manifest
+   *          the manifest
+   * @return the serializer
+   * @throws InvalidFormatException
+   *           if no serializer is found
+   */
+  private static ArtifactSerializer<?> getSerializer(final String name,
+      final Map<String, ArtifactSerializer<?>> serializers,
+      final Properties manifest) throws InvalidFormatException {
+    String extension = name.substring(name.lastIndexOf('.') + 1);
+    ArtifactSerializer<?> serializer = serializers.get(extension);
+    if (serializer == null) {
+      String serializerClass = manifest.getProperty(SERIALIZER_CLASS_PREFIX
+          + name);
+      if (serializerClass == null) {
+        throw new InvalidFormatException("Unknown artifact format: " + name);
+      }
+      serializer = ExtensionLoader.instantiateExtension(
+          ArtifactSerializer.class, serializerClass);
+    }
+    return serializer;
+  }
+
+  /**
+   * Build the model from its artifacts.
+   *
+   * @param artifacts
+   *          the artifacts
+   * @param manifest
+   *          the manifest
+   * @return the model
+   * @throws IOException
+   *           if the artifacts do not make a valid model
+   */
+  @SuppressWarnings("unchecked")
+  private static TokenNameFinderModel buildModel(
+      final Map<String, Object> artifacts, final Properties manifest)
+      throws IOException {
+    Object seqModel = artifacts.remove(MODEL_ENTRY);
+    if (seqModel == null) {
+      seqModel = artifacts.remove(QUANTIZED_MODEL_ENTRY);
+    }
+    byte[] generatorDescriptor = (byte[]) artifacts
+        .remove(GENERATOR_DESCRIPTOR_ENTRY);
+    String lang = manifest.getProperty("Language");
+    SequenceCodec<String> seqCodec = TokenNameFinderFactory
+        .instantiateSequenceCodec(manifest.getProperty("sequenceCodecImplName",
+            "opennlp.tools.namefind.BioCodec"));
+    TokenNameFinderFactory factory = TokenNameFinderFactory.create(
+        manifest.getProperty("factory"), generatorDescriptor, artifacts,
+        seqCodec);
+    Map<String, String> manifestInfoEntries = new HashMap<String, String>();
+    for (String key : manifest.stringPropertyNames()) {
+      if (!MODEL_MANIFEST_ENTRIES.contains(key)
+          && !key.startsWith(SERIALIZER_CLASS_PREFIX)) {
+        manifestInfoEntries.put(key, manifest.getProperty(key));
+      }
+    }
+    if (seqModel instanceof MaxentModel) {
+      int beamSize = Integer.parseInt(manifest.getProperty("BeamSize", "3"));
+      return new TokenNameFinderModel(lang, (MaxentModel) seqModel, beamSize,
+          generatorDescriptor, artifacts, manifestInfoEntries, seqCodec,
+          factory);
+    } else if (seqModel instanceof SequenceClassificationModel) {
+      return new TokenNameFinderModel(lang,
+          (SequenceClassificationModel<String>) seqModel, generatorDescriptor,
+          artifacts, manifestInfoEntries, seqCodec, factory);
+    } else {
+      throw new InvalidFormatException("Missing the " + MODEL_ENTRY
+          + " in the model!");
+    }
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Registry of the models a server can route documents to. The models are
+ * declared in a properties file where every model id has a
+ * {@code <id>.model} with the path of the model, a {@code <id>.language} and
+ * optionally any other annotation property, such as
+ * {@code <id>.lexer=numeric}, overriding the properties of the server.
+ * <p>
+ * A model is loaded the first time a document is routed to it and each
+ * worker borrows an annotator of the model for the duration of a document.
+ * When the estimated memory of the loaded models exceeds the budget, the
+ * least recently used models not being used by any worker are unloaded. The
+ * memory of a model is estimated from the size of its files, without
+ * measuring the heap, so that loading a model does not stop the workers for
+ * a garbage collection.
+ *
+ * @author ragerri
+ * @version 2015-11-30
+ */
+public class ModelRegistry {
+
+  /**
+   * The approximate ratio between the heap used by a deserialized model and
+   * the size of its model file.
+   */
+  private static final int MODEL_HEAP_RATIO = 7;
+  /**
+   * The models by id, the least recently used first.
+   */
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(
+      16, 0.75f, true);
+  /**
+   * The ids of the models in their declaration order, to route languages.
+   */
+  private final List<String> ids = new ArrayList<String>();
+  /**
+   * The bytes the loaded models may use, 0 for no limit.
+   */
+  private final long memoryBudget;
+  /**
+   * The metrics where loads and evictions are counted.
+   */
+  private final Metrics metrics;
+
+  /**
+   * Construct a registry of the models declared in a properties file.
+   *
+   * @param models
+   *          the declaration of the models
+   * @param properties
+   *          the properties of the server, the defaults of every model
+   * @param budget
+   *          the bytes the loaded models may use, 0 for no limit
+   * @param serverMetrics
+   *          the metrics of the server
+   * @throws IOException
+   *           if a model is not correctly declared
+   */
+  public ModelRegistry(final Properties models, final Properties properties,
+      final long budget, final Metrics serverMetrics) throws IOException {
+    this.memoryBudget = budget;
+    this.metrics = serverMetrics;
+    for (String key : new TreeSet<String>(models.stringPropertyNames())) {
+      if (!key.endsWith(".model")) {
+        continue;
+      }
+      String id = key.substring(0, key.length() - ".model".length());
+      Properties modelProperties = new Properties();
+      modelProperties.putAll(properties);
+      String prefix = id + ".";
+      for (String property : models.stringPropertyNames()) {
+        if (property.startsWith(prefix)) {
+          modelProperties.setProperty(property.substring(prefix.length()),
+              models.getProperty(property));
+        }
+      }
+      if (!models.containsKey(prefix + "language")) {
+        throw new IOException("Missing the language of the model " + id + "!");
+      }
+      ids.add(id);
+      entries.put(id, new Entry(modelProperties));
+    }
+    if (ids.isEmpty()) {
+      throw new IOException("No <id>.model declared in the models file!");
+    }
+  }
+
+  /**
+   * Find the model of a model id or a language, the first model declared
+   * with that language if several.
+   *
+   * @param key
+   *          the model id or the language
+   * @return the model id, null if no model matches
+   */
+  public final String resolve(final String key) {
+    if (key == null) {
+      return null;
+    }
+    if (ids.contains(key)) {
+      return key;
+    }
+    for (String id : ids) {
+      if (getLanguage(id).equalsIgnoreCase(key)) {
+        return id;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the language of a model.
+   *
+   * @param id
+   *          the model id
+   * @return the language
+   */
+  public final String getLanguage(final String id) {
+    return getEntry(id).properties.getProperty("language");
+  }
+
+  /**
+   * Borrow an annotator of a model, loading the model if needed. The
+   * annotator must be given back with {@link #release(String, Annotate)}.
+   *
+   * @param id
+   *          the model id
+   * @return the annotator
+   * @throws IOException
+   *           if the model cannot be loaded
+   */
+  public final Annotate acquire(final String id) throws IOException {
+    Entry entry;
+    synchronized (this) {
+      // touching the entry makes it the most recently used
+      entry = entries.get(id);
+      entry.users++;
+    }
+    Annotate annotator = null;
+    try {
+      annotator = entry.borrow();
+    } finally {
+      if (annotator == null) {
+        synchronized (this) {
+          entry.users--;
+        }
+      }
+    }
+    evict();
+    return annotator;
+  }
+
+  /**
+   * Give back an annotator borrowed with {@link #acquire(String)}.
+   *
+   * @param id
+   *          the model id
+   * @param annotator
+   *          the annotator
+   */
+  public final void release(final String id, final Annotate annotator) {
+    Entry entry = getEntry(id);
+    entry.idle.add(annotator);
+    synchronized (this) {
+      entry.users--;
+    }
+    evict();
+  }
+
+  /**
+   * Get the number of models loaded.
+   *
+   * @return the number of models
+   */
+  public final synchronized int getLoadedModels() {
+    int loaded = 0;
+    for (Entry entry : entries.values()) {
+      if (entry.size > 0) {
+        loaded++;
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Get the estimated memory used by the models loaded.
+   *
+   * @return the bytes
+   */
+  public final synchronized long getMemory() {
+    long memory = 0;
+    for (Entry entry : entries.values()) {
+      memory += entry.size;
+    }
+    return memory;
+  }
+
+  /**
+   * Get the entry of a model without changing its order of use.
+   *
+   * @param id
+   *          the model id
+   * @return the entry
+   */
+  private synchronized Entry getEntry(final String id) {
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (entry.getKey().equals(id)) {
+        return entry.getValue();
+      }
+    }
+    throw new IllegalArgumentException("Unknown model " + id);
+  }
+
+  /**
+   * Unload the least recently used models not being used until the memory of
+   * the loaded models is within the budget.
+   */
+  private synchronized void evict() {
+    if (memoryBudget <= 0) {
+      return;
+    }
+    long memory = getMemory();
+    Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+    while (memory > memoryBudget && lru.hasNext()) {
+      Map.Entry<String, Entry> candidate = lru.next();
+      Entry entry = candidate.getValue();
+      if (entry.size > 0 && entry.users == 0) {
+        memory -= entry.size;
+        entry.unload();
+        metrics.count("model_evictions", 1);
+        System.out.println("-> Unloaded the model " + candidate.getKey()
+            + " to keep the models within " + memoryBudget + " bytes");
+      }
+    }
+  }
+
+  /**
+   * Estimate the memory used by some models: a model file is compressed and
+   * deserializing it takes several times its size, while a snapshot is
+   * mapped as it is.
+   *
+   * @param models
+   *          the comma-separated model files
+   * @return the estimated bytes
+   * @throws IOException
+   *           if a model file cannot be read
+   */
+  private static long estimateSize(final String models) throws IOException {
+    long size = 0;
+    for (String model : models.split(",")) {
+      File modelFile = new File(model.trim());
+      size += ModelLoader.isSnapshot(modelFile) ? modelFile.length()
+          : modelFile.length() * MODEL_HEAP_RATIO;
+    }
+    return size;
+  }
+
+  /**
+   * A model and the annotators not borrowed by any worker.
+   */
+  private final class Entry {
+
+    /**
+     * The annotation properties of the model.
+     */
+    private final Properties properties;
+    /**
+     * The annotators of the model not borrowed by any worker.
+     */
+    private final Queue<Annotate> idle = new ConcurrentLinkedQueue<Annotate>();
+    /**
+     * The estimated bytes used by the model, 0 if not loaded.
+     */
+    private long size;
+    /**
+     * The number of workers using or loading the model.
+     */
+    private int users;
+    /**
+     * The first annotator of the model, sharing its sentence cache with the
+     * others.
+     */
+    private Annotate first;
+
+    /**
+     * Construct an entry.
+     *
+     * @param modelProperties
+     *          the annotation properties of the model
+     */
+    private Entry(final Properties modelProperties) {
+      this.properties = modelProperties;
+    }
+
+    /**
+     * Borrow an idle annotator or create one, loading the model if needed.
+     *
+     * @return the annotator
+     * @throws IOException
+     *           if the model cannot be loaded
+     */
+    private Annotate borrow() throws IOException {
+      Annotate annotator = idle.poll();
+      if (annotator != null) {
+        return annotator;
+      }
+      Annotate shared;
+      synchronized (this) {
+        if (first == null) {
+          first = new Annotate(properties);
+          first.setMetrics(metrics);
+          long loadedSize = estimateSize(properties.getProperty("model"));
+          synchronized (ModelRegistry.this) {
+            size = loadedSize;
+          }
+          metrics.count("model_loads", 1);
+          return first;
+        }
+        shared = first;
+      }
+      annotator = new Annotate(properties);
+      annotator.shareSentenceCache(shared);
+      annotator.setMetrics(metrics);
+      return annotator;
+    }
+
+    /**
+     * Drop the annotators and the model, called with the lock of the registry
+     * when no worker uses or loads it.
+     */
+    private void unload() {
+      idle.clear();
+      first = null;
+      size = 0;
+      for (String model : properties.getProperty("model").split(",")) {
+        StatisticalNameFinder.unloadModel(model.trim());
+      }
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import ixa.kaflib.Entity;
+import ixa.kaflib.KAFDocument;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import opennlp.tools.util.Span;
+
+/**
+ * The result of annotating a document with {@link Annotate}: for every
+ * sentence, its tokens, the ids of the tokens, the named entity spans found
+ * and the entities added to the NAF document. Every output format is
+ * rendered from this result so that the document is tagged only once. When
+ * tokenized sentences are annotated directly the document is null and there
+ * are no entities.
+ *
+ * @author ragerri
+ * @version 2015-11-26
+ */
+public class NameAnnotations {
+
+  /**
+   * The annotated document.
+   */
+  private final KAFDocument kaf;
+  /**
+   * The tokens of every sentence.
+   */
+  private final List<String[]> tokens = new ArrayList<String[]>();
+  /**
+   * The ids of the tokens of every sentence.
+   */
+  private final List<String[]> tokenIds = new ArrayList<String[]>();
+  /**
+   * The named entity spans of every sentence.
+   */
+  private final List<Span[]> spans = new ArrayList<Span[]>();
+  /**
+   * The entities added to the document for every sentence.
+   */
+  private final List<List<Entity>> entities = new ArrayList<List<Entity>>();
+  /**
+   * Whether the adaptive features were cleared after every sentence.
+   */
+  private final boolean clearAdaptiveData;
+
+  /**
+   * Construct the annotations of a document.
+   *
+   * @param aKaf
+   *          the annotated document
+   * @param isClearAdaptiveData
+   *          whether the adaptive features are cleared after every sentence
+   */
+  public NameAnnotations(final KAFDocument aKaf,
+      final boolean isClearAdaptiveData) {
+    this.kaf = aKaf;
+    this.clearAdaptiveData = isClearAdaptiveData;
+  }
+
+  /**
+   * Add the annotation of the next sentence.
+   *
+   * @param sentTokens
+   *          the tokens
+   * @param sentTokenIds
+   *          the ids of the tokens
+   * @param sentSpans
+   *          the named entity spans
+   * @param sentEntities
+   *          the entities added to the document
+   */
+  public final void addSentence(final String[] sentTokens,
+      final String[] sentTokenIds, final Span[] sentSpans,
+      final List<Entity> sentEntities) {
+    tokens.add(sentTokens);
+    tokenIds.add(sentTokenIds);
+    spans.add(sentSpans);
+    entities.add(sentEntities);
+  }
+
+  /**
+   * Get the annotated document.
+   *
+   * @return the document, or null if tokenized sentences were annotated
+   */
+  public final KAFDocument getDocument() {
+    return kaf;
+  }
+
+  /**
+   * Get the number of sentences.
+   *
+   * @return the number of sentences
+   */
+  public final int size() {
+    return tokens.size();
+  }
+
+  /**
+   * Get the tokens of a sentence.
+   *
+   * @param sentence
+   *          the index of the sentence
+   * @return the tokens
+   */
+  public final String[] getTokens(final int sentence) {
+    return tokens.get(sentence);
+  }
+
+  /**
+   * Get the ids of the tokens of a sentence.
+   *
+   * @param sentence
+   *          the index of the sentence
+   * @return the token ids
+   */
+  public final String[] getTokenIds(final int sentence) {
+    return tokenIds.get(sentence);
+  }
+
+  /**
+   * Get the named entity spans of a sentence.
+   *
+   * @param sentence
+   *          the index of the sentence
+   * @return the spans
+   */
+  public final Span[] getSpans(final int sentence) {
+    return spans.get(sentence);
+  }
+
+  /**
+   * Get the entities added to the document for a sentence.
+   *
+   * @param sentence
+   *          the index of the sentence
+   * @return the entities
+   */
+  public final List<Entity> getEntities(final int sentence) {
+    return entities.get(sentence);
+  }
+
+  /**
+   * Whether the adaptive features were cleared after every sentence.
+   *
+   * @return true if cleared after every sentence
+   */
+  public final boolean isClearAdaptiveData() {
+    return clearAdaptiveData;
+  }
+}
@@ -19,22 +19,87 @@ package eus.ixa.ixa.pipe.nerc;
 import ixa.kaflib.KAFDocument;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.jdom2.JDOMException;
 
-import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import eus.ixa.ixa.pipe.nerc.train.Flags;
 
 public class NameFinderServer {
   
+  /**
+   * Closes the connections of the clients not reading their response in
+   * time and rejects the jobs waiting for a worker beyond their deadline.
+   */
+  private static final ScheduledExecutorService TIMEOUTS = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+          Thread thread = new Thread(runnable, "nerc-timeouts");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  /**
+   * The response with the spans as JSON.
+   */
+  private static final String JSON_OUTPUT = "json";
+  /**
+   * The response with only the new entities layer of a NAF document.
+   */
+  private static final String DELTA_OUTPUT = "delta";
+  /**
+   * The smallest HTTP response compressed if the client accepts it.
+   */
+  private static final int MIN_COMPRESSED_SIZE = 1024;
+  /**
+   * The size of a document which cannot be known before reading it, such as
+   * a compressed or chunked HTTP body.
+   */
+  private static final long UNKNOWN_SIZE = -1;
+  /**
+   * The error message of the jobs waiting for a worker beyond their deadline.
+   */
+  private static final String DEADLINE_EXCEEDED = "-> ERROR: Deadline exceeded waiting for a worker, try again later!!";
   /**
    * Get dynamically the version of ixa-pipe-nerc by looking at the MANIFEST
    * file.
@@ -46,14 +111,99 @@ public class NameFinderServer {
    */
   private final String commit = CLI.class.getPackage().getSpecificationVersion();
   /**
-   * The model.
+   * The properties of the server, the base of the properties of a new model.
+   */
+  private Properties serverProperties;
+  /**
+   * The annotators of the workers, replaced as a whole when the model is
+   * swapped.
    */
-  private String model = null;
+  private volatile Annotate[] annotators;
   /**
    * The annotation output format, one of NAF (default), CoNLL 2002, CoNLL 2003
    * and OpenNLP.
    */
   private String outputFormat = null;
+  /**
+   * Whether the NAF documents are read with {@link StreamingNAF}.
+   */
+  private boolean streamingNAF = false;
+  /**
+   * The input format, one of NAF (default), tokenized text, CoNLL and JSON
+   * lines.
+   */
+  private String inputFormat = null;
+  /**
+   * The language of the tokenized input.
+   */
+  private String language = null;
+  /**
+   * The milliseconds to wait for a client reading the request or the
+   * response, 0 to wait forever.
+   */
+  private int socketTimeout = 0;
+  /**
+   * The largest document accepted, in bytes.
+   */
+  private int maxDocumentSize;
+  /**
+   * The size in bytes above which a document is annotated by the workers of
+   * the large documents.
+   */
+  private int largeDocumentSize;
+  /**
+   * The nanoseconds a job can wait for a worker before being rejected, 0 to
+   * wait forever.
+   */
+  private long deadline;
+  /**
+   * The jobs waiting for a worker.
+   */
+  private BlockingQueue<Job> jobs;
+  /**
+   * The jobs of large documents waiting for a worker, the same queue as the
+   * other jobs if there are no workers for large documents.
+   */
+  private BlockingQueue<Job> largeJobs;
+  /**
+   * The metrics of the server.
+   */
+  private final Metrics metrics = new Metrics();
+  /**
+   * The number of workers doing a job.
+   */
+  private final AtomicInteger activeWorkers = new AtomicInteger();
+  /**
+   * The models documents can be routed to besides the model of the server,
+   * null if none.
+   */
+  private ModelRegistry registry;
+  /**
+   * The number of jobs submitted and not yet done.
+   */
+  private final AtomicInteger inFlight = new AtomicInteger();
+  /**
+   * The number of connections of the socket transport whose document is
+   * being read.
+   */
+  private final AtomicInteger reading = new AtomicInteger();
+  /**
+   * Whether the server is shutting down and rejects new jobs.
+   */
+  private volatile boolean draining = false;
+  /**
+   * The milliseconds to wait for the jobs in flight when shutting down.
+   */
+  private long drainTimeout;
+  /**
+   * Whether a model is being swapped.
+   */
+  private final AtomicBoolean swapping = new AtomicBoolean();
+  /**
+   * The directory of the models which can be swapped in, null if swapping
+   * is disabled.
+   */
+  private File swapDir;
   
   /**
    * Construct a NameFinder server.
@@ -64,81 +214,806 @@ public class NameFinderServer {
   public NameFinderServer(Properties properties) {
 
     Integer port = Integer.parseInt(properties.getProperty("port"));
-    model = properties.getProperty("model");
+    serverProperties = properties;
     outputFormat = properties.getProperty("outputFormat");
+    streamingNAF = properties.getProperty("nafReader", Flags.DEFAULT_NAF_READER).equalsIgnoreCase("stax")
+        && (outputFormat.equalsIgnoreCase("naf") || outputFormat.equalsIgnoreCase("opennlp"));
+    inputFormat = properties.getProperty("inputFormat", Flags.DEFAULT_INPUT_FORMAT);
+    language = properties.getProperty("language");
     
-    String kafToString;
+    int numWorkers = Integer.parseInt(properties.getProperty("workers", String.valueOf(Flags.DEFAULT_WORKERS)));
+    int numLargeWorkers = Integer.parseInt(properties.getProperty("largeWorkers", String.valueOf(Flags.DEFAULT_LARGE_WORKERS)));
+    int queueSize = Integer.parseInt(properties.getProperty("queueSize", String.valueOf(Flags.DEFAULT_QUEUE_SIZE)));
+    socketTimeout = Integer.parseInt(properties.getProperty("socketTimeout", String.valueOf(Flags.DEFAULT_SOCKET_TIMEOUT)));
+    String transport = properties.getProperty("transport", Flags.DEFAULT_TRANSPORT);
+    maxDocumentSize = Integer.parseInt(properties.getProperty("maxDocumentSize", String.valueOf(Flags.DEFAULT_MAX_DOCUMENT_SIZE)));
+    largeDocumentSize = Integer.parseInt(properties.getProperty("largeDocumentSize", String.valueOf(Flags.DEFAULT_LARGE_DOCUMENT_SIZE)));
+    deadline = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty("deadline", String.valueOf(Flags.DEFAULT_DEADLINE))));
+    drainTimeout = Long.parseLong(properties.getProperty("drainTimeout", String.valueOf(Flags.DEFAULT_DRAIN_TIMEOUT)));
+    jobs = new ArrayBlockingQueue<Job>(queueSize);
+    // without large workers every document goes to the same lane
+    largeJobs = numLargeWorkers > 0 ? new ArrayBlockingQueue<Job>(queueSize) : jobs;
     ServerSocket socketServer = null;
-    Socket activeSocket;
-    BufferedReader inFromClient = null;
-    BufferedWriter outToClient = null;
 
     try {
-      Annotate annotator = new Annotate(properties);
+      long heapBefore = usedHeap();
+      annotators = createAnnotators(properties, numWorkers + numLargeWorkers);
+      for (int i = 0; i < numWorkers + numLargeWorkers; i++) {
+        Thread worker = i < numWorkers ? new Thread(new Worker(i, jobs), "nerc-worker-" + i)
+            : new Thread(new Worker(i, largeJobs), "nerc-large-worker-" + (i - numWorkers));
+        worker.start();
+      }
+      System.out.println("-> Started " + numWorkers + " workers and " + numLargeWorkers
+          + " workers for large documents");
+      registerGauges(numWorkers + numLargeWorkers, usedHeap() - heapBefore);
+      String models = properties.getProperty("models", Flags.DEFAULT_MODELS);
+      if (!models.equals(Flags.DEFAULT_MODELS)) {
+        Properties modelDeclarations = new Properties();
+        try (InputStream modelsFile = new FileInputStream(models)) {
+          modelDeclarations.load(modelsFile);
+        }
+        long modelMemory = Long.parseLong(properties.getProperty("modelMemory", String.valueOf(Flags.DEFAULT_MODEL_MEMORY)));
+        registry = new ModelRegistry(modelDeclarations, properties, modelMemory * 1024 * 1024, metrics);
+        metrics.gauge("models_loaded", new Metrics.Gauge() {
+          @Override
+          public double getValue() {
+            return registry.getLoadedModels();
+          }
+        });
+        metrics.gauge("models_memory_bytes", new Metrics.Gauge() {
+          @Override
+          public double getValue() {
+            return registry.getMemory();
+          }
+        });
+        System.out.println("-> Routing documents to the models of " + models);
+      }
+      int metricsPort = Integer.parseInt(properties.getProperty("metricsPort", String.valueOf(Flags.DEFAULT_METRICS_PORT)));
+      if (metricsPort > 0) {
+        // admin commands are only served to the local host
+        HttpServer metricsServer = HttpServer.create(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), metricsPort), 0);
+        metricsServer.createContext("/metrics", new MetricsHandler());
+        String swapModels = properties.getProperty("swapDir", Flags.DEFAULT_SWAP_DIR);
+        if (!swapModels.equals(Flags.DEFAULT_SWAP_DIR)) {
+          swapDir = new File(swapModels).getCanonicalFile();
+          if (!swapDir.isDirectory()) {
+            throw new IOException("swap directory " + swapModels + " not found");
+          }
+          metricsServer.createContext("/swap", new SwapHandler());
+        }
+        metricsServer.start();
+        System.out.println("-> Serving metrics" + (swapDir != null ? " and model swaps from " + swapDir : "")
+            + " on port " + metricsPort + " of the local host");
+      }
       System.out.println("-> Trying to listen port... " + port);
-      socketServer = new ServerSocket(port);
+      if (transport.equalsIgnoreCase("frames")) {
+        FrameServer frameServer = new FrameServer(port, queueSize, maxDocumentSize, new FrameServer.Handler() {
+          @Override
+          public void handle(final FrameServer.Request request) {
+            if (request.getType() == FrameServer.METRICS) {
+              request.respond(metrics.toString());
+              return;
+            } else if (request.getType() != FrameServer.ANNOTATE
+                && request.getType() != FrameServer.ANNOTATE_MODEL) {
+              request.fail("-> ERROR: Unknown request type " + request.getType() + "!!");
+              return;
+            }
+            submit(new Job() {
+              @Override
+              public void run(Annotate annotator) {
+                serve(annotator, request);
+              }
+
+              @Override
+              public void reject(int status, String message) {
+                request.fail(message);
+              }
+            }, request.getDocumentSize());
+          }
+        });
+        final FrameServer frames = frameServer;
+        drainOnShutdown(new Transport() {
+          @Override
+          public void stopAccepting() {
+            frames.stopAccepting();
+          }
+
+          @Override
+          public boolean isIdle() {
+            return frames.isIdle();
+          }
+
+          @Override
+          public void close() throws IOException {
+            frames.close();
+          }
+        });
+        System.out.println("-> Connected and listening to port " + port + " for frames");
+        frameServer.run();
+        return;
+      } else if (transport.equalsIgnoreCase("http")) {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(port), queueSize);
+        httpServer.createContext("/metrics", new MetricsHandler());
+        httpServer.createContext("/annotate", new HttpHandler() {
+          @Override
+          public void handle(final HttpExchange exchange) throws IOException {
+            submit(new Job() {
+              @Override
+              public void run(Annotate annotator) {
+                serve(annotator, exchange);
+              }
+
+              @Override
+              public void reject(int status, String message) {
+                try {
+                  sendHttpResponse(exchange, status, "text/plain", message + "\n");
+                } catch (IOException e) {
+                  System.err.println("-> ERROR: Failed to send the response: " + e.getMessage());
+                } finally {
+                  exchange.close();
+                }
+              }
+            }, getHttpDocumentSize(exchange));
+          }
+        });
+        // the connections are kept alive by the dispatcher thread of the server
+        httpServer.start();
+        final HttpServer http = httpServer;
+        drainOnShutdown(new Transport() {
+          @Override
+          public void stopAccepting() {
+            // the port stays open and new requests are rejected, so that
+            // keep-alive clients learn at once that they must go elsewhere
+          }
+
+          @Override
+          public boolean isIdle() {
+            return true;
+          }
+
+          @Override
+          public void close() {
+            http.stop(0);
+          }
+        });
+        System.out.println("-> Connected and listening to port " + port + " for HTTP");
+        return;
+      }
+      socketServer = new ServerSocket(port, queueSize);
+      final ServerSocket listener = socketServer;
+      // the documents are read before choosing their lane, so that slow or
+      // large uploads never hold the workers of the small documents
+      ExecutorService readers = new ThreadPoolExecutor(0, queueSize, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+              Thread thread = new Thread(runnable, "nerc-reader");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      drainOnShutdown(new Transport() {
+        @Override
+        public void stopAccepting() throws IOException {
+          listener.close();
+        }
+
+        @Override
+        public boolean isIdle() {
+          return reading.get() == 0;
+        }
+
+        @Override
+        public void close() {
+          // the responses are written by the workers
+        }
+      });
       System.out.println("-> Connected and listening to port " + port);
       while (true) {
+        final Socket activeSocket = socketServer.accept();
+        reading.incrementAndGet();
         try {
-          activeSocket = socketServer.accept();
-          inFromClient = new BufferedReader(new InputStreamReader(activeSocket.getInputStream(), "UTF-8"));
-          outToClient = new BufferedWriter(new OutputStreamWriter(activeSocket.getOutputStream(), "UTF-8"));
-          //get data from client
-          String stringFromClient = getClientData(inFromClient);
-          // annotate
-          kafToString = getAnnotations(annotator, stringFromClient);
-        } catch (JDOMException e) {
-          kafToString = "\n-> ERROR: Badly formatted NAF document!!\n";
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        } catch (UnsupportedEncodingException e) {
-          kafToString = "\n-> ERROR: UTF-8 not supported!!\n";
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        } catch (IOException e) {
-          kafToString = "\n -> ERROR: Input data not correct!!\n";
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        }
-        //send data to server after all exceptions and close the outToClient
-        sendDataToClient(outToClient, kafToString);
-        //close the resources
-        inFromClient.close();
-        activeSocket.close();
+          readers.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                read(activeSocket);
+              } finally {
+                reading.decrementAndGet();
+              }
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          reading.decrementAndGet();
+          metrics.count("requests", 1);
+          metrics.count("rejected", 1);
+          respond(activeSocket, "\n-> ERROR: Server busy, try again later!!\n");
+        }
       } //end of processing block
     } catch (IOException e) {
+      if (!draining) {
+        e.printStackTrace();
+        System.err.println("-> IOException due to failing to create the TCP socket or to wrongly provided model path.");
+      }
+    } finally {
+      try {
+        if (socketServer != null && !socketServer.isClosed()) {
+          System.out.println("closing tcp socket...");
+          socketServer.close();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Queue a job in the lane for the size of its document, rejecting it at once
+   * if the document is too large or the lane is full, so that the clients do
+   * not wait for a server which is already overloaded.
+   * @param job the job
+   * @param size the size of the document in bytes, or {@link #UNKNOWN_SIZE}
+   * if it can only be known reading the document, which is then sent to the
+   * lane of the large documents
+   */
+  private void submit(final Job job, long size) {
+    metrics.count("requests", 1);
+    if (draining) {
+      metrics.count("rejected", 1);
+      job.reject(503, "-> ERROR: Server shutting down, try again later!!");
+    } else {
+      queue(job, size);
+    }
+  }
+
+  /**
+   * Queue a job of a request already accepted in the lane for the size of its
+   * document, rejecting it at once if the document is too large or the lane
+   * is full.
+   * @param job the job
+   * @param size the size of the document in bytes, as in {@link #submit}
+   */
+  private void queue(final Job job, long size) {
+    final BlockingQueue<Job> lane = size == UNKNOWN_SIZE || size > largeDocumentSize ? largeJobs : jobs;
+    if (size > maxDocumentSize) {
+      metrics.count("rejected", 1);
+      job.reject(413, "-> ERROR: Document of " + size + " bytes larger than the maximum of "
+          + maxDocumentSize + " bytes!!");
+    } else if (!offer(lane, job)) {
+      metrics.count("rejected", 1);
+      job.reject(503, "-> ERROR: Server busy, try again later!!");
+    } else if (deadline > 0) {
+      TIMEOUTS.schedule(new Runnable() {
+        @Override
+        public void run() {
+          // only rejected if no worker has taken it yet
+          if (lane.remove(job)) {
+            inFlight.decrementAndGet();
+            metrics.count("rejected", 1);
+            job.reject(503, DEADLINE_EXCEEDED);
+          }
+        }
+      }, deadline, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Queue a job counting it as in flight.
+   * @param lane the lane of the job
+   * @param job the job
+   * @return whether the job was queued
+   */
+  private boolean offer(BlockingQueue<Job> lane, Job job) {
+    // counted before queued so that a drain never misses it
+    inFlight.incrementAndGet();
+    if (lane.offer(job)) {
+      return true;
+    }
+    inFlight.decrementAndGet();
+    return false;
+  }
+
+  /**
+   * Shut the server down gracefully when the JVM is asked to exit, for
+   * example with SIGTERM: new jobs are rejected, the transport stops
+   * accepting connections and the jobs in flight are finished, waiting at
+   * most the drain timeout, before the transport is closed.
+   * @param transport the transport of the server
+   */
+  private void drainOnShutdown(final Transport transport) {
+    Runtime.getRuntime().addShutdownHook(new Thread("nerc-drain") {
+      @Override
+      public void run() {
+        draining = true;
+        System.out.println("-> Shutting down, draining " + inFlight.get() + " requests...");
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+        try {
+          transport.stopAccepting();
+          while ((inFlight.get() > 0 || !transport.isIdle()) && System.nanoTime() < end) {
+            Thread.sleep(20);
+          }
+          if (inFlight.get() > 0) {
+            System.out.println("-> Drain timeout, abandoning " + inFlight.get() + " requests");
+          }
+          transport.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        System.out.println("-> Server stopped");
+      }
+    });
+  }
+
+  /**
+   * Load a model, warm it up and switch the workers to it at once: the jobs
+   * started before the switch finish with the previous model and the
+   * following ones use the new model.
+   * @param newModel the model path, or several paths separated by commas
+   * @throws IOException if the model cannot be loaded
+   */
+  private void swapModel(String newModel) throws IOException {
+    List<String> newPaths = new ArrayList<String>();
+    for (String modelPath : newModel.split(",")) {
+      newPaths.add(modelPath.trim());
+    }
+    for (String modelPath : newPaths) {
+      if (!new File(modelPath).isFile()) {
+        throw new IOException("model " + modelPath + " not found");
+      }
+    }
+    Properties swapProperties = new Properties();
+    swapProperties.putAll(serverProperties);
+    swapProperties.setProperty("model", newModel);
+    // the new model runs before taking traffic even without --warmUp
+    int iterations = Integer.parseInt(serverProperties.getProperty("warmUp", String.valueOf(Flags.DEFAULT_WARMUP)));
+    swapProperties.setProperty("warmUp", Integer.toString(Math.max(iterations, 1)));
+    // a model replaced in the same path must be read again
+    for (String modelPath : newPaths) {
+      StatisticalNameFinder.unloadModel(modelPath);
+    }
+    Annotate[] previous = annotators;
+    annotators = createAnnotators(swapProperties, previous.length);
+    for (String modelPath : previous[0].getModel().split(",")) {
+      if (!newPaths.contains(modelPath.trim())) {
+        StatisticalNameFinder.unloadModel(modelPath.trim());
+      }
+    }
+    metrics.count("model_swaps", 1);
+  }
+
+  /**
+   * Resolve the comma-separated model paths POSTed to /swap against the swap
+   * directory.
+   * @param newModel the model paths, relative to the swap directory
+   * @return the comma-separated canonical paths of the models
+   * @throws IOException if a path is outside the swap directory
+   */
+  private String resolveSwapModel(String newModel) throws IOException {
+    StringBuilder resolved = new StringBuilder();
+    for (String modelPath : newModel.split(",")) {
+      File model = new File(swapDir, modelPath.trim()).getCanonicalFile();
+      if (!model.toPath().startsWith(swapDir.toPath())) {
+        throw new IOException("model " + modelPath.trim() + " outside the swap directory");
+      }
+      if (resolved.length() > 0) {
+        resolved.append(',');
+      }
+      resolved.append(model.getPath());
+    }
+    return resolved.toString();
+  }
+
+  /**
+   * Create an annotator for every worker, warming up the first one. The
+   * models are loaded only once and the sentence cache is shared.
+   * @param properties the properties of the annotators
+   * @param count the number of workers
+   * @return the annotators
+   * @throws IOException if the model or the warm-up corpus cannot be read
+   */
+  private Annotate[] createAnnotators(Properties properties, int count) throws IOException {
+    Annotate first = new Annotate(properties);
+    warmUp(first, properties);
+    Annotate[] created = new Annotate[count];
+    for (int i = 0; i < count; i++) {
+      created[i] = first;
+      if (i > 0) {
+        created[i] = new Annotate(properties);
+        created[i].shareSentenceCache(first);
+      }
+      created[i].setMetrics(metrics);
+    }
+    return created;
+  }
+
+  /**
+   * Read the document sent through a connection, in a reader thread, and
+   * queue it in the lane for its size. A connection accepted before the
+   * server starts draining is still annotated.
+   * @param activeSocket the connection
+   */
+  private void read(final Socket activeSocket) {
+    metrics.count("requests", 1);
+    final String stringFromClient;
+    try {
+      activeSocket.setSoTimeout(socketTimeout);
+      BufferedReader inFromClient = new BufferedReader(new InputStreamReader(activeSocket.getInputStream(), "UTF-8"));
+      //get data from client
+      stringFromClient = getClientData(inFromClient);
+    } catch (IOException e) {
+      metrics.count("errors", 1);
+      respond(activeSocket, "\n -> ERROR: Input data not correct: " + e.getMessage() + "!!\n");
+      return;
+    }
+    queue(new Job() {
+      @Override
+      public void run(Annotate annotator) {
+        annotate(annotator, activeSocket, stringFromClient);
+      }
+
+      @Override
+      public void reject(int status, String message) {
+        respond(activeSocket, "\n" + message + "\n");
+      }
+    }, stringFromClient.length());
+  }
+
+  /**
+   * Annotate the document sent through a connection and send back the result.
+   * @param annotator the annotator of the worker
+   * @param activeSocket the connection
+   * @param stringFromClient the document
+   */
+  private void annotate(Annotate annotator, Socket activeSocket, String stringFromClient) {
+    String kafToString;
+    try {
+      kafToString = getAnnotations(annotator, stringFromClient);
+    } catch (JDOMException e) {
+      metrics.count("errors", 1);
+      kafToString = "\n-> ERROR: Badly formatted NAF document!!\n";
+    } catch (IOException e) {
+      metrics.count("errors", 1);
+      kafToString = "\n -> ERROR: Input data not correct!!\n";
+    } catch (RuntimeException e) {
       e.printStackTrace();
-      System.err.println("-> IOException due to failing to create the TCP socket or to wrongly provided model path.");
+      metrics.count("errors", 1);
+      kafToString = "\n-> ERROR: Failed to annotate the document!!\n";
+    }
+    respond(activeSocket, kafToString);
+  }
+
+  /**
+   * Send the response through a connection and close it.
+   * @param activeSocket the connection
+   * @param kafToString the response
+   */
+  private void respond(Socket activeSocket, String kafToString) {
+    try {
+      BufferedWriter outToClient = new BufferedWriter(new OutputStreamWriter(activeSocket.getOutputStream(), "UTF-8"));
+      sendDataToClient(activeSocket, outToClient, kafToString);
+    } catch (IOException e) {
+      System.err.println("-> ERROR: Failed to send the response: " + e.getMessage());
     } finally {
-      System.out.println("closing tcp socket...");
       try {
-        socketServer.close();
+        activeSocket.close();
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
   }
+
+  /**
+   * Annotate the document of a frame request and send back the result. The
+   * payload of the requests of type {@link FrameServer#ANNOTATE_MODEL} starts
+   * with a line naming the model id or the language, and the requests with
+   * the {@link FrameServer#DELTA} flag get only the new entities layer.
+   * @param annotator the annotator of the worker
+   * @param request the request
+   */
+  private void serve(Annotate annotator, FrameServer.Request request) {
+    try {
+      String document = request.getPayload();
+      String route = null;
+      if (request.getType() == FrameServer.ANNOTATE_MODEL) {
+        // the first line of the payload names the model or the language
+        int endOfRoute = document.indexOf('\n');
+        if (endOfRoute < 0) {
+          throw new IOException("missing the model of the request");
+        }
+        route = document.substring(0, endOfRoute).trim();
+        document = document.substring(endOfRoute + 1);
+      }
+      request.respond(getAnnotations(annotator, document, inputFormat,
+          request.hasFlag(FrameServer.DELTA) ? DELTA_OUTPUT : null, route));
+    } catch (JDOMException e) {
+      metrics.count("errors", 1);
+      request.fail("-> ERROR: Badly formatted NAF document!!");
+    } catch (IOException e) {
+      metrics.count("errors", 1);
+      request.fail("-> ERROR: Input data not correct!!");
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      metrics.count("errors", 1);
+      request.fail("-> ERROR: Failed to annotate the document!!");
+    }
+  }
+
+  /**
+   * Annotate the document POSTed in an HTTP request and send back the result.
+   * The document is a JSON array of token arrays if the content type is
+   * application/json and in the input format of the server otherwise; the
+   * response contains the spans as JSON if the client accepts
+   * application/json or asks for output=json in the query, only the new
+   * entities layer of a NAF document for output=delta, and the document
+   * in the output format of the server otherwise. The request and the
+   * response may be compressed with gzip or deflate.
+   * @param annotator the annotator of the worker
+   * @param exchange the HTTP exchange
+   */
+  private void serve(Annotate annotator, HttpExchange exchange) {
+    try {
+      if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+        exchange.getResponseHeaders().set("Allow", "POST");
+        sendHttpResponse(exchange, 405, "text/plain", "-> ERROR: Documents must be POSTed!!\n");
+        return;
+      }
+      String document = readHttpBody(exchange);
+      if (document == null) {
+        sendHttpResponse(exchange, 413, "text/plain", "-> ERROR: Document larger than the maximum of "
+            + maxDocumentSize + " bytes!!\n");
+        return;
+      }
+      String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+      String documentFormat = contentType != null && contentType.startsWith("application/json")
+          ? TokenizedInput.JSON : inputFormat;
+      String accept = exchange.getRequestHeaders().getFirst("Accept");
+      String query = exchange.getRequestURI().getQuery();
+      String output = null;
+      if (accept != null && accept.contains("application/json") || ("output=" + JSON_OUTPUT).equals(query)) {
+        output = JSON_OUTPUT;
+      } else if (("output=" + DELTA_OUTPUT).equals(query)) {
+        output = DELTA_OUTPUT;
+      }
+      // the model is chosen by id or language, else by the language of the document
+      String route = exchange.getRequestHeaders().getFirst("X-Model");
+      if (route == null) {
+        route = exchange.getRequestHeaders().getFirst("Content-Language");
+      }
+      try {
+        String annotations = getAnnotations(annotator, document, documentFormat, output, route);
+        sendHttpResponse(exchange, 200, JSON_OUTPUT.equals(output) ? "application/json"
+            : outputFormat.equalsIgnoreCase("naf") ? "application/xml" : "text/plain", annotations);
+      } catch (JDOMException e) {
+        metrics.count("errors", 1);
+        sendHttpResponse(exchange, 400, "text/plain", "-> ERROR: Badly formatted NAF document!!\n");
+      } catch (IOException e) {
+        metrics.count("errors", 1);
+        sendHttpResponse(exchange, 400, "text/plain", "-> ERROR: Input data not correct: "
+            + e.getMessage() + "\n");
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        metrics.count("errors", 1);
+        sendHttpResponse(exchange, 500, "text/plain", "-> ERROR: Failed to annotate the document!!\n");
+      }
+    } catch (IOException e) {
+      System.err.println("-> ERROR: Failed to send the response: " + e.getMessage());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Get the size of the document of an HTTP request before reading it: its
+   * content length, unless the body is compressed or chunked.
+   * @param exchange the HTTP exchange
+   * @return the size of the document, {@link #UNKNOWN_SIZE} if not known
+   */
+  private static long getHttpDocumentSize(HttpExchange exchange) {
+    String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+    String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    if (contentLength == null
+        || contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+      return UNKNOWN_SIZE;
+    }
+    return Long.parseLong(contentLength);
+  }
+
+  /**
+   * Read the body of an HTTP request, decompressing it if its content
+   * encoding is gzip or deflate.
+   * @param exchange the HTTP exchange
+   * @return the body, null if larger than the maximum document size
+   * @throws IOException if io error
+   */
+  private String readHttpBody(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    InputStream requestBody = exchange.getRequestBody();
+    String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    if ("gzip".equalsIgnoreCase(contentEncoding)) {
+      requestBody = new GZIPInputStream(requestBody);
+    } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+      requestBody = new InflaterInputStream(requestBody);
+    }
+    int read;
+    while ((read = requestBody.read(buffer)) != -1) {
+      if (body.size() + read > maxDocumentSize) {
+        return null;
+      }
+      body.write(buffer, 0, read);
+    }
+    return body.toString("UTF-8");
+  }
+
+  /**
+   * Send the response of an HTTP request with its length, so that the
+   * connection can be kept alive, compressed with gzip or deflate if the
+   * client accepts it.
+   * @param exchange the HTTP exchange
+   * @param status the status code
+   * @param contentType the media type of the response
+   * @param response the response
+   * @throws IOException if io error
+   */
+  private void sendHttpResponse(HttpExchange exchange, int status, String contentType,
+      String response) throws IOException {
+    byte[] bytes = response.getBytes("UTF-8");
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && bytes.length >= MIN_COMPRESSED_SIZE) {
+      String encoding = acceptEncoding.contains("gzip") ? "gzip"
+          : acceptEncoding.contains("deflate") ? "deflate" : null;
+      if (encoding != null) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (OutputStream compressor = encoding.equals("gzip") ? new GZIPOutputStream(compressed)
+            : new DeflaterOutputStream(compressed)) {
+          compressor.write(bytes);
+        }
+        bytes = compressed.toByteArray();
+        exchange.getResponseHeaders().set("Content-Encoding", encoding);
+      }
+    }
+    exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream responseBody = exchange.getResponseBody();
+    responseBody.write(bytes);
+    responseBody.flush();
+  }
+
+  /**
+   * Register the gauges of the server: throughput, queues, workers and
+   * memory.
+   * @param numWorkers the number of workers
+   * @param modelsHeap the heap used by the models and the annotators, in bytes
+   */
+  private void registerGauges(final int numWorkers, final long modelsHeap) {
+    metrics.gauge("tokens_per_second", new Metrics.Gauge() {
+      @Override
+      public double getValue() {
+        return metrics.getCount("tokens") / metrics.getUptime();
+      }
+    });
+    metrics.gauge("queue_depth", new Metrics.Gauge() {
+      @Override
+      public double getValue() {
+        return jobs.size();
+      }
+    });
+    metrics.gauge("large_queue_depth", new Metrics.Gauge() {
+      @Override
+      public double getValue() {
+        return largeJobs == jobs ? 0 : largeJobs.size();
+      }
+    });
+    metrics.gauge("workers", new Metrics.Gauge() {
+      @Override
+      public double getValue() {
+        return numWorkers;
+      }
+    });
+    metrics.gauge("active_workers", new Metrics.Gauge() {
+      @Override
+      public double getValue() {
+        return activeWorkers.get();
+      }
+    });
+    metrics.gauge("heap_used_bytes", new Metrics.Gauge() {
+      @Override
+      public double getValue() {
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+      }
+    });
+    metrics.gauge("heap_max_bytes", new Metrics.Gauge() {
+      @Override
+      public double getValue() {
+        return Runtime.getRuntime().maxMemory();
+      }
+    });
+    metrics.gauge("models_heap_bytes", new Metrics.Gauge() {
+      @Override
+      public double getValue() {
+        return modelsHeap;
+      }
+    });
+    if (annotators[0].getSentenceCache() != null) {
+      // the cache is replaced with the model
+      metrics.gauge("sentence_cache_sentences", new Metrics.Gauge() {
+        @Override
+        public double getValue() {
+          return annotators[0].getSentenceCache().size();
+        }
+      });
+      metrics.gauge("sentence_cache_hit_rate", new Metrics.Gauge() {
+        @Override
+        public double getValue() {
+          return annotators[0].getSentenceCache().getHitRate();
+        }
+      });
+    }
+  }
+
+  /**
+   * Get the heap used after a garbage collection, to estimate the memory
+   * used by the models at startup.
+   * @return the bytes used
+   */
+  private static long usedHeap() {
+    System.gc();
+    return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+  }
+
+  /**
+   * Run the warm-up corpus through the annotator before accepting requests
+   * if the warmUp property sets a number of iterations.
+   * @param annotator the annotator
+   * @param properties the properties
+   * @throws IOException if the warm-up corpus cannot be read
+   */
+  private void warmUp(Annotate annotator, Properties properties) throws IOException {
+    int iterations = Integer.parseInt(properties.getProperty("warmUp", String.valueOf(Flags.DEFAULT_WARMUP)));
+    if (iterations > 0) {
+      String warmUpCorpus = properties.getProperty("warmUpCorpus", Flags.DEFAULT_WARMUP_CORPUS);
+      WarmUp warmUp = warmUpCorpus.equals(Flags.DEFAULT_WARMUP_CORPUS) ? new WarmUp(
+          properties.getProperty("language")) : new WarmUp(new File(warmUpCorpus));
+      System.out.println("-> Warming up with " + iterations + " iterations at most...");
+      // the warm-up corpus would fill the sentence cache and skip the models
+      Annotate warmUpAnnotator = annotator;
+      if (annotator.getSentenceCache() != null) {
+        Properties warmUpProperties = new Properties();
+        warmUpProperties.putAll(properties);
+        warmUpProperties.remove("sentenceCache");
+        warmUpAnnotator = new Annotate(warmUpProperties);
+      }
+      try {
+        warmUp.warmUp(warmUpAnnotator, outputFormat, iterations);
+      } catch (JDOMException e) {
+        System.err.println("-> ERROR: Badly formatted NAF warm-up corpus, skipping warm-up!!");
+      }
+    }
+  }
   
   /**
    * Read data from the client and output to a String.
    * @param inFromClient the client inputstream
    * @return the string from the client
+   * @throws IOException if io error, the client is too slow or the document too large
    */
-  private String getClientData(BufferedReader inFromClient) {
+  private String getClientData(BufferedReader inFromClient) throws IOException {
     StringBuilder stringFromClient = new StringBuilder();
-    try {
-      String line;
-      while ((line = inFromClient.readLine()) != null) {
-        if (line.matches("<ENDOFDOCUMENT>")) {
-          break;
-        }
-        stringFromClient.append(line).append("\n");
-        if (line.matches("</NAF>")) {
-          break;
-        }
+    String line;
+    while ((line = inFromClient.readLine()) != null) {
+      if (line.equals("<ENDOFDOCUMENT>")) {
+        break;
+      }
+      stringFromClient.append(line).append("\n");
+      if (stringFromClient.length() > maxDocumentSize) {
+        throw new IOException("document larger than the maximum of " + maxDocumentSize + " bytes");
+      }
+      if (line.equals("</NAF>")) {
+        break;
       }
-    }catch (IOException e) {
-      e.printStackTrace();
     }
     return stringFromClient.toString();
   }
@@ -153,6 +1028,39 @@ public class NameFinderServer {
     outToClient.write(kafToString);
     outToClient.close();
   }
+
+  /**
+   * Send data back to the client after annotation, closing the connection if
+   * the client does not read it within the socket timeout.
+   * @param activeSocket the connection
+   * @param outToClient the outputstream to the client
+   * @param kafToString the string to be processed
+   * @throws IOException if io error
+   */
+  private void sendDataToClient(final Socket activeSocket, BufferedWriter outToClient,
+      String kafToString) throws IOException {
+    ScheduledFuture<?> watchdog = null;
+    if (socketTimeout > 0) {
+      // sockets only time out reading, closing the socket unblocks the write
+      watchdog = TIMEOUTS.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            activeSocket.close();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }, socketTimeout, TimeUnit.MILLISECONDS);
+    }
+    try {
+      sendDataToClient(outToClient, kafToString);
+    } finally {
+      if (watchdog != null) {
+        watchdog.cancel(false);
+      }
+    }
+  }
   
   /**
    * Named Entity annotator.
@@ -163,28 +1071,305 @@ public class NameFinderServer {
    * @throws JDOMException if xml error
    */
   private String getAnnotations(Annotate annotator, String stringFromClient) throws JDOMException, IOException {
-    //get a breader from the string coming from the client
-    BufferedReader clientReader = new BufferedReader(new StringReader(stringFromClient));
-    KAFDocument kaf = KAFDocument.createFromStream(clientReader);
-    KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
+    return getAnnotations(annotator, stringFromClient, inputFormat, null, null);
+  }
+
+  /**
+   * Named Entity annotator of a document in some input format. With a
+   * registry of models, the document is annotated with the model of the
+   * route or else with the model of the language of the document, the model
+   * of the server being used for its own language.
+   * @param annotator the annotator of the model of the server
+   * @param stringFromClient the string to be annotated
+   * @param documentFormat the input format of the document
+   * @param output {@link #JSON_OUTPUT} for the spans as JSON, {@link #DELTA_OUTPUT} for
+   *          the new entities layer only, null for the output format of the server
+   * @param route the model id or the language requested, null if not requested
+   * @return the annotation result
+   * @throws IOException if io error or no model for the route
+   * @throws JDOMException if xml error
+   */
+  private String getAnnotations(Annotate annotator, String stringFromClient, String documentFormat,
+      String output, String route) throws JDOMException, IOException {
+    String modelId = null;
+    if (route != null && !route.equalsIgnoreCase(language)) {
+      modelId = registry == null ? null : registry.resolve(route);
+      if (modelId == null) {
+        throw new IOException("no model for " + route);
+      }
+    }
+    long start = System.nanoTime();
+    StreamingNAF naf = null;
+    KAFDocument kaf = null;
+    if (!documentFormat.equalsIgnoreCase("naf")) {
+      BufferedReader clientReader = new BufferedReader(new StringReader(stringFromClient));
+      naf = new StreamingNAF(modelId == null ? language : registry.getLanguage(modelId),
+          TokenizedInput.readSentences(clientReader, documentFormat));
+    } else if (streamingNAF || output != null) {
+      naf = new StreamingNAF(stringFromClient);
+    } else {
+      //get a breader from the string coming from the client
+      BufferedReader clientReader = new BufferedReader(new StringReader(stringFromClient));
+      kaf = KAFDocument.createFromStream(clientReader);
+    }
+    metrics.record("parse", System.nanoTime() - start);
+    String documentLanguage = kaf != null ? kaf.getLang() : naf.getLang();
+    if (route == null && registry != null && documentLanguage != null
+        && !documentLanguage.equalsIgnoreCase(language)) {
+      // documents of unknown languages are annotated with the model of the server
+      modelId = registry.resolve(documentLanguage);
+    }
+    if (modelId == null) {
+      return getAnnotations(annotator, naf, kaf, output);
+    }
+    Annotate modelAnnotator = registry.acquire(modelId);
+    try {
+      return getAnnotations(modelAnnotator, naf, kaf, output);
+    } finally {
+      registry.release(modelId, modelAnnotator);
+    }
+  }
+
+  /**
+   * Named Entity annotator of a parsed document.
+   * @param annotator the annotator
+   * @param naf the document if read with {@link StreamingNAF}, null otherwise
+   * @param kaf the document if read with {@link KAFDocument}, null otherwise
+   * @param output {@link #JSON_OUTPUT} for the spans as JSON, {@link #DELTA_OUTPUT} for
+   *          the new entities layer only, null for the output format of the server
+   * @return the annotation result
+   * @throws IOException if io error
+   */
+  private String getAnnotations(Annotate annotator, StreamingNAF naf,
+      KAFDocument kaf, String output) throws IOException {
+    Date beginTimestamp = new Date();
+    NameAnnotations annotations;
+    if (naf != null) {
+      annotations = annotator.annotateNames(naf.getSentences(), naf.getTokenIds());
+    } else {
+      KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
           "entities",
-          "ixa-pipe-nerc-" + Files.getNameWithoutExtension(model), version
+          "ixa-pipe-nerc-" + Annotate.getModelName(annotator.getModel()), version
               + "-" + commit);
-    newLp.setBeginTimestamp();
-    annotator.annotateNEs(kaf);
-    newLp.setEndTimestamp();
+      newLp.setBeginTimestamp();
+      annotations = annotator.annotateNames(kaf);
+      newLp.setEndTimestamp();
+    }
+    Date endTimestamp = new Date();
+    long start = System.nanoTime();
     // get outputFormat
     String kafToString = null;
-    if (outputFormat.equalsIgnoreCase("conll03")) {
-      kafToString = annotator.annotateNEsToCoNLL2003(kaf);
+    if (JSON_OUTPUT.equals(output)) {
+      kafToString = annotator.annotateNEsToJSON(annotations);
+    } else if (outputFormat.equalsIgnoreCase("conll03")) {
+      kafToString = annotator.annotateNEsToCoNLL2003(annotations);
     } else if (outputFormat.equalsIgnoreCase("conll02")) {
-      kafToString = annotator.annotateNEsToCoNLL2002(kaf);
+      kafToString = annotator.annotateNEsToCoNLL2002(annotations);
     } else if (outputFormat.equalsIgnoreCase("opennlp")) {
-      kafToString = annotator.annotateNEsToOpenNLP(kaf);
+      kafToString = annotator.annotateNEsToOpenNLP(annotations);
+    } else if (naf != null && DELTA_OUTPUT.equals(output)) {
+      kafToString = naf.toDelta(annotations, "ixa-pipe-nerc-" + Annotate.getModelName(annotator.getModel()),
+          version + "-" + commit, beginTimestamp, endTimestamp);
+    } else if (naf != null) {
+      kafToString = naf.toNAF(annotations, "ixa-pipe-nerc-" + Annotate.getModelName(annotator.getModel()),
+          version + "-" + commit, beginTimestamp, endTimestamp);
     } else {
-      kafToString = annotator.annotateNEsToKAF(kaf);
+      kafToString = annotator.annotateNEsToKAF(annotations);
     }
+    metrics.record("serialize", System.nanoTime() - start);
     return kafToString;
   }
 
+  /**
+   * Serves the metrics of the server in the Prometheus text format from the
+   * dispatcher thread of an HTTP server, so that they are available even if
+   * every worker is busy.
+   */
+  private class MetricsHandler implements HttpHandler {
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+      try {
+        sendHttpResponse(exchange, 200, "text/plain", metrics.toString());
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  /**
+   * Swaps the model of the server with the model whose path is POSTed,
+   * responding once the new model serves the requests. The model is loaded
+   * in its own thread, so that the metrics are still served meanwhile.
+   */
+  private class SwapHandler implements HttpHandler {
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+      if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+        exchange.getResponseHeaders().set("Allow", "POST");
+        sendHttpResponse(exchange, 405, "text/plain", "-> ERROR: The model path must be POSTed!!\n");
+        exchange.close();
+        return;
+      }
+      String body = readHttpBody(exchange);
+      if (body == null) {
+        sendHttpResponse(exchange, 413, "text/plain", "-> ERROR: Model path larger than the maximum of "
+            + maxDocumentSize + " bytes!!\n");
+        exchange.close();
+        return;
+      }
+      final String newModel;
+      try {
+        newModel = resolveSwapModel(body.trim());
+      } catch (IOException e) {
+        sendHttpResponse(exchange, 403, "text/plain", "-> ERROR: " + e.getMessage() + "!!\n");
+        exchange.close();
+        return;
+      }
+      if (!swapping.compareAndSet(false, true)) {
+        sendHttpResponse(exchange, 409, "text/plain", "-> ERROR: A model swap is already in progress!!\n");
+        exchange.close();
+        return;
+      }
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long start = System.nanoTime();
+          int status = 200;
+          String response;
+          try {
+            System.out.println("-> Swapping the model to " + newModel + "...");
+            swapModel(newModel);
+            response = "-> Swapped the model to " + newModel + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms";
+          } catch (IOException e) {
+            status = 500;
+            response = "-> ERROR: Failed to swap the model to " + newModel + ": " + e.getMessage();
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+            status = 500;
+            response = "-> ERROR: Failed to swap the model to " + newModel + ": " + e;
+          } finally {
+            swapping.set(false);
+          }
+          System.out.println(response);
+          try {
+            sendHttpResponse(exchange, status, "text/plain", response + "\n");
+          } catch (IOException e) {
+            System.err.println("-> ERROR: Failed to send the response: " + e.getMessage());
+          } finally {
+            exchange.close();
+          }
+        }
+      }, "nerc-swap").start();
+    }
+  }
+
+  /**
+   * The transport of the server, as seen by a graceful shutdown.
+   */
+  private interface Transport {
+
+    /**
+     * Stop accepting new connections.
+     * @throws IOException if io error
+     */
+    void stopAccepting() throws IOException;
+
+    /**
+     * Check whether every response has been sent.
+     * @return true if no response is waiting to be sent
+     */
+    boolean isIdle();
+
+    /**
+     * Close the connections left.
+     * @throws IOException if io error
+     */
+    void close() throws IOException;
+  }
+
+  /**
+   * A unit of work done by a worker with its annotator.
+   */
+  private abstract static class Job {
+
+    /**
+     * The time the job was submitted, in nanoseconds.
+     */
+    private final long submitted = System.nanoTime();
+
+    /**
+     * Do the work.
+     * @param annotator the annotator of the worker
+     */
+    abstract void run(Annotate annotator);
+
+    /**
+     * Tell the client that the work will not be done.
+     * @param status the HTTP status code of the rejection
+     * @param message the error message
+     */
+    abstract void reject(int status, String message);
+  }
+
+  /**
+   * A worker doing the jobs of a lane of the server, one at a time, with its
+   * own annotator of the current model.
+   */
+  private class Worker implements Runnable {
+
+    /**
+     * The index of the annotator of the worker.
+     */
+    private final int index;
+    /**
+     * The jobs of the lane of the worker.
+     */
+    private final BlockingQueue<Job> lane;
+
+    /**
+     * Construct a worker.
+     * @param annotatorIndex the index of the annotator of the worker
+     * @param queue the jobs of the lane of the worker
+     */
+    Worker(final int annotatorIndex, final BlockingQueue<Job> queue) {
+      this.index = annotatorIndex;
+      this.lane = queue;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Job job;
+        try {
+          job = lane.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        long start = System.nanoTime();
+        activeWorkers.incrementAndGet();
+        try {
+          if (deadline > 0 && start - job.submitted > deadline) {
+            // the client has likely given up, do not waste a worker on it
+            metrics.count("rejected", 1);
+            job.reject(503, DEADLINE_EXCEEDED);
+          } else {
+            metrics.record("queue", start - job.submitted);
+            // the annotators of the model current when the job starts
+            job.run(annotators[index]);
+            metrics.record("request", System.nanoTime() - start);
+          }
+        } catch (RuntimeException e) {
+          // a failing job must not stop the worker
+          e.printStackTrace();
+        } finally {
+          activeWorkers.decrementAndGet();
+          inFlight.decrementAndGet();
+        }
+      }
+    }
+  }
 }
@@ -15,8 +15,9 @@
  */
 package eus.ixa.ixa.pipe.nerc;
 
-import java.io.BufferedReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import eus.ixa.ixa.pipe.nerc.lexer.NumericNameLexer;
@@ -24,14 +25,50 @@ import eus.ixa.ixa.pipe.nerc.lexer.NumericNameLexer;
 import opennlp.tools.namefind.NameFinderME;
 import opennlp.tools.util.Span;
 
+/**
+ * Rule-based name finder for numeric entities (dates, times, percentages and
+ * currency expressions). The {@link NumericNameLexer} is run over the tokens
+ * of each sentence joined by spaces and the character offsets of the
+ * expressions found are mapped back to token indexes. The lexer is reset,
+ * not rebuilt, for every sentence, so an instance should not be shared
+ * between threads.
+ * 
+ * @author ragerri
+ * @version 2015-11-27
+ */
 public class NumericNameFinder implements NameFinder {
   
+  /**
+   * The lexer, reused for every sentence.
+   */
   private NumericNameLexer numericLexer;
+  /**
+   * The name factory.
+   */
   private NameFactory nameFactory;
+  /**
+   * The buffer where the tokens of a sentence are joined.
+   */
+  private final StringBuilder sentenceBuffer = new StringBuilder();
+  /**
+   * The reader of the sentence buffer, reused for every sentence.
+   */
+  private final SentenceReader sentenceReader = new SentenceReader(
+      sentenceBuffer);
+  /**
+   * The character offset of every token of the sentence.
+   */
+  private int[] tokenStarts = new int[64];
   
-  public NumericNameFinder(BufferedReader breader, NameFactory aNameFactory) {
+  /**
+   * Construct a numeric name finder.
+   * 
+   * @param aNameFactory
+   *          the name factory
+   */
+  public NumericNameFinder(final NameFactory aNameFactory) {
     this.nameFactory = aNameFactory;
-    numericLexer = new NumericNameLexer(breader, aNameFactory);
+    numericLexer = new NumericNameLexer(aNameFactory);
   }
 
   public List<Name> getNames(String[] tokens) {
@@ -42,17 +79,76 @@ public class NumericNameFinder implements NameFinder {
   }
 
   public Span[] nercToSpans(final String[] tokens) {
-    List<Span> neSpans = new ArrayList<Span>();
-    List<Name> flexNameList = numericLexer.getNumericNames();
-    for (Name name : flexNameList) {
-      //System.err.println("numeric name: " + name.value());
-      List<Integer> neIds = StringUtils.exactTokenFinderIgnoreCase(name.value(), tokens);
-      for (int i = 0; i < neIds.size(); i += 2) {
-        Span neSpan = new Span(neIds.get(i), neIds.get(i+1), name.getType());
-        neSpans.add(neSpan);
+    SpanBuffer spans = new SpanBuffer();
+    nercToSpans(tokens, 0, spans);
+    Span[] neSpans = new Span[spans.size()];
+    for (int i = 0; i < neSpans.length; i++) {
+      neSpans[i] = new Span(spans.getStart(i), spans.getEnd(i),
+          spans.getType(i));
+    }
+    return neSpans;
+  }
+
+  /**
+   * Find the numeric entities of a sentence, adding their spans to a
+   * buffer. The sentence is read by the lexer from a reused buffer, so that
+   * it is not copied into a new string for every sentence.
+   * 
+   * @param tokens
+   *          the tokens of the sentence
+   * @param sentence
+   *          the sentence index of the spans
+   * @param spans
+   *          the buffer where the spans of the numeric entities are added
+   */
+  private void nercToSpans(final String[] tokens, final int sentence,
+      final SpanBuffer spans) {
+    if (tokenStarts.length < tokens.length) {
+      tokenStarts = new int[Math.max(tokens.length, tokenStarts.length * 2)];
+    }
+    sentenceBuffer.setLength(0);
+    for (int i = 0; i < tokens.length; i++) {
+      if (i > 0) {
+        sentenceBuffer.append(' ');
+      }
+      tokenStarts[i] = sentenceBuffer.length();
+      sentenceBuffer.append(tokens[i]);
+    }
+    numericLexer.reset(sentenceReader.rewind());
+    while (numericLexer.hasNextToken()) {
+      Name name = numericLexer.getNextToken();
+      int start = Arrays.binarySearch(tokenStarts, 0, tokens.length,
+          name.startOffset());
+      if (start >= 0) {
+        int end = toTokenEnd(name, tokens, start);
+        if (end > 0) {
+          spans.add(sentence, start, end, name.getType());
+        }
+      }
+    }
+  }
+
+  /**
+   * Map the end character offset of a name to a token.
+   * 
+   * @param name
+   *          the name found by the lexer
+   * @param tokens
+   *          the tokens of the sentence
+   * @param start
+   *          the token where the name starts
+   * @return the token after the name or -1 if the name does not end at a
+   *         token boundary
+   */
+  private int toTokenEnd(final Name name, final String[] tokens,
+      final int start) {
+    int endOffset = name.startOffset() + name.nameLength();
+    for (int end = start; end < tokens.length && tokenStarts[end] < endOffset; end++) {
+      if (tokenStarts[end] + tokens[end].length() == endOffset) {
+        return end + 1;
       }
     }
-    return neSpans.toArray(new Span[neSpans.size()]);
+    return -1;
   }
 
   public List<Name> getNamesFromSpans(Span[] neSpans, String[] tokens) {
@@ -71,4 +167,59 @@ public class NumericNameFinder implements NameFinder {
     
   }
 
+  /**
+   * Reader of the characters of a {@link StringBuilder}, which can be reset
+   * to read it again after it changes without copying it to a String.
+   */
+  private static final class SentenceReader extends Reader {
+
+    /**
+     * The characters read.
+     */
+    private final StringBuilder sentence;
+    /**
+     * The position of the next character to be read.
+     */
+    private int position;
+
+    /**
+     * Construct a reader of a buffer.
+     * 
+     * @param aSentence
+     *          the buffer
+     */
+    private SentenceReader(final StringBuilder aSentence) {
+      this.sentence = aSentence;
+    }
+
+    /**
+     * Read the buffer again from the beginning.
+     * 
+     * @return this reader
+     */
+    private SentenceReader rewind() {
+      position = 0;
+      return this;
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= sentence.length()) {
+        return -1;
+      }
+      int numChars = Math.min(len, sentence.length() - position);
+      sentence.getChars(position, position + numChars, cbuf, off);
+      position += numChars;
+      return numChars;
+    }
+
+    @Override
+    public void close() {
+      // nothing to close
+    }
+  }
+
 }
@@ -22,7 +22,6 @@ import ixa.kaflib.Term;
 import ixa.kaflib.WF;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
@@ -67,6 +66,7 @@ public class OpinionTargetExtractor {
    */
   public final void annotateOTE(final KAFDocument kaf) throws IOException {
 
+    WFTermIndex termIndex = new WFTermIndex(kaf);
     List<List<WF>> sentences = kaf.getSentences();
     for (List<WF> sentence : sentences) {
       //process each sentence
@@ -83,8 +83,8 @@ public class OpinionTargetExtractor {
       for (Name name : names) {
         Integer startIndex = name.getSpan().getStart();
         Integer endIndex = name.getSpan().getEnd();
-        List<Term> nameTerms = kaf.getTermsFromWFs(Arrays.asList(Arrays
-            .copyOfRange(tokenIds, startIndex, endIndex)));
+        List<Term> nameTerms = termIndex.getTerms(tokenIds, startIndex,
+            endIndex);
         ixa.kaflib.Span<Term> neSpan = KAFDocument.newTermSpan(nameTerms);
         Opinion opinion = kaf.newOpinion();
         opinion.createOpinionTarget(neSpan);
@@ -0,0 +1,682 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.IndexHashTable;
+import opennlp.tools.ml.model.MaxentModel;
+import opennlp.tools.ml.perceptron.PerceptronModel;
+import opennlp.tools.util.InvalidFormatException;
+import opennlp.tools.util.model.ArtifactSerializer;
+
+/**
+ * A maxent or perceptron model whose weights are kept quantized in memory,
+ * either as int8 levels with one scale per outcome or as float16 values. The
+ * weights which become zero are dropped, together with the predicates left
+ * without weights, and the predicate labels are stored in a single char array
+ * indexed by an open addressing hash table, so that the model takes a
+ * fraction of the memory of the OpenNLP model it is built from. The weights
+ * are dequantized while evaluating, following the OpenNLP maxent and
+ * perceptron models.
+ *
+ * @author ragerri
+ * @version 2015-12-01
+ */
+public class QuantizedMaxentModel implements MaxentModel {
+
+  /**
+   * Quantization to 8 bit integer levels with a scale per outcome.
+   */
+  public static final String INT8 = "int8";
+  /**
+   * Quantization to 16 bit floating point precision.
+   */
+  public static final String FLOAT16 = "float16";
+  /**
+   * The type of the maxent (GIS) models.
+   */
+  private static final int MAXENT = 0;
+  /**
+   * The type of the perceptron models.
+   */
+  private static final int PERCEPTRON = 1;
+  /**
+   * The largest number of outcomes, as every outcome is stored in a byte.
+   */
+  private static final int MAX_OUTCOMES = 256;
+  /**
+   * The largest float16 value.
+   */
+  private static final float MAX_HALF = 65504f;
+  /**
+   * The smallest normal float16 value.
+   */
+  private static final float MIN_NORMAL_HALF = 6.1035156e-5f;
+  /**
+   * The smallest subnormal float16 value.
+   */
+  private static final float HALF_SUBNORMAL_QUANTUM = 5.9604645e-8f;
+
+  /**
+   * Serializer of the quantized models inside the model zip.
+   */
+  public static class QuantizedMaxentModelSerializer implements
+      ArtifactSerializer<QuantizedMaxentModel> {
+
+    public QuantizedMaxentModel create(InputStream in) throws IOException,
+        InvalidFormatException {
+      return new QuantizedMaxentModel(in);
+    }
+
+    public void serialize(QuantizedMaxentModel artifact, OutputStream out)
+        throws IOException {
+      artifact.serialize(out);
+    }
+  }
+
+  /**
+   * The type of the model.
+   */
+  private final int type;
+  /**
+   * The quantization, one of {@link #INT8} or {@link #FLOAT16}.
+   */
+  private final String quantization;
+  /**
+   * The correction constant of a maxent model.
+   */
+  private final int correctionConstant;
+  /**
+   * The correction parameter of a maxent model.
+   */
+  private final double correctionParam;
+  /**
+   * The names of the outcomes.
+   */
+  private final String[] outcomeNames;
+  /**
+   * The log of the uniform prior of every outcome of a maxent model.
+   */
+  private final double logPrior;
+  /**
+   * The hash table of the predicates, with the predicate index plus one in
+   * every used slot.
+   */
+  private final int[] table;
+  /**
+   * The offset of the label of every predicate in the labels, and the end.
+   */
+  private final int[] labelStarts;
+  /**
+   * The labels of the predicates.
+   */
+  private final char[] labels;
+  /**
+   * The offset of the parameters of every predicate, and the end.
+   */
+  private final int[] paramStarts;
+  /**
+   * The outcome of every parameter.
+   */
+  private final byte[] outcomes;
+  /**
+   * The int8 level of every parameter, null with float16.
+   */
+  private final byte[] levels;
+  /**
+   * The int8 scale of every outcome, null with float16.
+   */
+  private final double[] scales;
+  /**
+   * The float16 bits of every parameter, null with int8.
+   */
+  private final short[] halves;
+
+  /**
+   * Quantize a maxent or perceptron model.
+   *
+   * @param model
+   *          the model
+   * @param aQuantization
+   *          the quantization, int8 or float16
+   */
+  public QuantizedMaxentModel(final AbstractModel model,
+      final String aQuantization) {
+    this.quantization = getQuantization(aQuantization);
+    Object[] dataStructures = model.getDataStructures();
+    Context[] params = (Context[]) dataStructures[0];
+    @SuppressWarnings("unchecked")
+    IndexHashTable<String> pmap = (IndexHashTable<String>) dataStructures[1];
+    this.outcomeNames = (String[]) dataStructures[2];
+    String[] predLabels = pmap.toArray(new String[pmap.size()]);
+    if (model instanceof GISModel) {
+      this.type = MAXENT;
+      this.correctionConstant = (Integer) dataStructures[3];
+      this.correctionParam = (Double) dataStructures[4];
+    } else if (model instanceof PerceptronModel) {
+      this.type = PERCEPTRON;
+      this.correctionConstant = 0;
+      this.correctionParam = 0;
+    } else {
+      throw new IllegalArgumentException("Model type not supported: "
+          + model.getModelType()
+          + "; only maxent and perceptron models can be quantized!");
+    }
+    if (outcomeNames.length > MAX_OUTCOMES) {
+      throw new IllegalArgumentException("Only models of up to "
+          + MAX_OUTCOMES + " outcomes can be quantized!");
+    }
+    this.logPrior = Math.log(1.0 / outcomeNames.length);
+    this.scales = quantization.equals(INT8) ? getOutcomeScales(params,
+        outcomeNames.length) : null;
+
+    int numParams = 0;
+    for (Context context : params) {
+      numParams += context.getOutcomes().length;
+    }
+    byte[] keptOutcomes = new byte[numParams];
+    byte[] keptLevels = new byte[scales != null ? numParams : 0];
+    short[] keptHalves = new short[scales != null ? 0 : numParams];
+    List<String> keptLabels = new ArrayList<String>(params.length);
+    int[] keptStarts = new int[params.length + 1];
+    int kept = 0;
+    for (int pi = 0; pi < params.length; pi++) {
+      int start = kept;
+      int[] predOutcomes = params[pi].getOutcomes();
+      double[] predParameters = params[pi].getParameters();
+      for (int i = 0; i < predOutcomes.length; i++) {
+        int oi = predOutcomes[i];
+        if (scales != null) {
+          int level = scales[oi] == 0 ? 0 : (int) Math.round(predParameters[i]
+              / scales[oi]);
+          if (level == 0) {
+            continue;
+          }
+          keptLevels[kept] = (byte) level;
+        } else {
+          short half = toHalf((float) predParameters[i]);
+          if ((half & 0x7fff) == 0) {
+            continue;
+          }
+          keptHalves[kept] = half;
+        }
+        keptOutcomes[kept] = (byte) oi;
+        kept++;
+      }
+      if (kept > start) {
+        keptStarts[keptLabels.size()] = start;
+        keptLabels.add(predLabels[pi]);
+      }
+    }
+    keptStarts[keptLabels.size()] = kept;
+    this.paramStarts = Arrays.copyOf(keptStarts, keptLabels.size() + 1);
+    this.outcomes = Arrays.copyOf(keptOutcomes, kept);
+    this.levels = scales != null ? Arrays.copyOf(keptLevels, kept) : null;
+    this.halves = scales != null ? null : Arrays.copyOf(keptHalves, kept);
+    this.labelStarts = new int[keptLabels.size() + 1];
+    StringBuilder sb = new StringBuilder();
+    for (int pi = 0; pi < keptLabels.size(); pi++) {
+      labelStarts[pi] = sb.length();
+      sb.append(keptLabels.get(pi));
+    }
+    labelStarts[keptLabels.size()] = sb.length();
+    this.labels = sb.toString().toCharArray();
+    this.table = buildTable();
+  }
+
+  /**
+   * Read a quantized model.
+   *
+   * @param in
+   *          the input stream
+   * @throws IOException
+   *           if io problems or the model is not valid
+   */
+  public QuantizedMaxentModel(final InputStream in) throws IOException {
+    DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+    this.type = dataIn.readInt();
+    if (type != MAXENT && type != PERCEPTRON) {
+      throw new InvalidFormatException("Unknown model type " + type
+          + " in the quantized model!");
+    }
+    this.quantization = getQuantization(dataIn.readUTF());
+    this.correctionConstant = dataIn.readInt();
+    this.correctionParam = dataIn.readDouble();
+    this.outcomeNames = new String[dataIn.readInt()];
+    for (int oi = 0; oi < outcomeNames.length; oi++) {
+      outcomeNames[oi] = dataIn.readUTF();
+    }
+    this.logPrior = Math.log(1.0 / outcomeNames.length);
+    if (quantization.equals(INT8)) {
+      this.scales = new double[outcomeNames.length];
+      for (int oi = 0; oi < scales.length; oi++) {
+        scales[oi] = dataIn.readDouble();
+      }
+    } else {
+      this.scales = null;
+    }
+    int numPreds = dataIn.readInt();
+    this.labelStarts = new int[numPreds + 1];
+    this.paramStarts = new int[numPreds + 1];
+    StringBuilder sb = new StringBuilder();
+    for (int pi = 0; pi < numPreds; pi++) {
+      labelStarts[pi] = sb.length();
+      sb.append(dataIn.readUTF());
+      paramStarts[pi + 1] = paramStarts[pi] + dataIn.readUnsignedShort();
+    }
+    labelStarts[numPreds] = sb.length();
+    this.labels = sb.toString().toCharArray();
+    int numParams = paramStarts[numPreds];
+    this.outcomes = new byte[numParams];
+    dataIn.readFully(outcomes);
+    if (scales != null) {
+      this.levels = new byte[numParams];
+      dataIn.readFully(levels);
+      this.halves = null;
+    } else {
+      this.levels = null;
+      this.halves = new short[numParams];
+      for (int i = 0; i < numParams; i++) {
+        halves[i] = dataIn.readShort();
+      }
+    }
+    this.table = buildTable();
+  }
+
+  /**
+   * Serialize the model. The stream is flushed but not closed.
+   *
+   * @param out
+   *          the output stream
+   * @throws IOException
+   *           if io problems
+   */
+  public final void serialize(final OutputStream out) throws IOException {
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(type);
+    dataOut.writeUTF(quantization);
+    dataOut.writeInt(correctionConstant);
+    dataOut.writeDouble(correctionParam);
+    dataOut.writeInt(outcomeNames.length);
+    for (String outcome : outcomeNames) {
+      dataOut.writeUTF(outcome);
+    }
+    if (scales != null) {
+      for (double scale : scales) {
+        dataOut.writeDouble(scale);
+      }
+    }
+    int numPreds = getNumPredicates();
+    dataOut.writeInt(numPreds);
+    for (int pi = 0; pi < numPreds; pi++) {
+      dataOut.writeUTF(new String(labels, labelStarts[pi], labelStarts[pi + 1]
+          - labelStarts[pi]));
+      dataOut.writeShort(paramStarts[pi + 1] - paramStarts[pi]);
+    }
+    dataOut.write(outcomes);
+    if (levels != null) {
+      dataOut.write(levels);
+    } else {
+      for (short half : halves) {
+        dataOut.writeShort(half);
+      }
+    }
+    dataOut.flush();
+  }
+
+  /**
+   * Get the quantization.
+   *
+   * @return the quantization, int8 or float16
+   */
+  public final String getQuantization() {
+    return quantization;
+  }
+
+  /**
+   * Get the number of predicates kept.
+   *
+   * @return the number of predicates
+   */
+  public final int getNumPredicates() {
+    return labelStarts.length - 1;
+  }
+
+  /**
+   * Get the number of parameters kept.
+   *
+   * @return the number of parameters
+   */
+  public final int getNumParameters() {
+    return outcomes.length;
+  }
+
+  @Override
+  public final double[] eval(final String[] context) {
+    return eval(context, new double[outcomeNames.length]);
+  }
+
+  @Override
+  public final double[] eval(final String[] context, final float[] values) {
+    return eval(context, values, new double[outcomeNames.length]);
+  }
+
+  @Override
+  public final double[] eval(final String[] context, final double[] probs) {
+    return eval(context, null, probs);
+  }
+
+  /**
+   * Evaluate a context as the OpenNLP maxent and perceptron models do.
+   *
+   * @param context
+   *          the predicates
+   * @param values
+   *          the values of the predicates, null for 1
+   * @param outsums
+   *          the array where the probabilities are written
+   * @return the probability of every outcome
+   */
+  private double[] eval(final String[] context, final float[] values,
+      final double[] outsums) {
+    int numOutcomes = outcomeNames.length;
+    int[] numFeats = new int[numOutcomes];
+    Arrays.fill(outsums, type == MAXENT ? logPrior : 0);
+    for (int ci = 0; ci < context.length; ci++) {
+      int pi = getPredicate(context[ci]);
+      if (pi < 0) {
+        continue;
+      }
+      double value = values == null ? 1 : values[ci];
+      for (int i = paramStarts[pi]; i < paramStarts[pi + 1]; i++) {
+        int oi = outcomes[i] & 0xff;
+        numFeats[oi]++;
+        outsums[oi] += getParameter(i, oi) * value;
+      }
+    }
+    double normal = 0;
+    if (type == PERCEPTRON) {
+      double maxPrior = 1;
+      for (int oi = 0; oi < numOutcomes; oi++) {
+        maxPrior = Math.max(maxPrior, Math.abs(outsums[oi]));
+      }
+      for (int oi = 0; oi < numOutcomes; oi++) {
+        outsums[oi] = Math.exp(outsums[oi] / maxPrior);
+        normal += outsums[oi];
+      }
+    } else {
+      double constantInverse = 1.0 / correctionConstant;
+      for (int oi = 0; oi < numOutcomes; oi++) {
+        if (correctionParam != 0) {
+          outsums[oi] = Math.exp(outsums[oi] * constantInverse
+              + (1.0 - (double) numFeats[oi] / correctionConstant)
+              * correctionParam);
+        } else {
+          outsums[oi] = Math.exp(outsums[oi] * constantInverse);
+        }
+        normal += outsums[oi];
+      }
+    }
+    for (int oi = 0; oi < numOutcomes; oi++) {
+      outsums[oi] /= normal;
+    }
+    return outsums;
+  }
+
+  /**
+   * Dequantize a parameter.
+   *
+   * @param i
+   *          the index of the parameter
+   * @param oi
+   *          the outcome of the parameter
+   * @return the weight
+   */
+  private double getParameter(final int i, final int oi) {
+    if (levels != null) {
+      return levels[i] * scales[oi];
+    } else {
+      return fromHalf(halves[i]);
+    }
+  }
+
+  @Override
+  public final String getBestOutcome(final double[] ocs) {
+    int best = 0;
+    for (int i = 1; i < ocs.length; i++) {
+      if (ocs[i] > ocs[best]) {
+        best = i;
+      }
+    }
+    return outcomeNames[best];
+  }
+
+  @Override
+  public final String getAllOutcomes(final double[] ocs) {
+    if (ocs.length != outcomeNames.length) {
+      return "The double array sent as a parameter to getAllOutcomes() must "
+          + "not have been produced by this model.";
+    }
+    DecimalFormat df = new DecimalFormat("0.0000");
+    StringBuilder sb = new StringBuilder(ocs.length * 2);
+    for (int i = 0; i < ocs.length; i++) {
+      if (i > 0) {
+        sb.append("  ");
+      }
+      sb.append(outcomeNames[i]).append('[').append(df.format(ocs[i]))
+          .append(']');
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public final String getOutcome(final int index) {
+    return outcomeNames[index];
+  }
+
+  @Override
+  public final int getIndex(final String outcome) {
+    for (int i = 0; i < outcomeNames.length; i++) {
+      if (outcomeNames[i].equals(outcome)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public final int getNumOutcomes() {
+    return outcomeNames.length;
+  }
+
+  /**
+   * Find a predicate.
+   *
+   * @param predicate
+   *          the predicate
+   * @return the index of the predicate, -1 if not in the model
+   */
+  private int getPredicate(final String predicate) {
+    int mask = table.length - 1;
+    int slot = hash(predicate) & mask;
+    int entry;
+    while ((entry = table[slot]) != 0) {
+      int pi = entry - 1;
+      if (labelEquals(pi, predicate)) {
+        return pi;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Compare the label of a predicate with a string.
+   *
+   * @param pi
+   *          the index of the predicate
+   * @param predicate
+   *          the string
+   * @return whether they are equal
+   */
+  private boolean labelEquals(final int pi, final String predicate) {
+    int start = labelStarts[pi];
+    int length = labelStarts[pi + 1] - start;
+    if (length != predicate.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (labels[start + i] != predicate.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Build the hash table of the predicates.
+   *
+   * @return the hash table
+   */
+  private int[] buildTable() {
+    int numPreds = getNumPredicates();
+    int tableSize = Integer.highestOneBit(Math.max(numPreds, 1)) * 4;
+    int[] slots = new int[tableSize];
+    for (int pi = 0; pi < numPreds; pi++) {
+      int slot = hash(new String(labels, labelStarts[pi], labelStarts[pi + 1]
+          - labelStarts[pi])) & (tableSize - 1);
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & (tableSize - 1);
+      }
+      slots[slot] = pi + 1;
+    }
+    return slots;
+  }
+
+  /**
+   * Get the hash of a predicate, spreading the high bits of its hash code.
+   *
+   * @param predicate
+   *          the predicate
+   * @return the hash
+   */
+  private static int hash(final String predicate) {
+    int h = predicate.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Check a quantization.
+   *
+   * @param aQuantization
+   *          the quantization
+   * @return the quantization in lower case
+   */
+  private static String getQuantization(final String aQuantization) {
+    if (!aQuantization.equalsIgnoreCase(FLOAT16)
+        && !aQuantization.equalsIgnoreCase(INT8)) {
+      throw new IllegalArgumentException("Quantization not supported: "
+          + aQuantization);
+    }
+    return aQuantization.toLowerCase();
+  }
+
+  /**
+   * Get the int8 scale of every outcome: the largest absolute weight of the
+   * outcome divided by 127.
+   *
+   * @param params
+   *          the model parameters
+   * @param numOutcomes
+   *          the number of outcomes
+   * @return the scales
+   */
+  private static double[] getOutcomeScales(final Context[] params,
+      final int numOutcomes) {
+    double[] outcomeScales = new double[numOutcomes];
+    for (Context context : params) {
+      int[] predOutcomes = context.getOutcomes();
+      double[] predParameters = context.getParameters();
+      for (int i = 0; i < predParameters.length; i++) {
+        outcomeScales[predOutcomes[i]] = Math.max(
+            outcomeScales[predOutcomes[i]], Math.abs(predParameters[i]));
+      }
+    }
+    for (int oi = 0; oi < numOutcomes; oi++) {
+      outcomeScales[oi] /= Byte.MAX_VALUE;
+    }
+    return outcomeScales;
+  }
+
+  /**
+   * Round a value to the nearest IEEE 754 half precision float, saturating
+   * at the largest one.
+   *
+   * @param value
+   *          the value
+   * @return the bits of the half precision float
+   */
+  public static short toHalf(final float value) {
+    int bits = Float.floatToIntBits(value);
+    int sign = (bits >>> 16) & 0x8000;
+    float absValue = Math.abs(value);
+    if (absValue >= MAX_HALF) {
+      return (short) (sign | 0x7bff);
+    }
+    if (absValue < MIN_NORMAL_HALF) {
+      return (short) (sign | Math.round(absValue / HALF_SUBNORMAL_QUANTUM));
+    }
+    // keep 10 of the 23 bits of the mantissa, rounding half up
+    int rounded = (bits & 0x7fffffff) + 0x1000;
+    int exponent = (rounded >>> 23) - 112;
+    if (exponent >= 31) {
+      return (short) (sign | 0x7bff);
+    }
+    return (short) (sign | exponent << 10 | (rounded >>> 13) & 0x3ff);
+  }
+
+  /**
+   * Get the value of an IEEE 754 half precision float.
+   *
+   * @param half
+   *          the bits of the half precision float
+   * @return the value
+   */
+  public static float fromHalf(final short half) {
+    int sign = (half & 0x8000) << 16;
+    int exponent = (half >>> 10) & 0x1f;
+    int mantissa = half & 0x3ff;
+    if (exponent == 0) {
+      float subnormal = mantissa * HALF_SUBNORMAL_QUANTUM;
+      return sign == 0 ? subnormal : -subnormal;
+    }
+    return Float.intBitsToFloat(sign | (exponent + 112) << 23 | mantissa << 13);
+  }
+}
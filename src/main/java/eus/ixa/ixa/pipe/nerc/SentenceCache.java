@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import opennlp.tools.util.Span;
+
+/**
+ * Bounded cache of the named entity spans of the sentences already
+ * annotated, keyed by their tokens, so that repeated sentences such as
+ * navigation text, disclaimers or signatures are only annotated once. The
+ * least recently used sentence is evicted when the cache is full. It is
+ * only valid while the spans of a sentence do not depend on the previous
+ * sentences, that is, when the adaptive features are cleared after every
+ * sentence or no statistical model is used.
+ *
+ * @author ragerri
+ * @version 2015-11-30
+ */
+public class SentenceCache {
+
+  /**
+   * The spans of every sentence, in access order.
+   */
+  private final Map<Key, Span[]> cache;
+  /**
+   * The number of sentences found in the cache.
+   */
+  private long hits;
+  /**
+   * The number of sentences not found in the cache.
+   */
+  private long misses;
+
+  /**
+   * Construct a cache.
+   *
+   * @param maxSentences
+   *          the maximum number of sentences kept
+   */
+  public SentenceCache(final int maxSentences) {
+    if (maxSentences < 1) {
+      throw new IllegalArgumentException(
+          "The size of the sentence cache must be at least 1!");
+    }
+    cache = new LinkedHashMap<Key, Span[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Key, Span[]> eldest) {
+        return size() > maxSentences;
+      }
+    };
+  }
+
+  /**
+   * Get the spans of a sentence.
+   *
+   * @param tokens
+   *          the tokens of the sentence
+   * @return the spans, which must not be modified, or null if not cached
+   */
+  public final synchronized Span[] get(final String[] tokens) {
+    Span[] spans = cache.get(new Key(tokens));
+    if (spans == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return spans;
+  }
+
+  /**
+   * Cache the spans of a sentence.
+   *
+   * @param tokens
+   *          the tokens of the sentence, copied
+   * @param spans
+   *          the spans of the sentence, which must not be modified
+   */
+  public final synchronized void put(final String[] tokens, final Span[] spans) {
+    cache.put(new Key(tokens.clone()), spans);
+  }
+
+  /**
+   * Count sentences found without looking them up, e.g., sentences repeated
+   * in a document whose first occurrence was not cached yet.
+   *
+   * @param numHits
+   *          the number of hits
+   */
+  public final synchronized void addHits(final long numHits) {
+    hits += numHits;
+  }
+
+  /**
+   * Get the number of sentences cached.
+   *
+   * @return the number of sentences
+   */
+  public final synchronized int size() {
+    return cache.size();
+  }
+
+  /**
+   * Get the number of sentences found in the cache.
+   *
+   * @return the number of hits
+   */
+  public final synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Get the number of sentences not found in the cache.
+   *
+   * @return the number of misses
+   */
+  public final synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Get the proportion of sentences found in the cache.
+   *
+   * @return the hit rate, 0 if no sentence has been looked up
+   */
+  public final synchronized double getHitRate() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  @Override
+  public final synchronized String toString() {
+    return String.format("%d hits, %d misses, hit rate %.2f%%, %d sentences",
+        hits, misses, getHitRate() * 100, cache.size());
+  }
+
+  /**
+   * The tokens of a sentence as a key of the cache, with its hash code
+   * computed once.
+   */
+  private static final class Key {
+
+    /**
+     * The tokens.
+     */
+    private final String[] tokens;
+    /**
+     * The hash code of the tokens.
+     */
+    private final int hash;
+
+    /**
+     * Construct the key of a sentence.
+     *
+     * @param sentence
+     *          the tokens of the sentence
+     */
+    private Key(final String[] sentence) {
+      this.tokens = sentence;
+      this.hash = Arrays.hashCode(sentence);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      return other instanceof Key && hash == ((Key) other).hash
+          && Arrays.equals(tokens, ((Key) other).tokens);
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reusable primitive storage of named entity spans, used to embed the name
+ * finders without creating {@code Span} or {@link Name} objects for every
+ * entity. Every entity is stored as its sentence index, start and end token
+ * (exclusive) and the id of its type. The arrays only grow, so a buffer
+ * cleared and filled again for every request does not create garbage once it
+ * has reached the size of the largest request.
+ * <p>
+ * The type ids are assigned by every buffer to the types it has stored, in
+ * order of appearance, and are kept when the buffer is cleared, so that they
+ * are bounded by the types of the name finders; the type names can be
+ * obtained with {@link #typeNameOf(int)}. A buffer should not be shared
+ * between threads.
+ *
+ * @author ragerri
+ * @version 2015-11-29
+ */
+public class SpanBuffer {
+
+  /**
+   * The initial capacity of a buffer.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+  /**
+   * The type ids by type name.
+   */
+  private final Map<String, Integer> typeIds = new HashMap<String, Integer>();
+  /**
+   * The type names by type id.
+   */
+  private final List<String> typeNames = new ArrayList<String>();
+
+  /**
+   * The sentence of every span.
+   */
+  private int[] sentences;
+  /**
+   * The start token of every span.
+   */
+  private int[] starts;
+  /**
+   * The end token, exclusive, of every span.
+   */
+  private int[] ends;
+  /**
+   * The type id of every span.
+   */
+  private int[] types;
+  /**
+   * The number of spans.
+   */
+  private int size;
+
+  /**
+   * Construct an empty buffer.
+   */
+  public SpanBuffer() {
+    this(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Construct an empty buffer.
+   *
+   * @param capacity
+   *          the initial number of spans the buffer can hold
+   */
+  public SpanBuffer(final int capacity) {
+    int initialCapacity = Math.max(capacity, 1);
+    sentences = new int[initialCapacity];
+    starts = new int[initialCapacity];
+    ends = new int[initialCapacity];
+    types = new int[initialCapacity];
+  }
+
+  /**
+   * Get the id of a type in this buffer, registering it if it is new.
+   *
+   * @param type
+   *          the type name
+   * @return the type id
+   */
+  public final int typeIdOf(final String type) {
+    Integer typeId = typeIds.get(type);
+    if (typeId == null) {
+      typeId = typeNames.size();
+      typeIds.put(type, typeId);
+      typeNames.add(type);
+    }
+    return typeId;
+  }
+
+  /**
+   * Get the name of a type of this buffer.
+   *
+   * @param typeId
+   *          the type id
+   * @return the type name
+   */
+  public final String typeNameOf(final int typeId) {
+    return typeNames.get(typeId);
+  }
+
+  /**
+   * Remove every span, keeping the capacity.
+   */
+  public final void clear() {
+    size = 0;
+  }
+
+  /**
+   * Add a span.
+   *
+   * @param sentence
+   *          the sentence index
+   * @param start
+   *          the start token
+   * @param end
+   *          the end token, exclusive
+   * @param typeId
+   *          the type id, obtained from {@link #typeIdOf(String)}
+   */
+  public final void add(final int sentence, final int start, final int end,
+      final int typeId) {
+    if (size == starts.length) {
+      int capacity = size * 2;
+      sentences = Arrays.copyOf(sentences, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+      types = Arrays.copyOf(types, capacity);
+    }
+    sentences[size] = sentence;
+    starts[size] = start;
+    ends[size] = end;
+    types[size] = typeId;
+    size++;
+  }
+
+  /**
+   * Add a span.
+   *
+   * @param sentence
+   *          the sentence index
+   * @param start
+   *          the start token
+   * @param end
+   *          the end token, exclusive
+   * @param type
+   *          the type name
+   */
+  public final void add(final int sentence, final int start, final int end,
+      final String type) {
+    add(sentence, start, end, typeIdOf(type));
+  }
+
+  /**
+   * Get the number of spans.
+   *
+   * @return the number of spans
+   */
+  public final int size() {
+    return size;
+  }
+
+  /**
+   * Get the sentence of a span.
+   *
+   * @param index
+   *          the index of the span
+   * @return the sentence index
+   */
+  public final int getSentence(final int index) {
+    return sentences[index];
+  }
+
+  /**
+   * Get the start token of a span.
+   *
+   * @param index
+   *          the index of the span
+   * @return the start token
+   */
+  public final int getStart(final int index) {
+    return starts[index];
+  }
+
+  /**
+   * Get the end token of a span.
+   *
+   * @param index
+   *          the index of the span
+   * @return the end token, exclusive
+   */
+  public final int getEnd(final int index) {
+    return ends[index];
+  }
+
+  /**
+   * Get the type id of a span.
+   *
+   * @param index
+   *          the index of the span
+   * @return the type id
+   */
+  public final int getTypeId(final int index) {
+    return types[index];
+  }
+
+  /**
+   * Get the type name of a span.
+   *
+   * @param index
+   *          the index of the span
+   * @return the type name
+   */
+  public final String getType(final int index) {
+    return typeNames.get(types[index]);
+  }
+}
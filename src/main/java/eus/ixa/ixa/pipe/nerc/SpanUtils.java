@@ -16,6 +16,9 @@
 package eus.ixa.ixa.pipe.nerc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import opennlp.tools.util.Span;
@@ -61,4 +64,155 @@ public class SpanUtils {
     preList.removeAll(duplicatedSpans);
   }
 
+  /**
+   * Merges the spans of the name finders of a sentence into a sorted array
+   * of non overlapping spans. The spans in preSpans which contain or are
+   * contained in a span of postSpans are removed, as in
+   * {@link #postProcessDuplicatedSpans(List, Span[])}; then the overlapping
+   * spans are dropped as in {@code NameFinderME.dropOverlappingSpans}, that
+   * is, keeping the first of every group of overlapping spans in span order.
+   * Every array is sorted once and the containment and overlap checks are
+   * each done in a single sweep, so that the cost does not grow with the
+   * product of the number of spans.
+   *
+   * @param preSpans
+   *          the spans to be post-processed, e.g., statistical, or null
+   * @param postSpans
+   *          the spans to do the post-processing, e.g., from dictionaries, or
+   *          null
+   * @param extraSpans
+   *          other spans to be added, e.g., numeric, or null
+   * @return the sorted non overlapping spans
+   */
+  public static final Span[] mergeSpans(final Span[] preSpans,
+      final Span[] postSpans, final Span[] extraSpans) {
+    Span[] sortedPre = sortedCopy(preSpans);
+    Span[] sortedPost = sortedCopy(postSpans);
+    Span[] sortedExtra = sortedCopy(extraSpans);
+    Span[] merged = new Span[sortedPre.length + sortedPost.length
+        + sortedExtra.length];
+    int size = removeDuplicatedSpans(sortedPre, sortedPost, merged);
+    System.arraycopy(sortedPost, 0, merged, size, sortedPost.length);
+    size += sortedPost.length;
+    System.arraycopy(sortedExtra, 0, merged, size, sortedExtra.length);
+    size += sortedExtra.length;
+    // the array consists of sorted runs, which the merge sort merges linearly
+    Arrays.sort(merged, 0, size);
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (kept == 0 || !merged[kept - 1].intersects(merged[i])) {
+        merged[kept++] = merged[i];
+      }
+    }
+    return Arrays.copyOf(merged, kept);
+  }
+
+  /**
+   * Resolves the overlapping spans found by an ensemble of models in a
+   * sentence. The spans are considered in order of priority, the spans of
+   * the first model first or, if longestFirst is set, the longest spans
+   * first with ties broken by the order of the models, and every span not
+   * overlapping a span already kept is kept.
+   *
+   * @param modelSpans
+   *          the spans of every model, in order of priority
+   * @param longestFirst
+   *          whether the longest spans have priority
+   * @return the sorted non overlapping spans
+   */
+  public static final Span[] prioritySpans(final List<Span[]> modelSpans,
+      final boolean longestFirst) {
+    List<Span> candidates = new ArrayList<Span>();
+    for (Span[] spans : modelSpans) {
+      concatenateSpans(candidates, spans);
+    }
+    if (longestFirst) {
+      // the sort is stable, keeping the order of the models for ties
+      Collections.sort(candidates, new Comparator<Span>() {
+        public int compare(final Span span1, final Span span2) {
+          return span2.length() - span1.length();
+        }
+      });
+    }
+    List<Span> kept = new ArrayList<Span>(candidates.size());
+    for (Span candidate : candidates) {
+      boolean overlaps = false;
+      for (int i = 0; i < kept.size() && !overlaps; i++) {
+        overlaps = kept.get(i).intersects(candidate);
+      }
+      if (!overlaps) {
+        kept.add(candidate);
+      }
+    }
+    Span[] spans = kept.toArray(new Span[kept.size()]);
+    Arrays.sort(spans);
+    return spans;
+  }
+
+  /**
+   * Copies to the output the sorted spans of preSpans which do not contain
+   * and are not contained in any of the sorted postSpans.
+   *
+   * @param preSpans
+   *          the sorted spans to be post-processed
+   * @param postSpans
+   *          the sorted spans to do the post-processing
+   * @param output
+   *          the array where the remaining spans are copied
+   * @return the number of spans copied
+   */
+  private static int removeDuplicatedSpans(final Span[] preSpans,
+      final Span[] postSpans, final Span[] output) {
+    int numPost = postSpans.length;
+    // the largest end of the post spans starting at or before each one
+    int[] prefixMaxEnd = new int[numPost];
+    // the smallest end of the post spans starting at or after each one
+    int[] suffixMinEnd = new int[numPost];
+    for (int i = 0; i < numPost; i++) {
+      prefixMaxEnd[i] = i == 0 ? postSpans[i].getEnd() : Math.max(
+          prefixMaxEnd[i - 1], postSpans[i].getEnd());
+    }
+    for (int i = numPost - 1; i >= 0; i--) {
+      suffixMinEnd[i] = i == numPost - 1 ? postSpans[i].getEnd() : Math.min(
+          suffixMinEnd[i + 1], postSpans[i].getEnd());
+    }
+    int size = 0;
+    // first post span starting at or after the current pre span
+    int from = 0;
+    // first post span starting after the current pre span
+    int after = 0;
+    for (Span span : preSpans) {
+      while (from < numPost && postSpans[from].getStart() < span.getStart()) {
+        from++;
+      }
+      while (after < numPost && postSpans[after].getStart() <= span.getStart()) {
+        after++;
+      }
+      boolean containsPost = from < numPost
+          && suffixMinEnd[from] <= span.getEnd();
+      boolean containedInPost = after > 0
+          && prefixMaxEnd[after - 1] >= span.getEnd();
+      if (!containsPost && !containedInPost) {
+        output[size++] = span;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Get a sorted copy of an array of spans.
+   *
+   * @param spans
+   *          the spans, possibly null
+   * @return the sorted copy, empty if spans is null
+   */
+  private static Span[] sortedCopy(final Span[] spans) {
+    if (spans == null) {
+      return new Span[0];
+    }
+    Span[] sorted = spans.clone();
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
 }
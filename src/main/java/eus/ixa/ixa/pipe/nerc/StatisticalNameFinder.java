@@ -16,10 +16,9 @@
 
 package eus.ixa.ixa.pipe.nerc;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
@@ -41,8 +40,8 @@ import opennlp.tools.util.Span;
 public class StatisticalNameFinder implements NameFinder {
 
   /**
-   * The models to use for every language. The keys of the hash are the
-   * language codes, the values the models.
+   * The models loaded. The keys of the hash are the model paths, so that
+   * several models of the same language can be used, the values the models.
    */
   private static ConcurrentHashMap<String, TokenNameFinderModel> nercModels =
       new ConcurrentHashMap<String, TokenNameFinderModel>();
@@ -118,9 +117,7 @@ public class StatisticalNameFinder implements NameFinder {
    * @return an list of {@link Span}s of Named Entities
    */
   public final Span[] nercToSpans(final String[] tokens) {
-    Span[] annotatedText = nameFinder.find(tokens);
-    List<Span> probSpans = new ArrayList<Span>(Arrays.asList(annotatedText));
-    return probSpans.toArray(new Span[probSpans.size()]);
+    return nameFinder.find(tokens);
   }
 
   /**
@@ -155,9 +152,20 @@ public class StatisticalNameFinder implements NameFinder {
     nameFinder.clearAdaptiveData();
   }
 
+  /**
+   * Forget a model loaded statically, so that its memory is released once
+   * the finders using it are gone. The model is loaded again by the next
+   * finder constructed with it.
+   *
+   * @param model the model path
+   */
+  public static void unloadModel(final String model) {
+    nercModels.remove(model);
+  }
+
   /**
    * Loads statically the probabilistic model. Every instance of this finder
-   * will share the same model.
+   * with the same model path will share the same model.
    *
    * @param lang the language
    * @param model the model to be loaded
@@ -167,8 +175,8 @@ public class StatisticalNameFinder implements NameFinder {
     long lStartTime = new Date().getTime();
     try {
       synchronized (nercModels) {
-        if (!nercModels.containsKey(lang)) {
-          nercModels.put(lang, new TokenNameFinderModel(new FileInputStream(model)));
+        if (!nercModels.containsKey(model)) {
+          nercModels.put(model, ModelLoader.loadModel(new File(model)));
         }
       }
     } catch (IOException e) {
@@ -178,6 +186,6 @@ public class StatisticalNameFinder implements NameFinder {
     long difference = lEndTime - lStartTime;
     System.err.println("ixa-pipe-nerc model loaded in: " + difference
         + " miliseconds ... [DONE]");
-    return nercModels.get(lang);
+    return nercModels.get(model);
   }
 }
@@ -0,0 +1,846 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import opennlp.tools.util.Span;
+
+/**
+ * A NAF document read with StAX instead of building the JDOM tree of
+ * {@code KAFDocument}. Only the word forms of the text layer, the word form
+ * to term mapping of the terms layer and the ids of any existing entities are
+ * extracted, together with the character offsets of the elements where the
+ * entities layer and its linguistic processor go; every other layer is
+ * skipped. The named entities found are then spliced into the original
+ * document at those offsets, together with the linguistic processor of the
+ * entities layer, so that the rest of the document is output byte for byte as
+ * it was received. A document can also be created from already
+ * tokenized sentences, in which case its text and terms layers are only
+ * written if the NAF output is requested.
+ *
+ * @author ragerri
+ * @version 2015-11-28
+ */
+public class StreamingNAF {
+
+  /**
+   * The factory of the StAX readers.
+   */
+  private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+  /**
+   * The indentation of the layers in NAF documents.
+   */
+  private static final String INDENT = "  ";
+  /**
+   * The start of the linguistic processors block of the entities layer.
+   */
+  private static final String ENTITIES_LPS = "<linguisticProcessors layer=\"entities\">";
+
+  /**
+   * The original document, null for tokenized sentences.
+   */
+  private final String naf;
+  /**
+   * The language of the document.
+   */
+  private String lang;
+  /**
+   * The tokens of every sentence.
+   */
+  private final List<String[]> sentences = new ArrayList<String[]>();
+  /**
+   * The word form ids of the tokens of every sentence.
+   */
+  private final List<String[]> tokenIds = new ArrayList<String[]>();
+  /**
+   * The first term containing each word form, by word form id.
+   */
+  private final Map<String, String> wfIdToTermId = new HashMap<String, String>();
+  /**
+   * The number of the last entity of the document.
+   */
+  private int lastEntityId = 0;
+  /**
+   * The offset of every line of the original document, while reading it.
+   */
+  private int[] lineStarts;
+  /**
+   * The offsets of the root element.
+   */
+  private ElementOffsets root;
+  /**
+   * The offsets of the header, null if the document has none.
+   */
+  private ElementOffsets header;
+  /**
+   * The offsets of the first linguistic processors block of the entities
+   * layer, null if the document has none.
+   */
+  private ElementOffsets entitiesLps;
+  /**
+   * The offsets of the last entities layer, null if the document has none.
+   */
+  private ElementOffsets entities;
+
+  /**
+   * The character offsets of an element in the original document.
+   */
+  private static final class ElementOffsets {
+    /**
+     * The qualified name of the element.
+     */
+    private final String name;
+    /**
+     * The offset following the start tag.
+     */
+    private final int startTagEnd;
+    /**
+     * The offset of the end tag, or of the "/>" of an empty element.
+     */
+    private int closeStart = -1;
+    /**
+     * The offset following the element.
+     */
+    private int end = -1;
+
+    /**
+     * Record the start tag of an element.
+     *
+     * @param aName
+     *          the qualified name of the element
+     * @param aStartTagEnd
+     *          the offset following the start tag
+     */
+    private ElementOffsets(final String aName, final int aStartTagEnd) {
+      this.name = aName;
+      this.startTagEnd = aStartTagEnd;
+    }
+
+    /**
+     * Check whether the element is empty, written as a single tag.
+     *
+     * @return whether the element has no end tag
+     */
+    private boolean isEmpty() {
+      return end == startTagEnd;
+    }
+  }
+
+  /**
+   * Read a NAF document.
+   *
+   * @param aNaf
+   *          the NAF document
+   * @throws IOException
+   *           if the document is not well-formed
+   */
+  public StreamingNAF(final String aNaf) throws IOException {
+    this.naf = aNaf;
+    try {
+      read();
+    } catch (XMLStreamException e) {
+      throw new IOException("Badly formatted NAF document: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Create a document from tokenized sentences with a term per token.
+   *
+   * @param aLang
+   *          the language of the document
+   * @param tokenizedSentences
+   *          the tokens of every sentence
+   */
+  public StreamingNAF(final String aLang,
+      final List<String[]> tokenizedSentences) {
+    this.naf = null;
+    this.lang = aLang;
+    int wordForm = 0;
+    for (String[] tokens : tokenizedSentences) {
+      String[] ids = new String[tokens.length];
+      for (int i = 0; i < tokens.length; i++) {
+        wordForm++;
+        ids[i] = "w" + wordForm;
+        wfIdToTermId.put(ids[i], "t" + wordForm);
+      }
+      sentences.add(tokens);
+      tokenIds.add(ids);
+    }
+  }
+
+  /**
+   * Extract the word forms, the terms and the entity ids from the document.
+   *
+   * @throws XMLStreamException
+   *           if the document is not well-formed
+   */
+  private void read() throws XMLStreamException {
+    Map<String, List<String>> sentenceTokens = new LinkedHashMap<String, List<String>>();
+    Map<String, List<String>> sentenceTokenIds = new HashMap<String, List<String>>();
+    lineStarts = getLineStarts(naf);
+    XMLStreamReader reader = XML_INPUT_FACTORY
+        .createXMLStreamReader(new StringReader(naf));
+    try {
+      String termId = null;
+      int depth = 0;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.END_ELEMENT) {
+          if (reader.getLocalName().equals("term")) {
+            termId = null;
+          } else if (depth == 1) {
+            close(root, reader);
+          } else if (depth == 2 && reader.getLocalName().equals("entities")) {
+            close(entities, reader);
+          }
+          depth--;
+          continue;
+        } else if (event != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        depth++;
+        String element = reader.getLocalName();
+        if (depth == 1) {
+          lang = reader.getAttributeValue(XMLConstants.XML_NS_URI, "lang");
+          root = open(reader);
+        } else if (depth == 2 && element.equals("nafHeader")) {
+          readHeader(reader);
+          depth--;
+        } else if (depth == 2 && !element.equals("text")
+            && !element.equals("terms") && !element.equals("entities")) {
+          skipElement(reader);
+          depth--;
+        } else if (depth == 2 && element.equals("entities")) {
+          entities = open(reader);
+        } else if (element.equals("wf")) {
+          String sent = reader.getAttributeValue(null, "sent");
+          if (!sentenceTokens.containsKey(sent)) {
+            sentenceTokens.put(sent, new ArrayList<String>());
+            sentenceTokenIds.put(sent, new ArrayList<String>());
+          }
+          sentenceTokenIds.get(sent).add(reader.getAttributeValue(null, "id"));
+          sentenceTokens.get(sent).add(reader.getElementText());
+          depth--;
+        } else if (element.equals("term")) {
+          termId = reader.getAttributeValue(null, "id");
+        } else if (element.equals("component")
+            || element.equals("externalReferences")) {
+          skipElement(reader);
+          depth--;
+        } else if (element.equals("target") && termId != null) {
+          String wfId = reader.getAttributeValue(null, "id");
+          if (!wfIdToTermId.containsKey(wfId)) {
+            wfIdToTermId.put(wfId, termId);
+          }
+        } else if (element.equals("entity")) {
+          lastEntityId = Math.max(lastEntityId,
+              getIdNumber(reader.getAttributeValue(null, "id")));
+        }
+      }
+    } finally {
+      reader.close();
+      lineStarts = null;
+    }
+    for (Map.Entry<String, List<String>> sentence : sentenceTokens.entrySet()) {
+      List<String> ids = sentenceTokenIds.get(sentence.getKey());
+      sentences.add(sentence.getValue().toArray(
+          new String[sentence.getValue().size()]));
+      tokenIds.add(ids.toArray(new String[ids.size()]));
+    }
+  }
+
+  /**
+   * Skip the current element and all its descendants.
+   *
+   * @param reader
+   *          the reader positioned at the start of the element
+   * @throws XMLStreamException
+   *           if the document is not well-formed
+   */
+  private static void skipElement(final XMLStreamReader reader)
+      throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Read the header, recording its offsets and those of the first
+   * linguistic processors block of the entities layer.
+   *
+   * @param reader
+   *          the reader positioned at the start of the header
+   * @throws XMLStreamException
+   *           if the document is not well-formed
+   */
+  private void readHeader(final XMLStreamReader reader)
+      throws XMLStreamException {
+    header = open(reader);
+    while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+      if (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      if (entitiesLps == null
+          && reader.getLocalName().equals("linguisticProcessors")
+          && "entities".equals(reader.getAttributeValue(null, "layer"))) {
+        entitiesLps = open(reader);
+        skipElement(reader);
+        close(entitiesLps, reader);
+      } else {
+        skipElement(reader);
+      }
+    }
+    close(header, reader);
+  }
+
+  /**
+   * Record the offsets of the start tag the reader is positioned at.
+   *
+   * @param reader
+   *          the reader positioned at the start of an element
+   * @return the offsets of the element
+   * @throws XMLStreamException
+   *           if the offset is not that of the end of the tag
+   */
+  private ElementOffsets open(final XMLStreamReader reader)
+      throws XMLStreamException {
+    String prefix = reader.getPrefix();
+    String name = prefix == null || prefix.isEmpty() ? reader.getLocalName()
+        : prefix + ":" + reader.getLocalName();
+    return new ElementOffsets(name, getTagEnd(reader));
+  }
+
+  /**
+   * Record the offsets of the end tag the reader is positioned at.
+   *
+   * @param element
+   *          the offsets of the element
+   * @param reader
+   *          the reader positioned at the end of the element
+   * @throws XMLStreamException
+   *           if the offset is not that of the end of the tag
+   */
+  private void close(final ElementOffsets element, final XMLStreamReader reader)
+      throws XMLStreamException {
+    element.end = getTagEnd(reader);
+    if (element.isEmpty()) {
+      element.closeStart = element.end - 2;
+    } else {
+      element.closeStart = naf.lastIndexOf('<', element.end - 1);
+    }
+  }
+
+  /**
+   * Get the character offset following the tag the reader is positioned at,
+   * from the line and column of its location; the offset following an empty
+   * element is reported for both its start and end. The character offset of
+   * the location is not used as it is only approximate in the JDK reader.
+   *
+   * @param reader
+   *          the reader positioned at a start or end tag
+   * @return the offset following the tag
+   * @throws XMLStreamException
+   *           if the offset is not that of the end of the tag
+   */
+  private int getTagEnd(final XMLStreamReader reader)
+      throws XMLStreamException {
+    Location location = reader.getLocation();
+    int line = location.getLineNumber() - 1;
+    int offset = line >= 0 && line < lineStarts.length ? lineStarts[line]
+        + location.getColumnNumber() - 1 : -1;
+    if (offset <= 0 || offset > naf.length() || naf.charAt(offset - 1) != '>') {
+      throw new XMLStreamException("Cannot locate the element "
+          + reader.getLocalName(), location);
+    }
+    return offset;
+  }
+
+  /**
+   * Get the offset of every line of a document, the line breaks being
+   * "\r\n", "\n" or a lone "\r" as in XML.
+   *
+   * @param document
+   *          the document
+   * @return the offsets of the lines
+   */
+  private static int[] getLineStarts(final String document) {
+    int lines = 1;
+    for (int i = 0; i < document.length(); i++) {
+      if (isLineEnd(document, i)) {
+        lines++;
+      }
+    }
+    int[] starts = new int[lines];
+    int line = 1;
+    for (int i = 0; i < document.length(); i++) {
+      if (isLineEnd(document, i)) {
+        starts[line++] = i + 1;
+      }
+    }
+    return starts;
+  }
+
+  /**
+   * Check whether a character of a document ends a line.
+   *
+   * @param document
+   *          the document
+   * @param i
+   *          the position of the character
+   * @return whether it is a "\n" or a "\r" not followed by "\n"
+   */
+  private static boolean isLineEnd(final String document, final int i) {
+    char c = document.charAt(i);
+    return c == '\n' || c == '\r'
+        && (i + 1 == document.length() || document.charAt(i + 1) != '\n');
+  }
+
+  /**
+   * Get the language of the document.
+   *
+   * @return the language
+   */
+  public final String getLang() {
+    return lang;
+  }
+
+  /**
+   * Get the tokens of every sentence.
+   *
+   * @return the tokens
+   */
+  public final List<String[]> getSentences() {
+    return sentences;
+  }
+
+  /**
+   * Get the word form ids of the tokens of every sentence.
+   *
+   * @return the token ids
+   */
+  public final List<String[]> getTokenIds() {
+    return tokenIds;
+  }
+
+  /**
+   * Splice the named entities found and the linguistic processor of the
+   * entities layer into the original document.
+   *
+   * @param annotations
+   *          the named entity annotations of the sentences of this document
+   * @param lpName
+   *          the name of the linguistic processor
+   * @param lpVersion
+   *          the version of the linguistic processor
+   * @param beginTimestamp
+   *          when the annotation started
+   * @param endTimestamp
+   *          when the annotation finished
+   * @return the annotated NAF document
+   */
+  public final String toNAF(final NameAnnotations annotations,
+      final String lpName, final String lpVersion, final Date beginTimestamp,
+      final Date endTimestamp) {
+    if (naf == null) {
+      StreamingNAF created;
+      try {
+        created = new StreamingNAF(createNAF());
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return created.toNAF(annotations, lpName, lpVersion, beginTimestamp,
+          endTimestamp);
+    }
+    return splice(createLinguisticProcessor(lpName, lpVersion,
+        beginTimestamp, endTimestamp), createEntities(annotations));
+  }
+
+  /**
+   * Create a NAF document with only the linguistic processor of the entities
+   * layer and the named entities found, to be merged by the client into the
+   * original document with {@link #merge(String, String)}. The entity ids
+   * follow the last entity id of the original document.
+   *
+   * @param annotations
+   *          the named entity annotations of the sentences of this document
+   * @param lpName
+   *          the name of the linguistic processor
+   * @param lpVersion
+   *          the version of the linguistic processor
+   * @param beginTimestamp
+   *          when the annotation started
+   * @param endTimestamp
+   *          when the annotation finished
+   * @return the NAF delta
+   */
+  public final String toDelta(final NameAnnotations annotations,
+      final String lpName, final String lpVersion, final Date beginTimestamp,
+      final Date endTimestamp) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<NAF"
+        + (lang == null ? "" : " xml:lang=\"" + escape(lang) + "\"")
+        + " version=\"v1.naf\">\n" + INDENT + "<nafHeader>\n" + INDENT + INDENT
+        + ENTITIES_LPS + "\n"
+        + createLinguisticProcessor(lpName, lpVersion, beginTimestamp,
+            endTimestamp) + INDENT + INDENT + "</linguisticProcessors>\n"
+        + INDENT + "</nafHeader>\n" + INDENT + "<entities>\n"
+        + createEntities(annotations) + INDENT + "</entities>\n</NAF>\n";
+  }
+
+  /**
+   * Merge a NAF delta created by {@link #toDelta} into the document it was
+   * created from.
+   *
+   * @param aNaf
+   *          the original NAF document
+   * @param delta
+   *          the NAF delta
+   * @return the annotated NAF document
+   * @throws IOException
+   *           if the delta is not a NAF delta
+   */
+  public static String merge(final String aNaf, final String delta)
+      throws IOException {
+    StreamingNAF deltaNaf = new StreamingNAF(delta);
+    if (deltaNaf.entitiesLps == null || deltaNaf.entitiesLps.isEmpty()
+        || deltaNaf.entities == null || deltaNaf.entities.isEmpty()) {
+      throw new IOException("Not a NAF delta!");
+    }
+    return new StreamingNAF(aNaf).splice(
+        deltaNaf.getContent(deltaNaf.entitiesLps),
+        deltaNaf.getContent(deltaNaf.entities));
+  }
+
+  /**
+   * Get the lines between the start and end tags of a non empty element.
+   *
+   * @param element
+   *          the offsets of the element
+   * @return the content of the element
+   */
+  private String getContent(final ElementOffsets element) {
+    int start = element.startTagEnd;
+    if (start < naf.length() && naf.charAt(start) == '\n') {
+      start++;
+    }
+    return naf.substring(start, Math.max(start,
+        lineStart(naf, element.closeStart)));
+  }
+
+  /**
+   * Splice a linguistic processor and entity elements into the document at
+   * the offsets recorded while reading it.
+   *
+   * @param entitiesLp
+   *          the lp element of the entities layer
+   * @param newEntities
+   *          the entity elements
+   * @return the annotated NAF document
+   */
+  private String splice(final String entitiesLp, final String newEntities) {
+    String lpsBlock = INDENT + INDENT + ENTITIES_LPS + "\n" + entitiesLp
+        + INDENT + INDENT + "</linguisticProcessors>\n";
+    String headerBlock = INDENT + "<nafHeader>\n" + lpsBlock + INDENT
+        + "</nafHeader>\n";
+    String entitiesBlock = INDENT + "<entities>\n" + newEntities + INDENT
+        + "</entities>\n";
+    StringBuilder sb = new StringBuilder(naf.length() + headerBlock.length()
+        + entitiesBlock.length());
+    sb.append(naf);
+    if (root.isEmpty()) {
+      insert(sb, root, headerBlock + entitiesBlock, "");
+      return sb.toString();
+    }
+    // the later position is spliced first, keeping the earlier one valid
+    boolean entitiesFirst = header == null
+        || (entities == null ? root : entities).closeStart > header.closeStart;
+    if (entitiesFirst) {
+      insertEntities(sb, newEntities, entitiesBlock);
+    }
+    if (entitiesLps != null) {
+      insert(sb, entitiesLps, entitiesLp, INDENT + INDENT);
+    } else if (header != null) {
+      insert(sb, header, lpsBlock, INDENT);
+    } else {
+      sb.insert(root.startTagEnd, "\n" + headerBlock.substring(0,
+          headerBlock.length() - 1));
+    }
+    if (!entitiesFirst) {
+      insertEntities(sb, newEntities, entitiesBlock);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Insert the entity elements into the entities layer, or a new entities
+   * layer at the end of the document.
+   *
+   * @param sb
+   *          the document
+   * @param newEntities
+   *          the entity elements
+   * @param entitiesBlock
+   *          the new entities layer
+   */
+  private void insertEntities(final StringBuilder sb,
+      final String newEntities, final String entitiesBlock) {
+    if (entities != null) {
+      insert(sb, entities, newEntities, INDENT);
+    } else {
+      insert(sb, root, entitiesBlock, "");
+    }
+  }
+
+  /**
+   * Insert lines at the end of the content of an element of the document,
+   * writing the end tag of an empty element.
+   *
+   * @param sb
+   *          the document
+   * @param element
+   *          the offsets of the element
+   * @param lines
+   *          the lines to insert
+   * @param indent
+   *          the indentation of the end tag of an empty element
+   */
+  private void insert(final StringBuilder sb, final ElementOffsets element,
+      final String lines, final String indent) {
+    if (element.isEmpty()) {
+      sb.replace(element.closeStart, element.end, ">\n" + lines + indent
+          + "</" + element.name + ">");
+    } else {
+      sb.insert(lineStart(naf, element.closeStart), lines);
+    }
+  }
+
+  /**
+   * Create the NAF document, with the text and terms layers, of tokenized
+   * sentences.
+   *
+   * @return the NAF document
+   */
+  private String createNAF() {
+    StringBuilder text = new StringBuilder();
+    StringBuilder terms = new StringBuilder();
+    int offset = 0;
+    for (int sent = 0; sent < sentences.size(); sent++) {
+      String[] tokens = sentences.get(sent);
+      String[] ids = tokenIds.get(sent);
+      for (int i = 0; i < tokens.length; i++) {
+        String form = escape(tokens[i]);
+        text.append(INDENT).append(INDENT).append("<wf id=\"").append(ids[i])
+            .append("\" offset=\"").append(offset).append("\" length=\"")
+            .append(tokens[i].length()).append("\" sent=\"").append(sent + 1)
+            .append("\">").append(form).append("</wf>\n");
+        terms.append(INDENT).append(INDENT).append(comment(tokens[i]))
+            .append("\n");
+        terms.append(INDENT).append(INDENT).append("<term id=\"")
+            .append(wfIdToTermId.get(ids[i])).append("\">\n");
+        terms.append(INDENT).append(INDENT).append(INDENT).append("<span>\n");
+        terms.append(INDENT).append(INDENT).append(INDENT).append(INDENT)
+            .append("<target id=\"").append(ids[i]).append("\" />\n");
+        terms.append(INDENT).append(INDENT).append(INDENT).append("</span>\n");
+        terms.append(INDENT).append(INDENT).append("</term>\n");
+        offset += tokens[i].length() + 1;
+      }
+    }
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<NAF xml:lang=\""
+        + escape(lang) + "\" version=\"v1.naf\">\n" + INDENT + "<nafHeader>\n"
+        + INDENT + "</nafHeader>\n" + INDENT + "<text>\n" + text + INDENT
+        + "</text>\n" + INDENT + "<terms>\n" + terms + INDENT + "</terms>\n"
+        + "</NAF>\n";
+  }
+
+  /**
+   * Create the entity elements of the named entities found.
+   *
+   * @param annotations
+   *          the named entity annotations
+   * @return the entity elements
+   */
+  private String createEntities(final NameAnnotations annotations) {
+    StringBuilder sb = new StringBuilder();
+    int entityId = lastEntityId;
+    for (int i = 0; i < annotations.size(); i++) {
+      String[] tokens = annotations.getTokens(i);
+      String[] ids = annotations.getTokenIds(i);
+      for (Span span : annotations.getSpans(i)) {
+        sb.append(INDENT).append(INDENT).append("<entity id=\"e")
+            .append(++entityId).append("\" type=\"")
+            .append(escape(span.getType().toUpperCase())).append("\">\n");
+        sb.append(INDENT).append(INDENT).append(INDENT)
+            .append("<references>\n");
+        sb.append(INDENT).append(INDENT).append(INDENT).append(INDENT)
+            .append(comment(StringUtils.getStringFromSpan(span, tokens)))
+            .append("\n");
+        sb.append(INDENT).append(INDENT).append(INDENT).append(INDENT)
+            .append("<span>\n");
+        String previousTermId = null;
+        for (int j = span.getStart(); j < span.getEnd(); j++) {
+          String termId = wfIdToTermId.get(ids[j]);
+          if (termId != null && !termId.equals(previousTermId)) {
+            sb.append(INDENT).append(INDENT).append(INDENT).append(INDENT)
+                .append(INDENT).append("<target id=\"").append(escape(termId))
+                .append("\" />\n");
+            previousTermId = termId;
+          }
+        }
+        sb.append(INDENT).append(INDENT).append(INDENT).append(INDENT)
+            .append("</span>\n");
+        sb.append(INDENT).append(INDENT).append(INDENT)
+            .append("</references>\n");
+        sb.append(INDENT).append(INDENT).append("</entity>\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Create the linguistic processor element of the entities layer.
+   *
+   * @param lpName
+   *          the name
+   * @param lpVersion
+   *          the version
+   * @param beginTimestamp
+   *          when the annotation started
+   * @param endTimestamp
+   *          when the annotation finished
+   * @return the lp element
+   */
+  private static String createLinguisticProcessor(final String lpName,
+      final String lpVersion, final Date beginTimestamp,
+      final Date endTimestamp) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    String hostname;
+    try {
+      hostname = InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      hostname = "localhost";
+    }
+    return INDENT + INDENT + INDENT + "<lp name=\"" + escape(lpName)
+        + "\" beginTimestamp=\"" + format.format(beginTimestamp)
+        + "\" endTimestamp=\"" + format.format(endTimestamp)
+        + "\" version=\"" + escape(lpVersion) + "\" hostname=\""
+        + escape(hostname) + "\" />\n";
+  }
+
+  /**
+   * Get the position of the start of the line of a position in a document,
+   * or the position itself if preceded by other content in its line.
+   *
+   * @param naf
+   *          the document
+   * @param position
+   *          the position
+   * @return the start of the line
+   */
+  private static int lineStart(final String naf, final int position) {
+    int start = position;
+    while (start > 0 && (naf.charAt(start - 1) == ' ' || naf.charAt(start - 1) == '\t')) {
+      start--;
+    }
+    return start > 0 && naf.charAt(start - 1) == '\n' ? start : position;
+  }
+
+  /**
+   * Get the number of an element id such as e12.
+   *
+   * @param id
+   *          the id
+   * @return the number, or 0 if the id does not end with a number
+   */
+  private static int getIdNumber(final String id) {
+    if (id == null) {
+      return 0;
+    }
+    int start = id.length();
+    while (start > 0 && Character.isDigit(id.charAt(start - 1))) {
+      start--;
+    }
+    return start == id.length() ? 0 : Integer.parseInt(id.substring(start));
+  }
+
+  /**
+   * Escape a string to be used as an attribute value.
+   *
+   * @param value
+   *          the string
+   * @return the escaped string
+   */
+  private static String escape(final String value) {
+    return value.replace("&", "&amp;").replace("<", "&lt;")
+        .replace(">", "&gt;").replace("\"", "&quot;");
+  }
+
+  /**
+   * Create an XML comment with a text, which must not contain "--" nor end
+   * with "-": dashes are separated by spaces and a final dash followed by a
+   * space.
+   *
+   * @param text
+   *          the text
+   * @return the comment
+   */
+  static String comment(final String text) {
+    String commentText = text;
+    while (commentText.contains("--")) {
+      commentText = commentText.replace("--", "- -");
+    }
+    if (commentText.endsWith("-")) {
+      commentText += " ";
+    }
+    return "<!--" + commentText + "-->";
+  }
+
+  /**
+   * Create a StAX factory which does not resolve external entities.
+   *
+   * @return the factory
+   */
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads already tokenized sentences in the input formats which do not
+ * require NAF:
+ * <ol>
+ * <li>tok: one sentence per line, tokens separated by whitespace.
+ * <li>conll: one token per line, the token in the first column, sentences
+ * separated by empty lines.
+ * <li>jsonl: one sentence per line as a JSON array of token strings.
+ * <li>json: the whole document as a JSON array of sentences, every sentence
+ * a JSON array of token strings.
+ * </ol>
+ * Empty JSON arrays are read as empty sentences, so that every input
+ * sentence has its output sentence; empty lines only separate sentences.
+ *
+ * @author ragerri
+ * @version 2015-11-28
+ */
+public final class TokenizedInput {
+
+  /**
+   * One sentence per line format.
+   */
+  public static final String TOK = "tok";
+  /**
+   * One token per line format.
+   */
+  public static final String CONLL = "conll";
+  /**
+   * JSON lines format.
+   */
+  public static final String JSONL = "jsonl";
+  /**
+   * JSON array of sentences format.
+   */
+  public static final String JSON = "json";
+
+  /**
+   * Private constructor. This class should only be used statically.
+   */
+  private TokenizedInput() {
+    throw new AssertionError("This class is not meant to be instantiated!");
+  }
+
+  /**
+   * Read the tokenized sentences of a document.
+   *
+   * @param breader
+   *          the reader of the document
+   * @param format
+   *          the input format, tok, conll, jsonl or json
+   * @return the tokens of every sentence
+   * @throws IOException
+   *           if io problems or badly formatted input
+   */
+  public static List<String[]> readSentences(final BufferedReader breader,
+      final String format) throws IOException {
+    List<String[]> sentences = new ArrayList<String[]>();
+    if (format.equalsIgnoreCase(CONLL)) {
+      List<String> tokens = new ArrayList<String>();
+      String line;
+      while ((line = breader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty()) {
+          addSentence(sentences, tokens);
+        } else {
+          tokens.add(line.split("\\s+", 2)[0]);
+        }
+      }
+      addSentence(sentences, tokens);
+    } else if (format.equalsIgnoreCase(TOK) || format.equalsIgnoreCase(JSONL)) {
+      boolean json = format.equalsIgnoreCase(JSONL);
+      String line;
+      while ((line = breader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty()) {
+          // an empty JSON array is an empty sentence, kept to align the output
+          sentences.add(json ? parseJsonArray(line) : line.split("\\s+"));
+        }
+      }
+    } else if (format.equalsIgnoreCase(JSON)) {
+      StringBuilder document = new StringBuilder();
+      String line;
+      while ((line = breader.readLine()) != null) {
+        document.append(line).append('\n');
+      }
+      parseJsonArrays(document.toString(), sentences);
+    } else {
+      throw new IllegalArgumentException("Input format not supported: "
+          + format);
+    }
+    return sentences;
+  }
+
+  /**
+   * Add a sentence if it has any tokens and clear the token list.
+   *
+   * @param sentences
+   *          the sentences
+   * @param tokens
+   *          the tokens of the sentence
+   */
+  private static void addSentence(final List<String[]> sentences,
+      final List<String> tokens) {
+    if (!tokens.isEmpty()) {
+      sentences.add(tokens.toArray(new String[tokens.size()]));
+      tokens.clear();
+    }
+  }
+
+  /**
+   * Parse a JSON array of strings.
+   *
+   * @param line
+   *          the JSON array
+   * @return the strings
+   * @throws IOException
+   *           if the line is not a JSON array of strings
+   */
+  static String[] parseJsonArray(final String line) throws IOException {
+    List<String> tokens = new ArrayList<String>();
+    int pos = parseJsonArray(line, skipWhitespace(line, 0), tokens);
+    if (skipWhitespace(line, pos) != line.length()) {
+      throw jsonError(line);
+    }
+    return tokens.toArray(new String[tokens.size()]);
+  }
+
+  /**
+   * Parse a JSON array of arrays of strings, adding every array as a
+   * sentence, even if empty.
+   *
+   * @param document
+   *          the JSON array
+   * @param sentences
+   *          the sentences
+   * @throws IOException
+   *           if the document is not a JSON array of arrays of strings
+   */
+  static void parseJsonArrays(final String document,
+      final List<String[]> sentences) throws IOException {
+    int pos = skipWhitespace(document, 0);
+    if (pos >= document.length() || document.charAt(pos) != '[') {
+      throw jsonError(document);
+    }
+    pos = skipWhitespace(document, pos + 1);
+    if (pos < document.length() && document.charAt(pos) == ']') {
+      pos++;
+    } else {
+      List<String> tokens = new ArrayList<String>();
+      while (true) {
+        pos = parseJsonArray(document, pos, tokens);
+        sentences.add(tokens.toArray(new String[tokens.size()]));
+        tokens.clear();
+        pos = skipWhitespace(document, pos);
+        if (pos < document.length() && document.charAt(pos) == ',') {
+          pos = skipWhitespace(document, pos + 1);
+        } else if (pos < document.length() && document.charAt(pos) == ']') {
+          pos++;
+          break;
+        } else {
+          throw jsonError(document);
+        }
+      }
+    }
+    if (skipWhitespace(document, pos) != document.length()) {
+      throw jsonError(document);
+    }
+  }
+
+  /**
+   * Parse a JSON array of strings starting at some position.
+   *
+   * @param line
+   *          the line
+   * @param start
+   *          the position of the opening bracket
+   * @param tokens
+   *          where the strings are added
+   * @return the position after the closing bracket
+   * @throws IOException
+   *           if there is no JSON array of strings at the position
+   */
+  private static int parseJsonArray(final String line, final int start,
+      final List<String> tokens) throws IOException {
+    int pos = start;
+    if (pos >= line.length() || line.charAt(pos) != '[') {
+      throw jsonError(line);
+    }
+    pos = skipWhitespace(line, pos + 1);
+    if (pos < line.length() && line.charAt(pos) == ']') {
+      return pos + 1;
+    }
+    while (true) {
+      if (pos >= line.length() || line.charAt(pos) != '"') {
+        throw jsonError(line);
+      }
+      StringBuilder token = new StringBuilder();
+      pos = parseJsonString(line, pos + 1, token);
+      tokens.add(token.toString());
+      pos = skipWhitespace(line, pos);
+      if (pos < line.length() && line.charAt(pos) == ',') {
+        pos = skipWhitespace(line, pos + 1);
+      } else if (pos < line.length() && line.charAt(pos) == ']') {
+        return pos + 1;
+      } else {
+        throw jsonError(line);
+      }
+    }
+  }
+
+  /**
+   * Parse the content of a JSON string.
+   *
+   * @param line
+   *          the line
+   * @param start
+   *          the position after the opening quote
+   * @param token
+   *          where the unescaped string is appended
+   * @return the position after the closing quote
+   * @throws IOException
+   *           if the string is not properly closed or escaped
+   */
+  private static int parseJsonString(final String line, final int start,
+      final StringBuilder token) throws IOException {
+    int pos = start;
+    while (pos < line.length()) {
+      char c = line.charAt(pos++);
+      if (c == '"') {
+        return pos;
+      } else if (c != '\\') {
+        token.append(c);
+      } else if (pos < line.length()) {
+        char escaped = line.charAt(pos++);
+        switch (escaped) {
+        case 'b':
+          token.append('\b');
+          break;
+        case 'f':
+          token.append('\f');
+          break;
+        case 'n':
+          token.append('\n');
+          break;
+        case 'r':
+          token.append('\r');
+          break;
+        case 't':
+          token.append('\t');
+          break;
+        case 'u':
+          if (pos + 4 > line.length()) {
+            throw jsonError(line);
+          }
+          try {
+            token.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+          } catch (NumberFormatException e) {
+            throw jsonError(line);
+          }
+          pos += 4;
+          break;
+        default:
+          token.append(escaped);
+        }
+      }
+    }
+    throw jsonError(line);
+  }
+
+  /**
+   * Skip the whitespace of a line.
+   *
+   * @param line
+   *          the line
+   * @param start
+   *          the start position
+   * @return the position of the first non whitespace character
+   */
+  private static int skipWhitespace(final String line, final int start) {
+    int pos = start;
+    while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  /**
+   * Create the exception for a badly formatted JSON line.
+   *
+   * @param line
+   *          the line
+   * @return the exception
+   */
+  private static IOException jsonError(final String line) {
+    String context = line.length() > 100 ? line.substring(0, 100) + "..." : line;
+    return new IOException("Badly formatted JSON array of tokens: " + context);
+  }
+}
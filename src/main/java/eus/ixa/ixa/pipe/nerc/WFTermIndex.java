@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the word forms of a {@link KAFDocument} to the terms containing them.
+ * The index is built once per document so that the terms of every name found
+ * are obtained from its token span in time proportional to its length, and
+ * terms spanning several word forms are only added once.
+ *
+ * @author ragerri
+ * @version 2015-11-27
+ */
+public class WFTermIndex {
+
+  /**
+   * The term containing each word form, by word form id.
+   */
+  private final Map<String, Term> wfIdToTerm;
+
+  /**
+   * Build the index of a document.
+   *
+   * @param kaf
+   *          the document
+   */
+  public WFTermIndex(final KAFDocument kaf) {
+    List<Term> terms = kaf.getTerms();
+    wfIdToTerm = new HashMap<String, Term>(terms.size() * 2);
+    for (Term term : terms) {
+      for (WF wf : term.getWFs()) {
+        if (!wfIdToTerm.containsKey(wf.getId())) {
+          wfIdToTerm.put(wf.getId(), term);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the terms of a token span.
+   *
+   * @param tokenIds
+   *          the word form ids of the sentence
+   * @param start
+   *          the start of the span
+   * @param end
+   *          the end of the span, exclusive
+   * @return the terms of the span in order
+   */
+  public final List<Term> getTerms(final String[] tokenIds, final int start,
+      final int end) {
+    List<Term> spanTerms = new ArrayList<Term>(end - start);
+    Term previous = null;
+    for (int i = start; i < end; i++) {
+      Term term = wfIdToTerm.get(tokenIds[i]);
+      if (term != null && term != previous) {
+        spanTerms.add(term);
+        previous = term;
+      }
+    }
+    return spanTerms;
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jdom2.JDOMException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Runs a corpus through the whole annotation pipeline (NAF parsing, tagging
+ * and serialization) before a server starts accepting requests, so that the
+ * classes are loaded and the hot code is compiled by the JIT by the time the
+ * first client arrives. The warm-up stops when the latency of the last
+ * iterations stabilizes or after a maximum number of iterations.
+ *
+ * @author ragerri
+ * @version 2015-11-24
+ */
+public class WarmUp {
+
+  /**
+   * The number of iterations considered to decide whether the latency has
+   * stabilized.
+   */
+  private static final int WINDOW = 10;
+  /**
+   * The maximum relative difference between the latencies in the window for
+   * the latency to be considered stable.
+   */
+  private static final double TOLERANCE = 0.2;
+  /**
+   * The sentences of the built-in warm-up corpus.
+   */
+  private static final String[] SENTENCES = {
+      "John Smith visited the European Commission in Brussels on 12/05/2014 .",
+      "Shares of Apple Inc. rose 5 % to $ 120 at 10:30 in New York .",
+      "The United Nations said that Maria Garcia will travel to Madrid next week .",
+      "Barack Obama met Angela Merkel in Berlin on Monday , 3 March 2014 .",
+      "Google and Microsoft earned 20 % more than IBM in 2013 .",
+      "The University of the Basque Country is located in Leioa , near Bilbao .",
+      "Peter Jackson , director of The Hobbit , arrived at London Heathrow at 8:45 .",
+      "According to Reuters , the price of oil fell 3.5 % to 95 dollars on Friday ." };
+
+  /**
+   * The NAF documents of the corpus.
+   */
+  private final String corpus;
+
+  /**
+   * Construct a warm-up with the built-in corpus.
+   *
+   * @param lang
+   *          the language of the corpus
+   */
+  public WarmUp(final String lang) {
+    this.corpus = getBuiltInCorpus(lang).toString();
+  }
+
+  /**
+   * Construct a warm-up with a user supplied NAF document.
+   *
+   * @param nafFile
+   *          the NAF document
+   * @throws IOException
+   *           if the document cannot be read
+   */
+  public WarmUp(final File nafFile) throws IOException {
+    this.corpus = Files.toString(nafFile, Charsets.UTF_8);
+  }
+
+  /**
+   * Run the corpus through the annotation pipeline until the latency
+   * stabilizes or the maximum number of iterations is reached.
+   *
+   * @param annotator
+   *          the annotator
+   * @param outputFormat
+   *          the output format
+   * @param maxIterations
+   *          the maximum number of iterations
+   * @return the last latency in milliseconds
+   * @throws IOException
+   *           if io problems
+   * @throws JDOMException
+   *           if the corpus is not valid NAF
+   */
+  public final double warmUp(final Annotate annotator,
+      final String outputFormat, final int maxIterations) throws IOException,
+      JDOMException {
+    List<Double> latencies = new ArrayList<Double>();
+    long startTime = System.nanoTime();
+    for (int i = 0; i < maxIterations; i++) {
+      long iterationStart = System.nanoTime();
+      annotate(annotator, outputFormat);
+      latencies.add((System.nanoTime() - iterationStart) / 1000000.0);
+      if (isStable(latencies)) {
+        System.out.println("-> Warm-up latency stabilized at "
+            + String.format("%.2f", latencies.get(latencies.size() - 1))
+            + " ms after " + (i + 1) + " iterations ("
+            + (System.nanoTime() - startTime) / 1000000 + " ms)");
+        return latencies.get(latencies.size() - 1);
+      }
+    }
+    double lastLatency = latencies.isEmpty() ? 0 : latencies.get(latencies.size() - 1);
+    System.out.println("-> Warm-up finished after " + maxIterations
+        + " iterations without stabilizing; last latency "
+        + String.format("%.2f", lastLatency) + " ms");
+    return lastLatency;
+  }
+
+  /**
+   * Parse, annotate and serialize the corpus once.
+   *
+   * @param annotator
+   *          the annotator
+   * @param outputFormat
+   *          the output format
+   * @throws IOException
+   *           if io problems
+   * @throws JDOMException
+   *           if the corpus is not valid NAF
+   */
+  private void annotate(final Annotate annotator, final String outputFormat)
+      throws IOException, JDOMException {
+    KAFDocument kaf = KAFDocument.createFromStream(new BufferedReader(
+        new StringReader(corpus)));
+    NameAnnotations annotations = annotator.annotateNames(kaf);
+    if (outputFormat.equalsIgnoreCase("conll03")) {
+      annotator.annotateNEsToCoNLL2003(annotations);
+    } else if (outputFormat.equalsIgnoreCase("conll02")) {
+      annotator.annotateNEsToCoNLL2002(annotations);
+    } else if (outputFormat.equalsIgnoreCase("opennlp")) {
+      annotator.annotateNEsToOpenNLP(annotations);
+    } else {
+      annotator.annotateNEsToKAF(annotations);
+    }
+  }
+
+  /**
+   * Check whether the latencies of the last iterations are within the
+   * tolerance of each other.
+   *
+   * @param latencies
+   *          the latencies
+   * @return true if stable
+   */
+  private static boolean isStable(final List<Double> latencies) {
+    if (latencies.size() < WINDOW) {
+      return false;
+    }
+    List<Double> window = latencies.subList(latencies.size() - WINDOW,
+        latencies.size());
+    double min = Collections.min(window);
+    double max = Collections.max(window);
+    return max - min <= TOLERANCE * min;
+  }
+
+  /**
+   * Build a NAF document with the text and terms layers from the built-in
+   * sentences.
+   *
+   * @param lang
+   *          the language
+   * @return the NAF document
+   */
+  private static KAFDocument getBuiltInCorpus(final String lang) {
+    KAFDocument kaf = new KAFDocument(lang, "v1.naf");
+    int offset = 0;
+    for (int sent = 0; sent < SENTENCES.length; sent++) {
+      for (String token : SENTENCES[sent].split(" ")) {
+        WF wf = kaf.newWF(offset, token, sent + 1);
+        List<WF> wfs = new ArrayList<WF>();
+        wfs.add(wf);
+        Term term = kaf.newTerm(KAFDocument.newWFSpan(wfs));
+        term.setLemma(token.toLowerCase());
+        term.setMorphofeat(Character.isUpperCase(token.charAt(0)) ? "NNP" : "NN");
+        offset += token.length() + 1;
+      }
+    }
+    return kaf;
+  }
+}
@@ -57,6 +57,14 @@ public class Dictionaries {
    * The list of lowercase dictionaries as HashMap<String, String>.
    */
   private static List<Map<String, String>> dictionariesIgnoreCase;
+  /**
+   * The n-gram index of the dictionaries, built on first use.
+   */
+  private static volatile DictionaryIndex index;
+  /**
+   * The n-gram index of the lowercase dictionaries, built on first use.
+   */
+  private static volatile DictionaryIndex indexIgnoreCase;
 
   /**
    * Construct the dictionaries from the input directory path.
@@ -94,6 +102,39 @@ public class Dictionaries {
     return dictionariesIgnoreCase;
   }
 
+  /**
+   * Get the n-gram index of the dictionaries.
+   * 
+   * @return the index
+   */
+  public final DictionaryIndex getIndex() {
+    if (index == null) {
+      synchronized (Dictionaries.class) {
+        if (index == null) {
+          index = new DictionaryIndex(dictionaries, false);
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Get the n-gram index of the lower case dictionaries, whose entries are
+   * matched ignoring case.
+   * 
+   * @return the index
+   */
+  public final DictionaryIndex getIgnoreCaseIndex() {
+    if (indexIgnoreCase == null) {
+      synchronized (Dictionaries.class) {
+        if (indexIgnoreCase == null) {
+          indexIgnoreCase = new DictionaryIndex(dictionariesIgnoreCase, true);
+        }
+      }
+    }
+    return indexIgnoreCase;
+  }
+
   /**
    * Get the dictionary names.
    * 
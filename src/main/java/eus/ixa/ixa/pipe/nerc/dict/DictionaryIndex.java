@@ -0,0 +1,273 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc.dict;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import eus.ixa.ixa.pipe.nerc.SpanBuffer;
+
+/**
+ * Token n-gram index of the entries of a list of dictionaries. Every entry is
+ * split by spaces, as in {@code StringUtils.exactTokenFinder}, and every
+ * prefix of its tokens is stored in an open addressing hash table keyed by
+ * the combined hash codes of the tokens. A sentence is then matched by
+ * extending the n-grams starting at every token while they are a prefix of
+ * some entry, so that the cost depends on the length of the sentence and the
+ * matching names, not on the size of the dictionaries, and no objects are
+ * created for every sentence.
+ * <p>
+ * The spans found are the same as when searching every entry of every
+ * dictionary in the sentence, including one span per dictionary containing
+ * the entry, except that entries without any token are ignored. The index
+ * is immutable and can be shared between threads.
+ *
+ * @author ragerri
+ * @version 2015-11-29
+ */
+public class DictionaryIndex {
+
+  /**
+   * Whether the tokens are compared ignoring case.
+   */
+  private final boolean ignoreCase;
+  /**
+   * The tokens of the entry containing every n-gram.
+   */
+  private final String[][] ngramTokens;
+  /**
+   * The number of tokens of every n-gram.
+   */
+  private final int[] ngramLengths;
+  /**
+   * The types of the dictionary entries equal to every n-gram, null if it is
+   * only a prefix of other entries.
+   */
+  private final String[][] ngramTypes;
+  /**
+   * The hash of the n-gram in every slot of the table.
+   */
+  private final int[] slotHashes;
+  /**
+   * The n-gram in every slot of the table plus one, 0 if the slot is empty.
+   */
+  private final int[] slotNgrams;
+  /**
+   * Build the index of some dictionaries.
+   *
+   * @param dictionaries
+   *          the dictionaries, mapping every entry to its type
+   * @param isIgnoreCase
+   *          whether the tokens are compared ignoring case
+   */
+  public DictionaryIndex(final List<Map<String, String>> dictionaries,
+      final boolean isIgnoreCase) {
+    this.ignoreCase = isIgnoreCase;
+    int numPrefixes = 0;
+    for (Map<String, String> dictionary : dictionaries) {
+      for (String entry : dictionary.keySet()) {
+        numPrefixes += entry.split(" ").length;
+      }
+    }
+    int capacity = Integer.highestOneBit(Math.max(numPrefixes, 1) * 2) * 2;
+    slotHashes = new int[capacity];
+    slotNgrams = new int[capacity];
+    List<String[]> tokens = new ArrayList<String[]>();
+    List<Integer> lengths = new ArrayList<Integer>();
+    List<String[]> types = new ArrayList<String[]>();
+    for (Map<String, String> dictionary : dictionaries) {
+      for (Map.Entry<String, String> entry : dictionary.entrySet()) {
+        String[] entryTokens = entry.getKey().split(" ");
+        String type = entry.getValue();
+        int hash = 0;
+        for (int length = 1; length <= entryTokens.length; length++) {
+          hash = 31 * hash + tokenHash(entryTokens[length - 1]);
+          int ngram = find(entryTokens, 0, length, hash, tokens, lengths);
+          if (ngram < 0) {
+            ngram = tokens.size();
+            tokens.add(entryTokens);
+            lengths.add(length);
+            types.add(null);
+            insert(hash, ngram);
+          }
+          if (length == entryTokens.length) {
+            String[] entryTypes = types.get(ngram);
+            if (entryTypes == null) {
+              entryTypes = new String[] { type };
+            } else {
+              entryTypes = Arrays.copyOf(entryTypes, entryTypes.length + 1);
+              entryTypes[entryTypes.length - 1] = type;
+            }
+            types.set(ngram, entryTypes);
+          }
+        }
+      }
+    }
+    ngramTokens = tokens.toArray(new String[tokens.size()][]);
+    ngramLengths = new int[lengths.size()];
+    for (int i = 0; i < ngramLengths.length; i++) {
+      ngramLengths[i] = lengths.get(i);
+    }
+    ngramTypes = types.toArray(new String[types.size()][]);
+  }
+
+  /**
+   * Find the dictionary entries in a sentence.
+   *
+   * @param tokens
+   *          the tokens of the sentence
+   * @param sentence
+   *          the sentence index of the spans
+   * @param spans
+   *          the buffer where a span is added for every dictionary entry
+   *          found
+   */
+  public final void find(final String[] tokens, final int sentence,
+      final SpanBuffer spans) {
+    for (int start = 0; start < tokens.length; start++) {
+      int hash = 0;
+      for (int end = start + 1; end <= tokens.length; end++) {
+        hash = 31 * hash + tokenHash(tokens[end - 1]);
+        int ngram = find(tokens, start, end - start, hash, null, null);
+        if (ngram < 0) {
+          break;
+        }
+        String[] types = ngramTypes[ngram];
+        if (types != null) {
+          for (String type : types) {
+            spans.add(sentence, start, end, type);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the slot of an n-gram.
+   *
+   * @param tokens
+   *          the tokens containing the n-gram
+   * @param start
+   *          the first token of the n-gram
+   * @param length
+   *          the number of tokens of the n-gram
+   * @param hash
+   *          the hash of the n-gram
+   * @param buildTokens
+   *          the n-gram tokens while the index is being built, null after
+   * @param buildLengths
+   *          the n-gram lengths while the index is being built, null after
+   * @return the n-gram or -1 if not in the index
+   */
+  private int find(final String[] tokens, final int start, final int length,
+      final int hash, final List<String[]> buildTokens,
+      final List<Integer> buildLengths) {
+    int mask = slotHashes.length - 1;
+    for (int slot = mix(hash) & mask; slotNgrams[slot] != 0; slot = (slot + 1)
+        & mask) {
+      if (slotHashes[slot] == hash) {
+        int ngram = slotNgrams[slot] - 1;
+        String[] candidate = buildTokens == null ? ngramTokens[ngram]
+            : buildTokens.get(ngram);
+        int candidateLength = buildLengths == null ? ngramLengths[ngram]
+            : buildLengths.get(ngram);
+        if (candidateLength == length
+            && matches(candidate, tokens, start, length)) {
+          return ngram;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Insert an n-gram in the first free slot for its hash.
+   *
+   * @param hash
+   *          the hash of the n-gram
+   * @param ngram
+   *          the n-gram
+   */
+  private void insert(final int hash, final int ngram) {
+    int mask = slotHashes.length - 1;
+    int slot = mix(hash) & mask;
+    while (slotNgrams[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    slotHashes[slot] = hash;
+    slotNgrams[slot] = ngram + 1;
+  }
+
+  /**
+   * Check whether the first tokens of an entry are the tokens of a sentence
+   * starting at some position.
+   *
+   * @param entryTokens
+   *          the tokens of the entry
+   * @param tokens
+   *          the tokens of the sentence
+   * @param start
+   *          the position in the sentence
+   * @param length
+   *          the number of tokens compared
+   * @return true if the tokens match
+   */
+  private boolean matches(final String[] entryTokens, final String[] tokens,
+      final int start, final int length) {
+    for (int i = 0; i < length; i++) {
+      if (ignoreCase ? !entryTokens[i].equalsIgnoreCase(tokens[start + i])
+          : !entryTokens[i].equals(tokens[start + i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Hash a token consistently with the token comparison.
+   *
+   * @param token
+   *          the token
+   * @return the hash
+   */
+  private int tokenHash(final String token) {
+    if (!ignoreCase) {
+      return token.hashCode();
+    }
+    // equalsIgnoreCase considers equal the chars with the same case folding
+    int hash = 0;
+    for (int i = 0; i < token.length(); i++) {
+      hash = 31 * hash
+          + Character.toLowerCase(Character.toUpperCase(token.charAt(i)));
+    }
+    return hash;
+  }
+
+  /**
+   * Spread the bits of a hash over the slots of the table.
+   *
+   * @param hash
+   *          the hash
+   * @return the mixed hash
+   */
+  private static int mix(final int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -15,7 +15,7 @@
  */
 package eus.ixa.ixa.pipe.nerc.eval;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
@@ -32,6 +32,8 @@ import opennlp.tools.namefind.TokenNameFinderEvaluator;
 import opennlp.tools.namefind.TokenNameFinderModel;
 import opennlp.tools.util.ObjectStream;
 import opennlp.tools.util.eval.EvaluationMonitor;
+import opennlp.tools.util.eval.FMeasure;
+import eus.ixa.ixa.pipe.nerc.ModelLoader;
 import eus.ixa.ixa.pipe.nerc.train.AbstractTrainer;
 import eus.ixa.ixa.pipe.nerc.train.Flags;
 
@@ -52,8 +54,8 @@ public class Evaluate {
    */
   private NameFinderME nameFinder;
   /**
-   * The models to use for every language. The keys of the hash are the
-   * language codes, the values the models.
+   * The models to evaluate. The keys of the hash are the model paths, the
+   * values the models.
    */
   private static ConcurrentHashMap<String, TokenNameFinderModel> nercModels =
       new ConcurrentHashMap<String, TokenNameFinderModel>();
@@ -68,7 +70,6 @@ public class Evaluate {
    */
   public Evaluate(final Properties props) throws IOException {
     
-    String lang = props.getProperty("language");
     String clearFeatures = props.getProperty("clearFeatures");
     String model = props.getProperty("model");
     String testSet = props.getProperty("testset");
@@ -80,8 +81,10 @@ public class Evaluate {
       String[] neTypes = netypes.split(",");
       testSamples = new NameSampleTypeFilter(neTypes, testSamples);
     }
-    nercModels.putIfAbsent(lang, new TokenNameFinderModel(new FileInputStream(model)));
-    nameFinder = new NameFinderME(nercModels.get(lang));
+    if (!nercModels.containsKey(model)) {
+      nercModels.putIfAbsent(model, ModelLoader.loadModel(new File(model)));
+    }
+    nameFinder = new NameFinderME(nercModels.get(model));
   }
 
   /**
@@ -89,9 +92,18 @@ public class Evaluate {
    * @throws IOException if test corpus not loaded
    */
   public final void evaluate() throws IOException {
+    System.out.println(getFMeasure());
+  }
+
+  /**
+   * Evaluate and return precision, recall and F measure.
+   * @return the F measure
+   * @throws IOException if test corpus not loaded
+   */
+  public final FMeasure getFMeasure() throws IOException {
     TokenNameFinderEvaluator evaluator = new TokenNameFinderEvaluator(nameFinder);
     evaluator.evaluate(testSamples);
-    System.out.println(evaluator.getFMeasure());
+    return evaluator.getFMeasure();
   }
   /**
    * Evaluate and print the precision, recall and F measure per
@@ -1398,6 +1398,16 @@ class NumericLexer {
     return makeName("MISC","MISC");
   }
 
+  /**
+   * Builds the warning for an untokenizable character only when it is
+   * logged, as the rule matches every character not in a numeric expression.
+   */
+  private String untokenizableMessage() {
+    String str = yytext();
+    int first = str.charAt(0);
+    return String.format("Untokenizable: %s (U+%s, decimal: %s)", str, Integer.toHexString(first).toUpperCase(), Integer.toString(first));
+  }
+
 
 
   /**
@@ -1708,32 +1718,29 @@ class NumericLexer {
           }
         case 8: break;
         case 1: 
-          { String str = yytext();
-          int first = str.charAt(0);
-          String msg = String.format("Untokenizable: %s (U+%s, decimal: %s)", yytext(), Integer.toHexString(first).toUpperCase(), Integer.toString(first));
-          switch (untokenizable) {
+          { switch (untokenizable) {
             case NONE_DELETE:
               break;
             case FIRST_DELETE:
               if ( ! this.seenUntokenizableCharacter) {
-                //LOGGER.warning(msg);
+                //LOGGER.warning(untokenizableMessage());
                 this.seenUntokenizableCharacter = true;
               }
               break;
             case ALL_DELETE:
-              //LOGGER.warning(msg);
+              //LOGGER.warning(untokenizableMessage());
               this.seenUntokenizableCharacter = true;
               break;
             case NONE_KEEP:
               return makeName();
             case FIRST_KEEP:
               if ( ! this.seenUntokenizableCharacter) {
-                //LOGGER.warning(msg);
+                //LOGGER.warning(untokenizableMessage());
                 this.seenUntokenizableCharacter = true;
               }
               return makeName();
             case ALL_KEEP:
-              //LOGGER.warning(msg);
+              //LOGGER.warning(untokenizableMessage());
               this.seenUntokenizableCharacter = true;
               return makeName();
           }
@@ -18,6 +18,8 @@ package eus.ixa.ixa.pipe.nerc.lexer;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -56,6 +58,40 @@ public class NumericNameLexer {
   public NumericNameLexer(final BufferedReader breader, final NameFactory nameFactory) {
     jlexer = new NumericLexer(breader, nameFactory);
   }
+
+  /**
+   * Construct a new NumericNameLexer to be reused for several inputs with
+   * {@link #getNumericNames(Reader)}.
+   * @param nameFactory The NameFactory that will be invoked to convert
+   *        each string extracted by the @link NumericLexer into a @Name object
+   */
+  public NumericNameLexer(final NameFactory nameFactory) {
+    jlexer = new NumericLexer(new StringReader(""), nameFactory);
+  }
+
+  /**
+   * Resets the lexer to a new input, keeping its buffer, and returns the
+   * expressions found in it as a List of names.
+   *
+   * @param reader the new input
+   * @return A list of all tokens in the reader
+   */
+  public List<Name> getNumericNames(final Reader reader) {
+    reset(reader);
+    return getNumericNames();
+  }
+
+  /**
+   * Resets the lexer to a new input, keeping its buffer, so that the
+   * expressions found in it are obtained with {@link #hasNextToken()} and
+   * {@link #getNextToken()}.
+   *
+   * @param reader the new input
+   */
+  public void reset(final Reader reader) {
+    jlexer.yyreset(reader);
+    nextToken = null;
+  }
   
   /**
    * Returns found expressions as a List of names.
@@ -47,6 +47,30 @@ public class Flags {
   public static final String DEFAULT_EVAL_FORMAT = "conll02";
   public static final String DEFAULT_TASK = "ner";
   public static final String DEFAULT_HOSTNAME= "localhost";
+  public static final String DEFAULT_QUANTIZATION = "int8";
+  public static final String DEFAULT_LANGUAGE = "en";
+  public static final int DEFAULT_WARMUP = 0;
+  public static final String DEFAULT_WARMUP_CORPUS = "off";
+  public static final String DEFAULT_NAF_READER = "jdom";
+  public static final String DEFAULT_INPUT_FORMAT = "naf";
+  public static final String DEFAULT_ENSEMBLE = "order";
+  public static final int DEFAULT_SENTENCE_CACHE = 0;
+  public static final int DEFAULT_WORKERS = 1;
+  public static final int DEFAULT_QUEUE_SIZE = 50;
+  public static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+  public static final String DEFAULT_TRANSPORT = "socket";
+  public static final int DEFAULT_MAX_DOCUMENT_SIZE = 67108864;
+  public static final int DEFAULT_LARGE_DOCUMENT_SIZE = 1048576;
+  public static final int DEFAULT_LARGE_WORKERS = 0;
+  public static final long DEFAULT_DEADLINE = 0;
+  public static final int DEFAULT_METRICS_PORT = 0;
+  public static final String DEFAULT_SWAP_DIR = "off";
+  public static final String DEFAULT_MODELS = "off";
+  public static final long DEFAULT_MODEL_MEMORY = 0;
+  public static final long DEFAULT_DRAIN_TIMEOUT = 30000;
+  public static final int DEFAULT_CONNECTIONS = 4;
+  public static final int DEFAULT_PIPELINE = 2;
+  public static final int DEFAULT_THREADS = 0;
 
   private Flags() {
 
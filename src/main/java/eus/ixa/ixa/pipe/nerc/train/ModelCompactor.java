@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2015 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.nerc.train;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.BinaryFileDataReader;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.GenericModelReader;
+
+import com.google.common.io.ByteStreams;
+
+import eus.ixa.ixa.pipe.nerc.QuantizedMaxentModel;
+import eus.ixa.ixa.pipe.nerc.QuantizedMaxentModel.QuantizedMaxentModelSerializer;
+
+/**
+ * Post-training compaction of {@code TokenNameFinderModel}s. The maxent or
+ * perceptron model is replaced by a {@link QuantizedMaxentModel}, which keeps
+ * the weights as int8 levels with one scale per outcome or as float16 values
+ * and drops every weight which becomes zero, together with the predicates
+ * left without weights. Every other artifact is copied unchanged, and the
+ * manifest declares the serializer of the quantized model, so that the
+ * compacted model is loaded by {@link eus.ixa.ixa.pipe.nerc.ModelLoader} as
+ * any other model and takes a fraction of its memory.
+ *
+ * @author ragerri
+ * @version 2015-12-01
+ */
+public class ModelCompactor {
+
+  /**
+   * The entry of the model zip containing the sequence labeling model.
+   */
+  public static final String MODEL_ENTRY = "nameFinder.model";
+  /**
+   * The entry of the model zip containing the quantized model.
+   */
+  public static final String QUANTIZED_MODEL_ENTRY = "nameFinder.qmodel";
+  /**
+   * The entry of the model zip containing the manifest.
+   */
+  public static final String MANIFEST_ENTRY = "manifest.properties";
+  /**
+   * The manifest property recording the quantization of a compacted model.
+   */
+  public static final String QUANTIZATION_PROPERTY = "ixa-pipe-nerc-quantization";
+  /**
+   * The manifest prefix of the serializer class of custom artifacts.
+   */
+  private static final String SERIALIZER_CLASS_PREFIX = "serializer-class-";
+
+  /**
+   * The quantization, one of {@link QuantizedMaxentModel#FLOAT16} or
+   * {@link QuantizedMaxentModel#INT8}.
+   */
+  private final String quantization;
+  /**
+   * The number of predicates of the last compacted model.
+   */
+  private int predicates;
+  /**
+   * The number of predicates kept in the last compacted model.
+   */
+  private int keptPredicates;
+  /**
+   * The number of parameters of the last compacted model.
+   */
+  private int parameters;
+  /**
+   * The number of parameters kept in the last compacted model.
+   */
+  private int keptParameters;
+
+  /**
+   * Construct a model compactor.
+   *
+   * @param aQuantization
+   *          the quantization, float16 or int8
+   */
+  public ModelCompactor(final String aQuantization) {
+    if (!aQuantization.equalsIgnoreCase(QuantizedMaxentModel.FLOAT16)
+        && !aQuantization.equalsIgnoreCase(QuantizedMaxentModel.INT8)) {
+      throw new IllegalArgumentException("Quantization not supported: "
+          + aQuantization);
+    }
+    this.quantization = aQuantization.toLowerCase();
+  }
+
+  /**
+   * Write a compacted copy of a model.
+   *
+   * @param inModel
+   *          the model to be compacted
+   * @param outModel
+   *          the compacted model
+   * @throws IOException
+   *           if the model cannot be read or written
+   */
+  public final void compact(final File inModel, final File outModel)
+      throws IOException {
+    try (ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(
+        new FileInputStream(inModel)));
+        ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(
+            new FileOutputStream(outModel)))) {
+      zipOut.setLevel(Deflater.BEST_COMPRESSION);
+      boolean foundModel = false;
+      ZipEntry entry;
+      while ((entry = zipIn.getNextEntry()) != null) {
+        String name = entry.getName();
+        byte[] content;
+        if (name.equals(MODEL_ENTRY)) {
+          AbstractModel model = new GenericModelReader(new BinaryFileDataReader(
+              zipIn)).getModel();
+          ByteArrayOutputStream modelOut = new ByteArrayOutputStream();
+          new QuantizedMaxentModelSerializer().serialize(compact(model),
+              modelOut);
+          content = modelOut.toByteArray();
+          name = QUANTIZED_MODEL_ENTRY;
+          foundModel = true;
+        } else if (name.equals(MANIFEST_ENTRY)) {
+          Properties manifest = new Properties();
+          manifest.load(zipIn);
+          manifest.setProperty(QUANTIZATION_PROPERTY, quantization);
+          manifest.setProperty(SERIALIZER_CLASS_PREFIX + QUANTIZED_MODEL_ENTRY,
+              QuantizedMaxentModelSerializer.class.getName());
+          ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+          manifest.store(manifestOut, null);
+          content = manifestOut.toByteArray();
+        } else {
+          content = ByteStreams.toByteArray(zipIn);
+        }
+        zipOut.putNextEntry(new ZipEntry(name));
+        zipOut.write(content);
+        zipOut.closeEntry();
+        zipIn.closeEntry();
+      }
+      if (!foundModel) {
+        throw new IOException("No " + MODEL_ENTRY + " entry found in "
+            + inModel + "; only maxent and perceptron models can be compacted!");
+      }
+    }
+  }
+
+  /**
+   * Quantize the parameters of a model and drop the zero weights.
+   *
+   * @param model
+   *          the maxent or perceptron model
+   * @return the compacted model
+   */
+  public final QuantizedMaxentModel compact(final AbstractModel model) {
+    Context[] params = (Context[]) model.getDataStructures()[0];
+    predicates = params.length;
+    parameters = 0;
+    for (Context context : params) {
+      parameters += context.getOutcomes().length;
+    }
+    QuantizedMaxentModel compacted = new QuantizedMaxentModel(model,
+        quantization);
+    keptPredicates = compacted.getNumPredicates();
+    keptParameters = compacted.getNumParameters();
+    return compacted;
+  }
+
+  /**
+   * Get a report of the last compaction.
+   *
+   * @return the report
+   */
+  public final String getReport() {
+    return "Quantization: " + quantization + "\nPredicates kept: "
+        + keptPredicates + "/" + predicates + "\nParameters kept: "
+        + keptParameters + "/" + parameters;
+  }
+}
@@ -0,0 +1,113 @@
+package es.ehu.si.ixa.pipe.nerc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import ixa.kaflib.KAFDocument;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.nerc.Annotate;
+import eus.ixa.ixa.pipe.nerc.NameAnnotations;
+import eus.ixa.ixa.pipe.nerc.SpanBuffer;
+import eus.ixa.ixa.pipe.nerc.train.Flags;
+
+public class AnnotateTest {
+
+    private static final String NAF = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<NAF xml:lang=\"en\" version=\"v1.naf\">\n"
+        + "  <nafHeader>\n  </nafHeader>\n"
+        + "  <text>\n"
+        + "    <wf id=\"w1\" offset=\"0\" length=\"9\" sent=\"1\">Aristotle</wf>\n"
+        + "    <wf id=\"w2\" offset=\"10\" length=\"3\" sent=\"1\">met</wf>\n"
+        + "    <wf id=\"w3\" offset=\"14\" length=\"5\" sent=\"1\">Smith</wf>\n"
+        + "  </text>\n"
+        + "  <terms>\n"
+        + "    <term id=\"t1\" lemma=\"Aristotle\" morphofeat=\"NNP\"><span><target id=\"w1\" /></span></term>\n"
+        + "    <term id=\"t2\" lemma=\"meet\" morphofeat=\"VBD\"><span><target id=\"w2\" /></span></term>\n"
+        + "    <term id=\"t3\" lemma=\"Smith\" morphofeat=\"NNP\"><span><target id=\"w3\" /></span></term>\n"
+        + "  </terms>\n"
+        + "  <entities>\n"
+        + "    <entity id=\"e1\" type=\"LOCATION\">\n"
+        + "      <references><span><target id=\"t3\" /></span></references>\n"
+        + "    </entity>\n"
+        + "  </entities>\n"
+        + "</NAF>\n";
+
+    private static Annotate annotator = null;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        File dictsDir = Files.createTempDirectory("dicts").toFile();
+        Files.copy(AnnotateTest.class.getResourceAsStream("/names.txt"),
+                new File(dictsDir, "names.txt").toPath());
+        Properties properties = new Properties();
+        properties.setProperty("model", "none");
+        properties.setProperty("language", "en");
+        properties.setProperty("clearFeatures", "no");
+        properties.setProperty("ruleBasedOption", Flags.DEFAULT_LEXER);
+        properties.setProperty("dictTag", "tag");
+        properties.setProperty("dictPath", dictsDir.getAbsolutePath());
+        annotator = new Annotate(properties);
+    }
+
+    @Test
+    public void keepsExistingEntitiesInCoNLL2003() throws Exception {
+        NameAnnotations annotations = annotator.annotateNames(
+            KAFDocument.createFromStream(new StringReader(NAF)));
+        assertEquals("Aristotle\tAristotle\tNNP\tI-PER\n"
+            + "met\tmeet\tVBD\tO\n"
+            + "Smith\tSmith\tNNP\tI-LOC\n\n",
+            annotator.annotateNEsToCoNLL2003(annotations));
+    }
+
+    @Test
+    public void keepsExistingEntitiesInCoNLL2002() throws Exception {
+        NameAnnotations annotations = annotator.annotateNames(
+            KAFDocument.createFromStream(new StringReader(NAF)));
+        assertEquals("Aristotle\tAristotle\tNNP\tB-PER\n"
+            + "met\tmeet\tVBD\tO\n"
+            + "Smith\tSmith\tNNP\tB-LOC\n\n",
+            annotator.annotateNEsToCoNLL2002(annotations));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void keepsDeprecatedCoNLL2003Output() throws Exception {
+        assertEquals("Aristotle\tAristotle\tNNP\tO\n"
+            + "met\tmeet\tVBD\tO\n"
+            + "Smith\tSmith\tNNP\tI-LOC\n\n",
+            annotator.annotateNEsToCoNLL2003(
+                KAFDocument.createFromStream(new StringReader(NAF))));
+    }
+
+    @Test
+    public void annotatesTokenArraysIntoSpanBuffer() {
+        SpanBuffer spans = new SpanBuffer(1);
+        for (int i = 0; i < 2; i++) {
+            annotator.annotateNEs(new String[][] {{"Ayn", "Rand", "met"},
+                {}, {"Aristotle", "and", "Abraham", "Lincoln"}}, spans);
+            assertEquals(3, spans.size());
+            assertSpan(spans, 0, 0, 0, 2, "person");
+            assertSpan(spans, 1, 2, 0, 1, "person");
+            assertSpan(spans, 2, 2, 2, 4, "person");
+        }
+        annotator.annotateNEs(new String[] {"Achilles"}, 5, spans);
+        assertEquals(4, spans.size());
+        assertSpan(spans, 3, 5, 0, 1, "person");
+        assertEquals(0, spans.getTypeId(3));
+    }
+
+    private static void assertSpan(SpanBuffer spans, int index, int sentence,
+            int start, int end, String type) {
+        assertEquals(sentence, spans.getSentence(index));
+        assertEquals(start, spans.getStart(index));
+        assertEquals(end, spans.getEnd(index));
+        assertEquals(type, spans.getType(index));
+    }
+}
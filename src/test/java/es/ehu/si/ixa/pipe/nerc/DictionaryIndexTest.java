@@ -0,0 +1,79 @@
+package es.ehu.si.ixa.pipe.nerc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.nerc.SpanBuffer;
+import eus.ixa.ixa.pipe.nerc.StringUtils;
+import eus.ixa.ixa.pipe.nerc.dict.DictionaryIndex;
+
+public class DictionaryIndexTest {
+
+    private static final String[] WORDS = {"New", "new", "York", "YORK",
+            "City", "of", "Bank", "America"};
+    private static final String[] TYPES = {"LOCATION", "ORGANIZATION"};
+
+    @Test
+    public void sameAsTokenFinder() {
+        Random random = new Random(42);
+        List<Map<String, String>> dictionaries = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < 2; i++) {
+            Map<String, String> dictionary = new HashMap<String, String>();
+            for (int j = 0; j < 20; j++) {
+                dictionary.put(randomText(random, 1 + random.nextInt(3), " "),
+                        TYPES[random.nextInt(TYPES.length)]);
+            }
+            dictionaries.add(dictionary);
+        }
+        DictionaryIndex exactIndex = new DictionaryIndex(dictionaries, false);
+        DictionaryIndex ignoreCaseIndex = new DictionaryIndex(dictionaries, true);
+        SpanBuffer spans = new SpanBuffer();
+        for (int i = 0; i < 500; i++) {
+            String[] tokens = randomText(random, random.nextInt(12), " ")
+                    .split(" ");
+            for (boolean ignoreCase : new boolean[] {false, true}) {
+                List<String> expected = new ArrayList<String>();
+                for (Map<String, String> dictionary : dictionaries) {
+                    for (Map.Entry<String, String> entry : dictionary.entrySet()) {
+                        List<Integer> ids = ignoreCase ? StringUtils
+                                .exactTokenFinderIgnoreCase(entry.getKey(), tokens)
+                                : StringUtils.exactTokenFinder(entry.getKey(), tokens);
+                        for (int j = 0; j < ids.size(); j += 2) {
+                            expected.add(ids.get(j) + " " + ids.get(j + 1) + " "
+                                    + entry.getValue());
+                        }
+                    }
+                }
+                spans.clear();
+                (ignoreCase ? ignoreCaseIndex : exactIndex).find(tokens, 0, spans);
+                List<String> found = new ArrayList<String>();
+                for (int j = 0; j < spans.size(); j++) {
+                    found.add(spans.getStart(j) + " " + spans.getEnd(j) + " "
+                            + spans.getType(j));
+                }
+                Collections.sort(expected);
+                Collections.sort(found);
+                assertEquals(expected, found);
+            }
+        }
+    }
+
+    private static String randomText(Random random, int length, String separator) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                text.append(separator);
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package es.ehu.si.ixa.pipe.nerc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.perceptron.PerceptronModel;
+
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.nerc.MappedMaxentModel;
+
+public class MappedMaxentModelTest {
+
+    private static final Context[] PARAMS = {
+        new Context(new int[] {0, 2}, new double[] {1.5, -0.25}),
+        new Context(new int[] {1}, new double[] {0.75}),
+        new Context(new int[] {0, 1, 2}, new double[] {-1.0, 0.5, 2.0})};
+    private static final String[] PREDICATES = {"w=Madrid", "w=John", "sh=Xx"};
+    private static final String[] OUTCOMES = {"B-LOC", "B-PER", "O"};
+    private static final String[][] CONTEXTS = {
+        {"w=Madrid", "sh=Xx"}, {"w=John", "unknown"}, {}, {"sh=Xx", "sh=Xx"}};
+
+    @Test
+    public void evaluatesAsMaxentModel() throws IOException {
+        assertSameModel(new GISModel(PARAMS, PREDICATES, OUTCOMES, 2, 0.5));
+    }
+
+    @Test
+    public void evaluatesAsPerceptronModel() throws IOException {
+        assertSameModel(new PerceptronModel(PARAMS, PREDICATES, OUTCOMES));
+    }
+
+    private static void assertSameModel(AbstractModel model) throws IOException {
+        ByteArrayOutputStream layout = new ByteArrayOutputStream();
+        MappedMaxentModel.write(model, new DataOutputStream(layout));
+        MappedMaxentModel mapped = new MappedMaxentModel(ByteBuffer.wrap(layout.toByteArray()));
+        assertEquals(OUTCOMES.length, mapped.getNumOutcomes());
+        assertEquals(1, mapped.getIndex("B-PER"));
+        for (String[] context : CONTEXTS) {
+            assertArrayEquals(model.eval(context), mapped.eval(context), 0);
+            assertArrayEquals(model.eval(context, new float[] {0.5f, 2f}),
+                mapped.eval(context, new float[] {0.5f, 2f}), 0);
+            assertEquals(model.getBestOutcome(model.eval(context)),
+                mapped.getBestOutcome(mapped.eval(context)));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package es.ehu.si.ixa.pipe.nerc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import opennlp.tools.ml.maxent.GISModel;
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.perceptron.PerceptronModel;
+
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.nerc.QuantizedMaxentModel;
+
+public class QuantizedMaxentModelTest {
+
+    private static final Context[] PARAMS = {
+        new Context(new int[] {0, 2}, new double[] {1.5, -0.25}),
+        new Context(new int[] {1}, new double[] {0.75}),
+        new Context(new int[] {0, 1, 2}, new double[] {-1.0, 0.5, 2.0}),
+        new Context(new int[] {1}, new double[] {0.001})};
+    private static final String[] PREDICATES = {"w=Madrid", "w=John", "sh=Xx", "w=rare"};
+    private static final String[] KEPT_PREDICATES = {"w=Madrid", "w=John", "sh=Xx"};
+    private static final String[] OUTCOMES = {"B-LOC", "B-PER", "O"};
+    // int8 levels with scales 1.5/127, 0.75/127 and 2/127; w=rare becomes zero
+    private static final Context[] INT8_PARAMS = {
+        new Context(new int[] {0, 2}, new double[] {1.5, -16 * 2.0 / 127}),
+        new Context(new int[] {1}, new double[] {0.75}),
+        new Context(new int[] {0, 1, 2}, new double[] {-85 * 1.5 / 127, 85 * 0.75 / 127, 2.0})};
+    private static final String[][] CONTEXTS = {
+        {"w=Madrid", "sh=Xx"}, {"w=John", "unknown"}, {}, {"sh=Xx", "w=rare"}};
+
+    @Test
+    public void evaluatesAsDequantizedMaxentModel() throws IOException {
+        assertSameModel(new GISModel(INT8_PARAMS, KEPT_PREDICATES, OUTCOMES, 2, 0.5),
+            new GISModel(PARAMS, PREDICATES, OUTCOMES, 2, 0.5), QuantizedMaxentModel.INT8);
+    }
+
+    @Test
+    public void evaluatesAsDequantizedPerceptronModel() throws IOException {
+        assertSameModel(new PerceptronModel(INT8_PARAMS, KEPT_PREDICATES, OUTCOMES),
+            new PerceptronModel(PARAMS, PREDICATES, OUTCOMES), QuantizedMaxentModel.INT8);
+    }
+
+    @Test
+    public void keepsFloat16Weights() throws IOException {
+        GISModel model = new GISModel(PARAMS, PREDICATES, OUTCOMES, 1, 0);
+        QuantizedMaxentModel quantized = roundTrip(new QuantizedMaxentModel(model,
+            QuantizedMaxentModel.FLOAT16));
+        assertEquals(PREDICATES.length, quantized.getNumPredicates());
+        for (String[] context : CONTEXTS) {
+            assertArrayEquals(model.eval(context), quantized.eval(context), 1e-3);
+        }
+    }
+
+    @Test
+    public void roundsToFloat16() {
+        assertEquals(1.0f, QuantizedMaxentModel.fromHalf(QuantizedMaxentModel.toHalf(1.0f)), 0);
+        assertEquals(-0.333251953125f,
+            QuantizedMaxentModel.fromHalf(QuantizedMaxentModel.toHalf(-1f / 3)), 0);
+        assertEquals(65504f, QuantizedMaxentModel.fromHalf(QuantizedMaxentModel.toHalf(1e6f)), 0);
+        assertEquals(5.9604645e-8f,
+            QuantizedMaxentModel.fromHalf(QuantizedMaxentModel.toHalf(6e-8f)), 0);
+        assertEquals(0f, QuantizedMaxentModel.fromHalf(QuantizedMaxentModel.toHalf(1e-9f)), 0);
+    }
+
+    private static void assertSameModel(AbstractModel dequantized, AbstractModel model,
+            String quantization) throws IOException {
+        QuantizedMaxentModel quantized = roundTrip(new QuantizedMaxentModel(model, quantization));
+        assertEquals(OUTCOMES.length, quantized.getNumOutcomes());
+        assertEquals(1, quantized.getIndex("B-PER"));
+        assertEquals(3, quantized.getNumPredicates());
+        assertEquals(6, quantized.getNumParameters());
+        for (String[] context : CONTEXTS) {
+            assertArrayEquals(dequantized.eval(context), quantized.eval(context), 1e-12);
+            assertArrayEquals(dequantized.eval(context, new float[] {0.5f, 2f}),
+                quantized.eval(context, new float[] {0.5f, 2f}), 1e-12);
+            assertEquals(dequantized.getBestOutcome(dequantized.eval(context)),
+                quantized.getBestOutcome(quantized.eval(context)));
+        }
+    }
+
+    private static QuantizedMaxentModel roundTrip(QuantizedMaxentModel model)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        model.serialize(out);
+        return new QuantizedMaxentModel(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
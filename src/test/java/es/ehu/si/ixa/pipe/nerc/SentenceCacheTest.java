@@ -0,0 +1,36 @@
+package es.ehu.si.ixa.pipe.nerc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import opennlp.tools.util.Span;
+
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.nerc.SentenceCache;
+
+public class SentenceCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        SentenceCache cache = new SentenceCache(2);
+        Span[] first = {new Span(0, 1, "PER")};
+        Span[] second = {};
+        Span[] third = {new Span(1, 2, "LOC")};
+        String[] tokens = {"John", "left"};
+        cache.put(tokens, first);
+        // the key is copied
+        tokens[1] = "arrived";
+        cache.put(new String[] {"Thanks", "."}, second);
+        assertSame(first, cache.get(new String[] {"John", "left"}));
+        cache.put(new String[] {"In", "Paris"}, third);
+        assertNull(cache.get(new String[] {"Thanks", "."}));
+        assertSame(first, cache.get(new String[] {"John", "left"}));
+        assertSame(third, cache.get(new String[] {"In", "Paris"}));
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRate(), 0);
+    }
+}
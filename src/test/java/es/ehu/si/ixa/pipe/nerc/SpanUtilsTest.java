@@ -0,0 +1,74 @@
+package es.ehu.si.ixa.pipe.nerc;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import opennlp.tools.namefind.NameFinderME;
+import opennlp.tools.util.Span;
+
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.nerc.SpanUtils;
+
+public class SpanUtilsTest {
+
+    private static final String[] TYPES = {"PER", "LOC", "ORG"};
+
+    @Test
+    public void dictionarySpansHavePriority() {
+        Span[] statSpans = {new Span(0, 2, "PER"), new Span(4, 5, "LOC"),
+                new Span(6, 7, "ORG")};
+        Span[] dictSpans = {new Span(1, 2, "ORG"), new Span(3, 6, "LOC")};
+        Span[] numericSpans = {new Span(8, 10, "DATE")};
+        Span[] expected = {new Span(1, 2, "ORG"), new Span(3, 6, "LOC"),
+                new Span(6, 7, "ORG"), new Span(8, 10, "DATE")};
+        assertArrayEquals(expected,
+                SpanUtils.mergeSpans(statSpans, dictSpans, numericSpans));
+    }
+
+    @Test
+    public void ensemblePriority() {
+        Span[] firstModel = {new Span(0, 1, "PER"), new Span(3, 4, "ORG")};
+        Span[] secondModel = {new Span(0, 2, "PER"), new Span(2, 4, "ORG"),
+                new Span(5, 6, "PRODUCT")};
+        List<Span[]> modelSpans = Arrays.asList(firstModel, secondModel);
+        Span[] byOrder = {new Span(0, 1, "PER"), new Span(3, 4, "ORG"),
+                new Span(5, 6, "PRODUCT")};
+        Span[] byLength = {new Span(0, 2, "PER"), new Span(2, 4, "ORG"),
+                new Span(5, 6, "PRODUCT")};
+        assertArrayEquals(byOrder, SpanUtils.prioritySpans(modelSpans, false));
+        assertArrayEquals(byLength, SpanUtils.prioritySpans(modelSpans, true));
+    }
+
+    @Test
+    public void sameAsPostProcessAndDropOverlapping() {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            Span[] statSpans = randomSpans(random);
+            Span[] dictSpans = randomSpans(random);
+            Span[] numericSpans = randomSpans(random);
+            List<Span> allSpans = new ArrayList<Span>(Arrays.asList(statSpans));
+            SpanUtils.postProcessDuplicatedSpans(allSpans, dictSpans);
+            SpanUtils.concatenateSpans(allSpans, dictSpans);
+            SpanUtils.concatenateSpans(allSpans, numericSpans);
+            Span[] expected = NameFinderME.dropOverlappingSpans(allSpans
+                    .toArray(new Span[allSpans.size()]));
+            assertArrayEquals(expected,
+                    SpanUtils.mergeSpans(statSpans, dictSpans, numericSpans));
+        }
+    }
+
+    private static Span[] randomSpans(Random random) {
+        Span[] spans = new Span[random.nextInt(6)];
+        for (int i = 0; i < spans.length; i++) {
+            int start = random.nextInt(15);
+            spans[i] = new Span(start, start + 1 + random.nextInt(4),
+                    TYPES[random.nextInt(TYPES.length)]);
+        }
+        return spans;
+    }
+}
@@ -0,0 +1,139 @@
+package es.ehu.si.ixa.pipe.nerc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import opennlp.tools.util.Span;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import eus.ixa.ixa.pipe.nerc.NameAnnotations;
+import eus.ixa.ixa.pipe.nerc.StreamingNAF;
+
+public class StreamingNAFTest {
+
+    private static final String NAF = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<NAF xml:lang=\"en\" version=\"v1.naf\">\n"
+        + "  <nafHeader>\n  </nafHeader>\n"
+        + "  <text>\n"
+        + "    <wf id=\"w1\" offset=\"0\" length=\"6\" sent=\"1\">Smith-</wf>\n"
+        + "    <wf id=\"w2\" offset=\"7\" length=\"1\" sent=\"1\">-</wf>\n"
+        + "    <wf id=\"w3\" offset=\"9\" length=\"3\" sent=\"1\">---</wf>\n"
+        + "  </text>\n"
+        + "  <terms>\n"
+        + "    <term id=\"t1\"><span><target id=\"w1\" /></span></term>\n"
+        + "    <term id=\"t2\"><span><target id=\"w2\" /></span></term>\n"
+        + "    <term id=\"t3\"><span><target id=\"w3\" /></span></term>\n"
+        + "  </terms>\n"
+        + "</NAF>\n";
+
+    private static final String LAYERS = "  <text>\n"
+        + "    <wf id='w1' sent='1'><![CDATA[</entities>]]></wf>\n"
+        + "    <wf id='w2' sent='1'>-</wf>\n"
+        + "    <wf id='w3' sent='1'>---</wf>\n"
+        + "  </text>\n"
+        + "  <terms>\n"
+        + "    <term id='t1'><span><target id='w1'/></span></term>\n"
+        + "    <term id='t2'><span><target id='w2'/></span></term>\n"
+        + "    <term id='t3'><span><target id='w3'/></span></term>\n"
+        + "  </terms>\n";
+
+    @Test
+    public void writesWellFormedEntityComments() throws Exception {
+        StreamingNAF naf = new StreamingNAF(NAF);
+        Document document = parse(naf.toNAF(annotate(naf), "ixa-pipe-nerc-test",
+            "1.0", new Date(), new Date()));
+        assertEquals(3, document.getElementsByTagName("entity").getLength());
+    }
+
+    @Test
+    public void writesWellFormedTermComments() throws Exception {
+        List<String[]> sentences = new ArrayList<String[]>();
+        sentences.add(new String[] {"Smith-", "-", "---"});
+        StreamingNAF naf = new StreamingNAF("en", sentences);
+        Document document = parse(naf.toNAF(annotate(naf), "ixa-pipe-nerc-test",
+            "1.0", new Date(), new Date()));
+        assertEquals(3, document.getElementsByTagName("term").getLength());
+        assertEquals(3, document.getElementsByTagName("entity").getLength());
+    }
+
+    @Test
+    public void splicesIntoSingleQuotedLinguisticProcessors() throws Exception {
+        Document document = tag("<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<!-- <nafHeader> <linguisticProcessors layer=\"entities\"> -->\n"
+            + "<NAF version='v1.naf' xml:lang='en'>\n"
+            + "  <nafHeader>\n"
+            + "    <linguisticProcessors version='1' layer='entities'>\n"
+            + "      <lp name='other' />\n"
+            + "    </linguisticProcessors >\n"
+            + "  </nafHeader>\n" + LAYERS
+            + "  <entities>\n    <entity id='e4' type='LOCATION'/>\n  </entities>\n"
+            + "  <!-- </entities> </NAF> -->\n"
+            + "</NAF>\n");
+        assertEquals(1, document.getElementsByTagName("linguisticProcessors").getLength());
+        assertEquals(2, document.getElementsByTagName("lp").getLength());
+        assertEquals(1, document.getElementsByTagName("entities").getLength());
+        assertEquals(4, document.getElementsByTagName("entity").getLength());
+        assertEquals("e7", ((Element) document.getElementsByTagName("entity").item(3))
+            .getAttribute("id"));
+    }
+
+    @Test
+    public void splicesIntoEmptyElements() throws Exception {
+        Document document = tag("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<NAF xml:lang=\"en\" version=\"v1.naf\">\n"
+            + "  <nafHeader/>\n" + LAYERS
+            + "  <entities\n  />\n"
+            + "</NAF>\n");
+        assertEquals(1, document.getElementsByTagName("linguisticProcessors").getLength());
+        assertEquals(1, document.getElementsByTagName("entities").getLength());
+        assertEquals(3, document.getElementsByTagName("entity").getLength());
+    }
+
+    @Test
+    public void addsMissingLayers() throws Exception {
+        Document document = tag("<NAF xml:lang='en'>\r\n" + LAYERS
+            + "  <!-- <nafHeader></nafHeader> <entities></entities> -->\n</NAF>");
+        assertEquals(1, document.getElementsByTagName("nafHeader").getLength());
+        assertEquals(1, document.getElementsByTagName("entities").getLength());
+        assertEquals(3, document.getElementsByTagName("entity").getLength());
+    }
+
+    @Test
+    public void mergesDeltaAsSplicedDocument() throws Exception {
+        StreamingNAF naf = new StreamingNAF(NAF);
+        Date date = new Date();
+        assertEquals(naf.toNAF(annotate(naf), "ixa-pipe-nerc-test", "1.0", date, date),
+            StreamingNAF.merge(NAF, naf.toDelta(annotate(naf), "ixa-pipe-nerc-test",
+                "1.0", date, date)));
+    }
+
+    static Document tag(String document) throws Exception {
+        StreamingNAF naf = new StreamingNAF(document);
+        return parse(naf.toNAF(annotate(naf), "ixa-pipe-nerc-test", "1.0", new Date(),
+            new Date()));
+    }
+
+    static NameAnnotations annotate(StreamingNAF naf) {
+        NameAnnotations annotations = new NameAnnotations(null, true);
+        Span[] spans = {new Span(0, 1, "PER"), new Span(1, 2, "MISC"),
+            new Span(2, 3, "MISC")};
+        annotations.addSentence(naf.getSentences().get(0), naf.getTokenIds().get(0),
+            spans, Collections.<ixa.kaflib.Entity> emptyList());
+        return annotations;
+    }
+
+    static Document parse(String naf) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new ByteArrayInputStream(naf.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,50 @@
+package es.ehu.si.ixa.pipe.nerc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+
+import eus.ixa.ixa.pipe.nerc.TokenizedInput;
+
+public class TokenizedInputTest {
+
+    @Test
+    public void keepsEmptyJsonlSentences() throws IOException {
+        List<String[]> sentences = read("[\"John\",\"Smith\"]\n[]\n\n[\"Madrid\"]\n[]\n",
+            TokenizedInput.JSONL);
+        assertEquals(4, sentences.size());
+        assertArrayEquals(new String[] {"John", "Smith"}, sentences.get(0));
+        assertEquals(0, sentences.get(1).length);
+        assertArrayEquals(new String[] {"Madrid"}, sentences.get(2));
+        assertEquals(0, sentences.get(3).length);
+    }
+
+    @Test
+    public void keepsEmptyJsonSentences() throws IOException {
+        List<String[]> sentences = read("[[\"John\"], [], [\"Madrid\", \".\"]]",
+            TokenizedInput.JSON);
+        assertEquals(3, sentences.size());
+        assertArrayEquals(new String[] {"John"}, sentences.get(0));
+        assertEquals(0, sentences.get(1).length);
+        assertArrayEquals(new String[] {"Madrid", "."}, sentences.get(2));
+    }
+
+    @Test
+    public void separatesConllSentencesByEmptyLines() throws IOException {
+        List<String[]> sentences = read("John\tB-PER\n\n\nMadrid\tB-LOC\n.\tO\n\n",
+            TokenizedInput.CONLL);
+        assertEquals(2, sentences.size());
+        assertArrayEquals(new String[] {"Madrid", "."}, sentences.get(1));
+    }
+
+    private static List<String[]> read(String input, String format) throws IOException {
+        return TokenizedInput.readSentences(new BufferedReader(new StringReader(input)),
+            format);
+    }
+}